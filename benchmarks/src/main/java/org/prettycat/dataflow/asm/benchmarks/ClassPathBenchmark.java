@@ -0,0 +1,127 @@
+package org.prettycat.dataflow.asm.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.stream.Stream;
+
+import org.objectweb.asm.ClassReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.prettycat.dataflow.asm.ClassPath;
+
+/**
+ * Cost of {@link ClassPath#readClass(String)}, using the classes of the ASM
+ * core jar either from the jar itself or extracted into a directory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClassPathBenchmark {
+	@Param({"directory", "jar"})
+	public String source;
+	
+	private ClassPath cp;
+	private String[] classes;
+	private Path extracted = null;
+	
+	/**
+	 * Per-thread position in the list of classes.
+	 */
+	@State(Scope.Thread)
+	public static class Cursor {
+		int next = 0;
+	}
+	
+	@Setup
+	public void setup() throws IOException, URISyntaxException {
+		File jar = new File(ClassReader.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+		ArrayList<String> names = new ArrayList<>();
+		cp = new ClassPath();
+		if (source.equals("directory")) {
+			extracted = Files.createTempDirectory("classpath-benchmark");
+		}
+		
+		try (JarFile file = new JarFile(jar)) {
+			Enumeration<JarEntry> entries = file.entries();
+			while (entries.hasMoreElements()) {
+				JarEntry entry = entries.nextElement();
+				String name = entry.getName();
+				if (!name.endsWith(".class") || name.startsWith("META-INF/")) {
+					continue;
+				}
+				names.add(name.substring(0, name.length() - ".class".length()));
+				if (extracted != null) {
+					Path target = extracted.resolve(name);
+					Files.createDirectories(target.getParent());
+					try (InputStream in = file.getInputStream(entry)) {
+						Files.copy(in, target);
+					}
+				}
+			}
+		}
+		
+		if (extracted != null) {
+			cp.addPath(extracted);
+		} else {
+			cp.addJarFile(jar);
+		}
+		classes = names.toArray(new String[names.size()]);
+	}
+	
+	@TearDown
+	public void tearDown() throws IOException {
+		cp.close();
+		if (extracted == null) {
+			return;
+		}
+		try (Stream<Path> files = Files.walk(extracted)) {
+			files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+	}
+	
+	private byte[] read(Cursor cursor) {
+		String name = classes[cursor.next];
+		cursor.next = (cursor.next + 1) % classes.length;
+		return cp.readClass(name);
+	}
+	
+	@Benchmark
+	public byte[] readClass(Cursor cursor) {
+		return read(cursor);
+	}
+	
+	@Benchmark
+	@Threads(4)
+	public byte[] readClassConcurrently(Cursor cursor) {
+		return read(cursor);
+	}
+	
+	@Benchmark
+	public byte[] readMissingClass() {
+		return cp.readClass("org/prettycat/DoesNotExist");
+	}
+}
@@ -0,0 +1,184 @@
+package org.prettycat.dataflow.asm.benchmarks;
+
+import org.objectweb.asm.Label;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.MethodNode;
+
+/**
+ * Synthetic methods of different shapes used as analysis input.
+ *
+ * All methods are static, take two ints and return an int. They are built
+ * without stack map frames, which the analysis does not need.
+ */
+public class GeneratedMethods implements Opcodes {
+	public static final String OWNER = "org/prettycat/benchmarks/Generated";
+	
+	/**
+	 * @param shape one of "small", "loops", "trycatch" and "huge".
+	 */
+	public static MethodNode create(String shape) {
+		switch (shape) {
+		case "small":
+			return small();
+		case "loops":
+			return loops(20);
+		case "trycatch":
+			return tryCatch(50);
+		case "huge":
+			return huge(1000);
+		default:
+			throw new IllegalArgumentException("unknown method shape: "+shape);
+		}
+	}
+	
+	private static MethodNode newMethod(String name) {
+		MethodNode method = new MethodNode(ASM5, ACC_PUBLIC | ACC_STATIC, name, "(II)I", null, null);
+		method.visitCode();
+		return method;
+	}
+	
+	/**
+	 * {@code return a + b * 2;}
+	 */
+	public static MethodNode small() {
+		MethodNode m = newMethod("small");
+		m.visitVarInsn(ILOAD, 0);
+		m.visitVarInsn(ILOAD, 1);
+		m.visitInsn(ICONST_2);
+		m.visitInsn(IMUL);
+		m.visitInsn(IADD);
+		m.visitInsn(IRETURN);
+		m.visitMaxs(3, 2);
+		m.visitEnd();
+		return m;
+	}
+	
+	/**
+	 * A sequence of nested loops with a branch in the outer body; every
+	 * loop head and branch is a join point for the accumulator.
+	 */
+	public static MethodNode loops(int count) {
+		MethodNode m = newMethod("loops");
+		m.visitInsn(ICONST_0);
+		m.visitVarInsn(ISTORE, 2);
+		for (int k = 0; k < count; ++k) {
+			Label cond = new Label();
+			Label end = new Label();
+			Label otherwise = new Label();
+			Label next = new Label();
+			Label innerCond = new Label();
+			Label innerEnd = new Label();
+			
+			m.visitInsn(ICONST_0);
+			m.visitVarInsn(ISTORE, 3);
+			m.visitLabel(cond);
+			m.visitVarInsn(ILOAD, 3);
+			m.visitVarInsn(ILOAD, 0);
+			m.visitJumpInsn(IF_ICMPGE, end);
+			
+			m.visitVarInsn(ILOAD, 3);
+			m.visitInsn(ICONST_3);
+			m.visitInsn(IREM);
+			m.visitJumpInsn(IFNE, otherwise);
+			m.visitVarInsn(ILOAD, 2);
+			m.visitVarInsn(ILOAD, 3);
+			m.visitInsn(IADD);
+			m.visitVarInsn(ISTORE, 2);
+			m.visitJumpInsn(GOTO, next);
+			m.visitLabel(otherwise);
+			m.visitVarInsn(ILOAD, 2);
+			m.visitVarInsn(ILOAD, 3);
+			m.visitInsn(IXOR);
+			m.visitVarInsn(ISTORE, 2);
+			m.visitLabel(next);
+			
+			m.visitInsn(ICONST_0);
+			m.visitVarInsn(ISTORE, 4);
+			m.visitLabel(innerCond);
+			m.visitVarInsn(ILOAD, 4);
+			m.visitVarInsn(ILOAD, 1);
+			m.visitJumpInsn(IF_ICMPGE, innerEnd);
+			m.visitVarInsn(ILOAD, 2);
+			m.visitVarInsn(ILOAD, 4);
+			m.visitInsn(IMUL);
+			m.visitVarInsn(ISTORE, 2);
+			m.visitIincInsn(4, 1);
+			m.visitJumpInsn(GOTO, innerCond);
+			m.visitLabel(innerEnd);
+			
+			m.visitIincInsn(3, 1);
+			m.visitJumpInsn(GOTO, cond);
+			m.visitLabel(end);
+		}
+		m.visitVarInsn(ILOAD, 2);
+		m.visitInsn(IRETURN);
+		m.visitMaxs(2, 5);
+		m.visitEnd();
+		return m;
+	}
+	
+	/**
+	 * A sequence of calls, each guarded by its own exception handler which
+	 * modifies the accumulator.
+	 */
+	public static MethodNode tryCatch(int count) {
+		MethodNode m = newMethod("tryCatch");
+		m.visitInsn(ICONST_0);
+		m.visitVarInsn(ISTORE, 2);
+		for (int k = 0; k < count; ++k) {
+			Label start = new Label();
+			Label end = new Label();
+			Label handler = new Label();
+			Label after = new Label();
+			m.visitTryCatchBlock(start, end, handler, "java/lang/ArithmeticException");
+			
+			m.visitLabel(start);
+			m.visitVarInsn(ILOAD, 0);
+			m.visitVarInsn(ILOAD, 2);
+			m.visitMethodInsn(INVOKESTATIC, "java/lang/Math", "floorDiv", "(II)I", false);
+			m.visitVarInsn(ISTORE, 2);
+			m.visitLabel(end);
+			m.visitJumpInsn(GOTO, after);
+			m.visitLabel(handler);
+			m.visitVarInsn(ASTORE, 3);
+			m.visitIincInsn(2, 1);
+			m.visitLabel(after);
+		}
+		m.visitVarInsn(ILOAD, 2);
+		m.visitInsn(IRETURN);
+		m.visitMaxs(2, 4);
+		m.visitEnd();
+		return m;
+	}
+	
+	/**
+	 * Mostly straight-line arithmetic, field accesses and calls, with a
+	 * short forward branch in every block.
+	 */
+	public static MethodNode huge(int count) {
+		MethodNode m = newMethod("huge");
+		for (int k = 0; k < count; ++k) {
+			Label skip = new Label();
+			m.visitVarInsn(ILOAD, 0);
+			m.visitVarInsn(ILOAD, 1);
+			m.visitInsn(IADD);
+			m.visitVarInsn(ISTORE, 1);
+			m.visitVarInsn(ILOAD, 1);
+			m.visitIntInsn(BIPUSH, k % 100);
+			m.visitInsn(IMUL);
+			m.visitVarInsn(ISTORE, 0);
+			m.visitFieldInsn(GETSTATIC, "java/lang/System", "out", "Ljava/io/PrintStream;");
+			m.visitVarInsn(ILOAD, 0);
+			m.visitMethodInsn(INVOKEVIRTUAL, "java/io/PrintStream", "println", "(I)V", false);
+			m.visitVarInsn(ILOAD, 0);
+			m.visitJumpInsn(IFLE, skip);
+			m.visitIincInsn(1, 1);
+			m.visitLabel(skip);
+		}
+		m.visitVarInsn(ILOAD, 1);
+		m.visitInsn(IRETURN);
+		m.visitMaxs(2, 2);
+		m.visitEnd();
+		return m;
+	}
+}
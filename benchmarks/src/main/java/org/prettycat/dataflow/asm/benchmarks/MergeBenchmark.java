@@ -0,0 +1,78 @@
+package org.prettycat.dataflow.asm.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.InsnNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.prettycat.dataflow.asm.SimpleFlowInterpreter;
+import org.prettycat.dataflow.asm.SimpleFlowValue;
+
+/**
+ * Cost of {@link SimpleFlowInterpreter#merge} for growing merge sets.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MergeBenchmark {
+	@Param({"2", "16", "128"})
+	public int inputs;
+	
+	private SimpleFlowInterpreter interpreter;
+	private SimpleFlowValue[] values;
+	private SimpleFlowValue merged;
+	
+	@Setup
+	public void setup() {
+		interpreter = new SimpleFlowInterpreter();
+		values = new SimpleFlowValue[inputs];
+		for (int i = 0; i < inputs; ++i) {
+			values[i] = interpreter.newValue(Type.INT_TYPE, new InsnNode(Opcodes.ICONST_0));
+		}
+		merged = mergeChain();
+	}
+	
+	/**
+	 * Merge all values one after another, as at a join point with many
+	 * predecessors.
+	 */
+	@Benchmark
+	public SimpleFlowValue mergeChain() {
+		SimpleFlowValue result = values[0];
+		for (int i = 1; i < values.length; ++i) {
+			result = interpreter.merge(result, values[i]);
+		}
+		return result;
+	}
+	
+	/**
+	 * Merge a merge value with itself, the common case once the fixpoint
+	 * iteration has converged.
+	 */
+	@Benchmark
+	public SimpleFlowValue mergeConverged() {
+		return interpreter.merge(merged, merged);
+	}
+	
+	/**
+	 * Merge a merge value with one of its inputs.
+	 */
+	@Benchmark
+	public SimpleFlowValue mergeContained() {
+		return interpreter.merge(merged, values[0]);
+	}
+}
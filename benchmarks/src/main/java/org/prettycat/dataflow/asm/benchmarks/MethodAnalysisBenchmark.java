@@ -0,0 +1,56 @@
+package org.prettycat.dataflow.asm.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.prettycat.dataflow.asm.AnalysisContext;
+import org.prettycat.dataflow.asm.MethodAnalysis;
+
+/**
+ * Cost of running the whole analysis of a single method.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MethodAnalysisBenchmark {
+	@Param({"small", "loops", "trycatch", "huge"})
+	public String shape;
+	
+	private MethodNode method;
+	private AnalysisContext context;
+	
+	@Setup
+	public void setup() {
+		method = GeneratedMethods.create(shape);
+		context = new AnalysisContext();
+	}
+	
+	@Benchmark
+	public MethodAnalysis analyse() throws AnalyzerException {
+		return new MethodAnalysis(GeneratedMethods.OWNER, method);
+	}
+	
+	/**
+	 * Like {@link #analyse()}, but reusing one context as the workers of an
+	 * {@link org.prettycat.dataflow.asm.AnalysisSession} do.
+	 */
+	@Benchmark
+	public MethodAnalysis analyseWithContext() throws AnalyzerException {
+		return new MethodAnalysis(GeneratedMethods.OWNER, method, context);
+	}
+}
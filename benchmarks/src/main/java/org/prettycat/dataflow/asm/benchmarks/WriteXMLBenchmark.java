@@ -0,0 +1,111 @@
+package org.prettycat.dataflow.asm.benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.prettycat.dataflow.asm.BinaryOutputSink;
+import org.prettycat.dataflow.asm.CompactXMLOutputSink;
+import org.prettycat.dataflow.asm.MethodAnalysis;
+import org.prettycat.dataflow.asm.StreamingXMLOutputSink;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Cost of turning a finished analysis into XML, through the DOM, the
+ * streaming writer and the version 2 writer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WriteXMLBenchmark {
+	@Param({"small", "loops", "trycatch", "huge"})
+	public String shape;
+	
+	private MethodAnalysis analysis;
+	private Document doc;
+	
+	/**
+	 * Discards everything, so only the cost of producing the text is
+	 * measured.
+	 */
+	private static class NullWriter extends Writer {
+		@Override
+		public void write(char[] cbuf, int off, int len) {
+		}
+		
+		@Override
+		public void write(String str, int off, int len) {
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+	
+	@Setup
+	public void setup() throws AnalyzerException, ParserConfigurationException {
+		analysis = new MethodAnalysis(GeneratedMethods.OWNER, GeneratedMethods.create(shape));
+		doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+	}
+	
+	@Benchmark
+	public Element writeDOM() {
+		return analysis.writeXML(doc);
+	}
+	
+	@Benchmark
+	public StreamingXMLOutputSink writeStreaming() throws IOException {
+		StreamingXMLOutputSink sink = new StreamingXMLOutputSink(new NullWriter());
+		sink.write(analysis);
+		return sink;
+	}
+	
+	@Benchmark
+	public CompactXMLOutputSink writeCompact() throws IOException {
+		CompactXMLOutputSink sink = new CompactXMLOutputSink(new NullWriter());
+		sink.write(analysis);
+		return sink;
+	}
+	
+	/**
+	 * The binary format, for comparison.
+	 */
+	@Benchmark
+	public BinaryOutputSink writeBinary() throws IOException {
+		BinaryOutputSink sink = new BinaryOutputSink(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+			
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		});
+		sink.write(analysis);
+		return sink;
+	}
+}
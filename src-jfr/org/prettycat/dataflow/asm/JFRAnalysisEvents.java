@@ -0,0 +1,151 @@
+package org.prettycat.dataflow.asm;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * {@link AnalysisEvents} recorded as Java Flight Recorder events, in the
+ * "Dataflow Analysis" category. Loaded by {@link AnalysisEvents#load()}.
+ */
+class JFRAnalysisEvents implements AnalysisEvents {
+	@Name("org.prettycat.dataflow.asm.ClassLoad")
+	@Label("Class Load")
+	@Category("Dataflow Analysis")
+	@Description("A class file read from the class path of the analysis")
+	@StackTrace(false)
+	static class ClassLoadEvent extends Event {
+		@Label("Class")
+		String className;
+		
+		@Label("Source")
+		@Description("The jar file or directory the class was read from")
+		String source;
+		
+		@Label("Size")
+		@DataAmount
+		int size;
+	}
+	
+	@Name("org.prettycat.dataflow.asm.MethodAnalysis")
+	@Label("Method Analysis")
+	@Category("Dataflow Analysis")
+	@Description("The dataflow analysis of a single method")
+	@StackTrace(false)
+	static class MethodAnalysisEvent extends Event {
+		@Label("Owner")
+		String owner;
+		
+		@Label("Name")
+		String name;
+		
+		@Label("Descriptor")
+		String desc;
+		
+		@Label("Instructions")
+		int instructions;
+		
+		@Label("Merges")
+		@Description("The number of merge values created")
+		int merges;
+		
+		@Label("Outcome")
+		@Description("Empty for a full analysis, otherwise the degraded result or skipped")
+		String outcome;
+	}
+	
+	@Name("org.prettycat.dataflow.asm.OutputFlush")
+	@Label("Output Flush")
+	@Category("Dataflow Analysis")
+	@Description("The methods of a class written to the output, or the output closed")
+	@StackTrace(false)
+	static class OutputFlushEvent extends Event {
+		@Label("Class")
+		@Description("Empty when the output is closed")
+		String className;
+		
+		@Label("Methods")
+		int methods;
+	}
+	
+	@Override
+	public Object beginClassLoad() {
+		ClassLoadEvent event = new ClassLoadEvent();
+		if (!event.isEnabled()) {
+			return null;
+		}
+		event.begin();
+		return event;
+	}
+	
+	@Override
+	public void commitClassLoad(Object event, String className, String source, int size) {
+		if (event == null) {
+			return;
+		}
+		ClassLoadEvent classLoad = (ClassLoadEvent)event;
+		classLoad.end();
+		if (classLoad.shouldCommit()) {
+			classLoad.className = className;
+			classLoad.source = source;
+			classLoad.size = size;
+			classLoad.commit();
+		}
+	}
+	
+	@Override
+	public Object beginMethodAnalysis() {
+		MethodAnalysisEvent event = new MethodAnalysisEvent();
+		if (!event.isEnabled()) {
+			return null;
+		}
+		event.begin();
+		return event;
+	}
+	
+	@Override
+	public void commitMethodAnalysis(Object event, String owner, String name, String desc, int instructions, int merges, String outcome) {
+		if (event == null) {
+			return;
+		}
+		MethodAnalysisEvent analysis = (MethodAnalysisEvent)event;
+		analysis.end();
+		if (analysis.shouldCommit()) {
+			analysis.owner = owner;
+			analysis.name = name;
+			analysis.desc = desc;
+			analysis.instructions = instructions;
+			analysis.merges = merges;
+			analysis.outcome = outcome;
+			analysis.commit();
+		}
+	}
+	
+	@Override
+	public Object beginOutputFlush() {
+		OutputFlushEvent event = new OutputFlushEvent();
+		if (!event.isEnabled()) {
+			return null;
+		}
+		event.begin();
+		return event;
+	}
+	
+	@Override
+	public void commitOutputFlush(Object event, String className, int methods) {
+		if (event == null) {
+			return;
+		}
+		OutputFlushEvent flush = (OutputFlushEvent)event;
+		flush.end();
+		if (flush.shouldCommit()) {
+			flush.className = className;
+			flush.methods = methods;
+			flush.commit();
+		}
+	}
+}
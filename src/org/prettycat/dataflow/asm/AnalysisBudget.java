@@ -0,0 +1,42 @@
+package org.prettycat.dataflow.asm;
+
+/**
+ * Limits on the work spent on a single method. A limit of zero means
+ * unlimited.
+ *
+ * A method which exceeds its budget is not analysed fully; see
+ * {@link MethodAnalysis#getDegradation()}.
+ */
+public class AnalysisBudget {
+	public static final AnalysisBudget UNLIMITED = new AnalysisBudget(0, 0, 0, 0);
+	
+	/**
+	 * Methods with more instructions are not analysed at all.
+	 */
+	public final int maxInstructions;
+	/**
+	 * The number of control flow edges the analysis may follow until it
+	 * reaches its fixpoint; each visit of an instruction follows at least
+	 * one.
+	 */
+	public final long maxSteps;
+	/**
+	 * Wall time of the analysis, in milliseconds.
+	 */
+	public final long maxMillis;
+	/**
+	 * The total number of inputs of all merge values created.
+	 */
+	public final long maxMergeInputs;
+	
+	public AnalysisBudget(int maxInstructions, long maxSteps, long maxMillis, long maxMergeInputs) {
+		this.maxInstructions = maxInstructions;
+		this.maxSteps = maxSteps;
+		this.maxMillis = maxMillis;
+		this.maxMergeInputs = maxMergeInputs;
+	}
+	
+	public boolean isUnlimited() {
+		return maxInstructions == 0 && maxSteps == 0 && maxMillis == 0 && maxMergeInputs == 0;
+	}
+}
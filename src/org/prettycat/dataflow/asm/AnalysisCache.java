@@ -0,0 +1,242 @@
+package org.prettycat.dataflow.asm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * On-disk cache of finished method results, addressed by the contents of the
+ * class file they were computed from.
+ *
+ * Keys are SHA-256 hashes over {@link #ANALYSER_VERSION} and the class
+ * bytes, so a changed class or a changed analysis never hits stale entries.
+ * Each entry holds a list of {@link RecordedMethod}s: all analysed methods of
+ * a class for {@link #classKey(byte[])} keys, or at most one method for
+ * {@link #methodKey(String, String, String)} keys (none if the analysis
+ * failed).
+ *
+ * Entries are written to a temporary file and moved into place, so
+ * concurrent runs sharing a cache directory never see partial entries.
+ *
+ * Optionally, the most recently used entries are also kept in memory, for
+ * long-running processes like the {@link AnalysisServer}; such a cache may
+ * also have no directory at all.
+ */
+public class AnalysisCache {
+	/**
+	 * Must be changed whenever the results of the analysis for the same
+	 * class file change.
+	 */
+	public static final String ANALYSER_VERSION = "dataflow-asm/2";
+	
+	private static final int ENTRY_MAGIC = 0x70634143;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	private final Path root;
+	private final int memoryEntries;
+	private final LinkedHashMap<String, List<RecordedMethod>> memory;
+	private final AtomicInteger hits = new AtomicInteger();
+	private final AtomicInteger misses = new AtomicInteger();
+	private final AtomicInteger errors = new AtomicInteger();
+	
+	public AnalysisCache(Path root) throws IOException {
+		this(root, 0);
+	}
+	
+	/**
+	 * @param root the cache directory, or null to only keep entries in memory.
+	 * @param memoryEntries the number of entries to keep in memory, least
+	 *    recently used entries are dropped first.
+	 */
+	public AnalysisCache(Path root, int memoryEntries) throws IOException {
+		this.root = root;
+		this.memoryEntries = memoryEntries;
+		this.memory = new LinkedHashMap<String, List<RecordedMethod>>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, List<RecordedMethod>> eldest) {
+				return size() > AnalysisCache.this.memoryEntries;
+			}
+		};
+		if (root != null) {
+			Files.createDirectories(root);
+		}
+	}
+	
+	static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 not available", e);
+		}
+	}
+	
+	static String hex(byte[] digest) {
+		StringBuilder result = new StringBuilder(digest.length * 2);
+		for (byte b: digest) {
+			result.append(Character.forDigit((b >> 4) & 0xf, 16));
+			result.append(Character.forDigit(b & 0xf, 16));
+		}
+		return result.toString();
+	}
+	
+	/**
+	 * @return the key for the results of all methods of the class.
+	 */
+	public static String classKey(byte[] classBytes) {
+		return classKey(classBytes, 0);
+	}
+	
+	/**
+	 * @return the key for the results of all methods of the class, read with
+	 *    the given ClassReader parsing options. Options like SKIP_FRAMES and
+	 *    SKIP_DEBUG change the instructions of the methods, so they are part
+	 *    of the key.
+	 */
+	public static String classKey(byte[] classBytes, int parsingOptions) {
+		MessageDigest digest = newDigest();
+		digest.update(ANALYSER_VERSION.getBytes(UTF8));
+		digest.update((byte)0);
+		if (parsingOptions != 0) {
+			digest.update(("parsing-options=" + parsingOptions).getBytes(UTF8));
+			digest.update((byte)0);
+		}
+		digest.update(classBytes);
+		return hex(digest.digest());
+	}
+	
+	/**
+	 * @return the key for the result of a single method of the class with
+	 *    the given class key.
+	 */
+	public static String methodKey(String classKey, String name, String desc) {
+		MessageDigest digest = newDigest();
+		digest.update(classKey.getBytes(UTF8));
+		digest.update((byte)0);
+		digest.update(name.getBytes(UTF8));
+		digest.update(desc.getBytes(UTF8));
+		return hex(digest.digest());
+	}
+	
+	private Path entryPath(String key) {
+		return root.resolve(key.substring(0, 2)).resolve(key.substring(2));
+	}
+	
+	/**
+	 * @return the cached methods, or null if there is no (valid) entry.
+	 */
+	public List<RecordedMethod> load(String key) {
+		if (memoryEntries > 0) {
+			List<RecordedMethod> result;
+			synchronized (memory) {
+				result = memory.get(key);
+			}
+			if (result != null) {
+				hits.incrementAndGet();
+				return result;
+			}
+		}
+		if (root == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		
+		Path path = entryPath(key);
+		try (InputStream stream = Files.newInputStream(path)) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+			if (in.readInt() != ENTRY_MAGIC || !in.readUTF().equals(ANALYSER_VERSION)) {
+				misses.incrementAndGet();
+				return null;
+			}
+			int n = VarInt.readUnsigned(in);
+			ArrayList<RecordedMethod> result = new ArrayList<RecordedMethod>(n);
+			for (int i = 0; i < n; ++i) {
+				result.add(RecordedMethod.readFrom(in));
+			}
+			remember(key, result);
+			hits.incrementAndGet();
+			return result;
+		} catch (NoSuchFileException e) {
+			misses.incrementAndGet();
+			return null;
+		} catch (IOException e) {
+			System.err.println("ignoring broken cache entry "+path+": "+e);
+			errors.incrementAndGet();
+			misses.incrementAndGet();
+			return null;
+		}
+	}
+	
+	private void remember(String key, List<RecordedMethod> methods) {
+		if (memoryEntries > 0) {
+			synchronized (memory) {
+				memory.put(key, methods);
+			}
+		}
+	}
+	
+	public void store(String key, List<RecordedMethod> methods) {
+		remember(key, methods);
+		if (root == null) {
+			return;
+		}
+		Path path = entryPath(key);
+		try {
+			Files.createDirectories(path.getParent());
+			Path tmp = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+			try {
+				try (OutputStream stream = Files.newOutputStream(tmp)) {
+					DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+					out.writeInt(ENTRY_MAGIC);
+					out.writeUTF(ANALYSER_VERSION);
+					VarInt.writeUnsigned(out, methods.size());
+					for (RecordedMethod method: methods) {
+						method.writeTo(out);
+					}
+					out.flush();
+				}
+				try {
+					Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE);
+				} catch (AtomicMoveNotSupportedException e) {
+					Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+				}
+			} finally {
+				Files.deleteIfExists(tmp);
+			}
+		} catch (IOException e) {
+			System.err.println("failed to write cache entry "+path+": "+e);
+			errors.incrementAndGet();
+		}
+	}
+	
+	public int getHits() {
+		return hits.get();
+	}
+	
+	public int getMisses() {
+		return misses.get();
+	}
+	
+	public void printStatistics() {
+		int hits = getHits();
+		int total = hits + getMisses();
+		System.out.format("analysis cache: %d hits, %d misses (%.1f%% hit rate), %d errors\n",
+				hits, total - hits, total == 0 ? 0. : 100. * hits / total, errors.get());
+	}
+}
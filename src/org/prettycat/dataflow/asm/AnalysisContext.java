@@ -0,0 +1,207 @@
+package org.prettycat.dataflow.asm;
+
+import java.util.Arrays;
+
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+import org.objectweb.asm.tree.analysis.Analyzer;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.Frame;
+
+/**
+ * The interpreter and scratch buffers needed to analyse a method.
+ *
+ * A context can be reused for any number of methods, one after another;
+ * everything is reset at the start of {@link #analyze}. It must not be used
+ * by more than one thread at a time.
+ *
+ * The per-instruction frames are only needed while the analysis runs. The
+ * context does not keep them, and {@link MethodAnalysis} only keeps them if
+ * asked to with {@link #setKeepFrames(boolean)}.
+ */
+public class AnalysisContext {
+	private final SimpleFlowInterpreter interpreter;
+	private final ControlFlowEdges.Builder edgeBuilder;
+	private boolean[] exceptionTargets;
+	private boolean keepFrames = false;
+	private AnalysisBudget budget = AnalysisBudget.UNLIMITED;
+	private long steps;
+	private long deadline;
+	
+	public AnalysisContext() {
+		this.interpreter = new SimpleFlowInterpreter();
+		this.edgeBuilder = new ControlFlowEdges.Builder();
+		this.exceptionTargets = new boolean[0];
+	}
+	
+	/**
+	 * The analyzer holds on to the frames of the last method, so a new one
+	 * is used for each method; it allocates everything per method anyway.
+	 */
+	private Analyzer<SimpleFlowValue> newAnalyzer() {
+		return new Analyzer<SimpleFlowValue>(interpreter) {
+			@Override
+			protected boolean newControlFlowExceptionEdge(int insn, int successor) {
+				step();
+				edgeBuilder.add(insn, successor, true);
+				
+				if (exceptionTargets[successor]) {
+					return false;
+				} else {
+					exceptionTargets[successor] = true;
+					return true;
+				}
+			}
+
+			@Override
+			protected void newControlFlowEdge(int insn, int successor) {
+				// System.out.println(insn + " -> " + successor);
+				step();
+				edgeBuilder.add(insn, successor, false);
+			}
+		};
+	}
+	
+	/**
+	 * Count a step of the analysis, and check the step and time budgets.
+	 */
+	private void step() {
+		steps += 1;
+		if (budget.maxSteps > 0 && steps > budget.maxSteps) {
+			throw new BudgetExceededException(BudgetExceededException.STEPS, budget.maxSteps);
+		}
+		if (budget.maxMillis > 0 && (steps & 0xff) == 0 && System.nanoTime() > deadline) {
+			throw new BudgetExceededException(BudgetExceededException.TIME, budget.maxMillis);
+		}
+	}
+	
+	/**
+	 * Set the budget for each of the following methods.
+	 */
+	public void setBudget(AnalysisBudget budget) {
+		this.budget = budget;
+		interpreter.setMaxMergeInputs(budget.maxMergeInputs);
+	}
+	
+	/**
+	 * Keep the frames of each instruction in the {@link MethodAnalysis},
+	 * e.g. for {@link MethodAnalysis#dump()}. Off by default, since they
+	 * take O(instructions * (locals + stack)) memory.
+	 */
+	public void setKeepFrames(boolean keepFrames) {
+		this.keepFrames = keepFrames;
+	}
+	
+	public boolean getKeepFrames() {
+		return keepFrames;
+	}
+	
+	/**
+	 * Run the analysis over method; the edges and values stay available
+	 * until the next call.
+	 *
+	 * @throws BudgetExceededException if the method exceeds the budget.
+	 */
+	public Frame<SimpleFlowValue>[] analyze(String owner, MethodNode method) throws AnalyzerException {
+		int size = method.instructions.size();
+		interpreter.reset(method.instructions);
+		edgeBuilder.clear();
+		steps = 0;
+		if (budget.maxInstructions > 0 && size > budget.maxInstructions) {
+			throw new BudgetExceededException(BudgetExceededException.INSTRUCTIONS, budget.maxInstructions);
+		}
+		if (exceptionTargets.length < size) {
+			exceptionTargets = new boolean[size];
+		} else {
+			Arrays.fill(exceptionTargets, 0, size, false);
+		}
+		deadline = System.nanoTime() + budget.maxMillis * 1000000L;
+		try {
+			return newAnalyzer().analyze(owner, method);
+		} catch (AnalyzerException e) {
+			// the analyzer wraps everything thrown by the callbacks
+			if (e.getCause() instanceof BudgetExceededException) {
+				throw (BudgetExceededException)e.getCause();
+			}
+			throw e;
+		}
+	}
+	
+	/**
+	 * @return the edges which can be read off the instructions, without
+	 *    analysing the method: jumps, switches, fall through and an
+	 *    exception edge from every instruction covered by a handler to the
+	 *    handler. Unlike the edges found by {@link #analyze}, this includes
+	 *    unreachable code.
+	 */
+	public ControlFlowEdges buildStructuralEdges(MethodNode method) {
+		InsnList instructions = method.instructions;
+		int size = instructions.size();
+		edgeBuilder.clear();
+		int i = 0;
+		for (AbstractInsnNode insn = instructions.getFirst(); insn != null; insn = insn.getNext(), ++i) {
+			int opcode = insn.getOpcode();
+			if (insn instanceof JumpInsnNode) {
+				edgeBuilder.add(i, instructions.indexOf(((JumpInsnNode)insn).label), false);
+				if (opcode == Opcodes.GOTO || opcode == Opcodes.JSR) {
+					continue;
+				}
+			} else if (insn instanceof TableSwitchInsnNode) {
+				TableSwitchInsnNode tableSwitch = (TableSwitchInsnNode)insn;
+				addSwitchEdges(instructions, i, tableSwitch.dflt, tableSwitch.labels);
+				continue;
+			} else if (insn instanceof LookupSwitchInsnNode) {
+				LookupSwitchInsnNode lookupSwitch = (LookupSwitchInsnNode)insn;
+				addSwitchEdges(instructions, i, lookupSwitch.dflt, lookupSwitch.labels);
+				continue;
+			} else if (opcode == Opcodes.RET || opcode == Opcodes.ATHROW
+					|| (opcode >= Opcodes.IRETURN && opcode <= Opcodes.RETURN)) {
+				continue;
+			}
+			if (i + 1 < size) {
+				edgeBuilder.add(i, i + 1, false);
+			}
+		}
+		for (TryCatchBlockNode tryCatch: method.tryCatchBlocks) {
+			int handler = instructions.indexOf(tryCatch.handler);
+			int end = instructions.indexOf(tryCatch.end);
+			for (int j = instructions.indexOf(tryCatch.start); j < end; ++j) {
+				edgeBuilder.add(j, handler, true);
+			}
+		}
+		return edgeBuilder.build(size);
+	}
+	
+	private void addSwitchEdges(InsnList instructions, int insn, LabelNode dflt, Iterable<LabelNode> labels) {
+		edgeBuilder.add(insn, instructions.indexOf(dflt), false);
+		for (LabelNode label: labels) {
+			edgeBuilder.add(insn, instructions.indexOf(label), false);
+		}
+	}
+	
+	/**
+	 * @return the number of control flow edges followed by the last
+	 *    {@link #analyze} call.
+	 */
+	public long getSteps() {
+		return steps;
+	}
+	
+	public SimpleFlowInterpreter getInterpreter() {
+		return interpreter;
+	}
+	
+	/**
+	 * @return the edges found by the last {@link #analyze} call.
+	 */
+	public ControlFlowEdges buildEdges(int instructionCount) {
+		return edgeBuilder.build(instructionCount);
+	}
+}
@@ -0,0 +1,84 @@
+package org.prettycat.dataflow.asm;
+
+/**
+ * Profiling events of a run, recorded with Java Flight Recorder where
+ * available.
+ *
+ * Each event is started with a begin method, which returns null if the
+ * event is not being recorded, and committed with the matching commit
+ * method, which ignores null. So nothing but the begin call is done when no
+ * recording is running.
+ *
+ * The JFR events are defined in {@code JFRAnalysisEvents}, which is built
+ * from {@code src-jfr} for Java 11, since the JFR API is not part of
+ * Java 8. On older JVMs, or if it is missing, {@link #NONE} is used.
+ */
+interface AnalysisEvents {
+	static final AnalysisEvents NONE = new AnalysisEvents() {
+		@Override
+		public Object beginClassLoad() {
+			return null;
+		}
+		
+		@Override
+		public void commitClassLoad(Object event, String className, String source, int size) {
+		}
+		
+		@Override
+		public Object beginMethodAnalysis() {
+			return null;
+		}
+		
+		@Override
+		public void commitMethodAnalysis(Object event, String owner, String name, String desc, int instructions, int merges, String outcome) {
+		}
+		
+		@Override
+		public Object beginOutputFlush() {
+			return null;
+		}
+		
+		@Override
+		public void commitOutputFlush(Object event, String className, int methods) {
+		}
+	};
+	
+	/**
+	 * @return the JFR events if the JVM supports them, or {@link #NONE}.
+	 */
+	static AnalysisEvents load() {
+		try {
+			Class.forName("jdk.jfr.Event");
+			return (AnalysisEvents)Class.forName("org.prettycat.dataflow.asm.JFRAnalysisEvents").newInstance();
+		} catch (ReflectiveOperationException | LinkageError e) {
+			return NONE;
+		}
+	}
+	
+	public Object beginClassLoad();
+	
+	/**
+	 * @param source the jar file or directory, or null if the class was
+	 *    not found.
+	 * @param size the size of the class file, or -1 if it was not found.
+	 */
+	public void commitClassLoad(Object event, String className, String source, int size);
+	
+	public Object beginMethodAnalysis();
+	
+	/**
+	 * @param merges the number of merge values created.
+	 * @param outcome null for a full analysis, the degradation (see
+	 *    {@link MethodAnalysis#getDegradation()}) or
+	 *    {@link AnalysisReport#SKIPPED}.
+	 */
+	public void commitMethodAnalysis(Object event, String owner, String name, String desc, int instructions, int merges, String outcome);
+	
+	public Object beginOutputFlush();
+	
+	/**
+	 * @param className the class whose methods were written, or null when
+	 *    the output is closed.
+	 */
+	public void commitOutputFlush(Object event, String className, int methods);
+}
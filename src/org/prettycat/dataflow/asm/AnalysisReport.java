@@ -0,0 +1,62 @@
+package org.prettycat.dataflow.asm;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The methods of a run which were degraded because they exceeded their
+ * {@link AnalysisBudget}, or skipped because the analysis failed.
+ *
+ * Entries may be added from any thread.
+ */
+public class AnalysisReport {
+	/**
+	 * Outcome of a method which is missing from the output.
+	 */
+	public static final String SKIPPED = "skipped";
+	
+	public static class Entry {
+		public final MethodRef method;
+		/**
+		 * {@link #SKIPPED}, or the degradation, e.g.
+		 * {@link MethodAnalysis#CFG_ONLY}.
+		 */
+		public final String outcome;
+		public final String reason;
+		
+		Entry(MethodRef method, String outcome, String reason) {
+			this.method = method;
+			this.outcome = outcome;
+			this.reason = reason;
+		}
+	}
+	
+	private final ArrayList<Entry> entries = new ArrayList<>();
+	
+	synchronized void add(MethodRef method, String outcome, String reason) {
+		entries.add(new Entry(method, outcome, reason));
+	}
+	
+	public synchronized boolean isEmpty() {
+		return entries.isEmpty();
+	}
+	
+	/**
+	 * @return the entries, ordered by method.
+	 */
+	public synchronized List<Entry> getEntries() {
+		ArrayList<Entry> result = new ArrayList<>(entries);
+		result.sort(Comparator.comparing((Entry entry) -> entry.method.toString()));
+		return result;
+	}
+	
+	public void print(PrintStream out) {
+		List<Entry> sorted = getEntries();
+		out.println(sorted.size()+" methods were degraded or skipped:");
+		for (Entry entry: sorted) {
+			out.format("  %-10s %s: %s\n", entry.outcome, entry.method, entry.reason);
+		}
+	}
+}
@@ -0,0 +1,202 @@
+package org.prettycat.dataflow.asm;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Serves analysis requests one after the other, keeping everything which
+ * can be reused warm between them: the JIT-compiled code, the opened jar
+ * files and worker threads of the last few class paths (one
+ * {@link AnalysisSession} each) and the results of the analysed classes, in
+ * the memory of the {@link AnalysisCache}.
+ *
+ * Requests are read line by line. A request has the same form as the
+ * command line of {@link DataflowAnalyser}, with the arguments separated by
+ * whitespace, but only takes these options:
+ *
+ * <pre>
+ * [-p CLASSPATH]... -o OUTFILE [--format FORMAT] [--reachable-methods] [--] CLASS[#METHOD]...
+ * </pre>
+ *
+ * All other settings are taken from the session given to the server. Each
+ * request is answered with a single line, {@code ok MILLIS DEGRADED} with
+ * the time taken and the number of degraded or skipped methods, or
+ * {@code error MESSAGE}. The server stops at the end of the input or at a
+ * {@code quit} line.
+ *
+ * Directories on the class path are listed again and changed jar files
+ * reopened for each request, and cached results are addressed by the
+ * contents of the class files, so changed classes are analysed again.
+ */
+public class AnalysisServer implements Closeable {
+	/**
+	 * The number of class paths whose sessions are kept.
+	 */
+	public static final int MAX_SESSIONS = 4;
+	/**
+	 * The number of cache entries (the results of a class, or of a single
+	 * method) kept in memory.
+	 */
+	public static final int MEMORY_ENTRIES = 16384;
+	
+	private final AnalysisSession template;
+	private final int maxSessions;
+	/**
+	 * The sessions by class path, least recently used first.
+	 */
+	private final LinkedHashMap<String, AnalysisSession> sessions = new LinkedHashMap<>(16, 0.75f, true);
+	
+	private static class Request {
+		final ArrayList<String> classPath = new ArrayList<>();
+		final ArrayList<String> classes = new ArrayList<>();
+		final ArrayList<MethodRef> methods = new ArrayList<>();
+		Path output = null;
+		OutputFormat format = null;
+		boolean reachableMethodsOnly = false;
+	}
+	
+	/**
+	 * @param template the settings of all requests; the sessions of the
+	 *    class paths are created with {@link AnalysisSession#withClassPath}.
+	 *    Its cache should keep entries in memory.
+	 */
+	public AnalysisServer(AnalysisSession template, int maxSessions) {
+		this.template = template;
+		this.maxSessions = maxSessions;
+	}
+	
+	/**
+	 * Answer the requests read from in on out, until the end of the input or
+	 * a {@code quit} line.
+	 */
+	public void serve(BufferedReader in, PrintStream out) throws IOException {
+		String line;
+		while ((line = in.readLine()) != null) {
+			line = line.trim();
+			if (line.isEmpty()) {
+				continue;
+			}
+			if (line.equals("quit")) {
+				break;
+			}
+			out.println(handle(line));
+			out.flush();
+		}
+	}
+	
+	/**
+	 * Run a single request.
+	 *
+	 * @return the response line.
+	 */
+	public String handle(String line) {
+		long start = System.nanoTime();
+		try {
+			Request request = parse(line.split("\\s+"));
+			AnalysisSession session = getSession(request.classPath);
+			session.setFormat(request.format != null ? request.format : template.getFormat());
+			session.setReachableMethodsOnly(request.reachableMethodsOnly || template.getReachableMethodsOnly());
+			session.run(request.output, request.classes, request.methods);
+			AnalysisReport report = session.getLastReport();
+			return "ok " + (System.nanoTime() - start) / 1000000 + " " + report.getEntries().size();
+		} catch (IllegalArgumentException | IllegalStateException e) {
+			return error(e.getMessage());
+		} catch (IOException | RuntimeException e) {
+			return error(e.toString());
+		}
+	}
+	
+	private static String error(String message) {
+		return "error " + String.valueOf(message).replace('\n', ' ');
+	}
+	
+	private static Request parse(String[] args) {
+		Request result = new Request();
+		int i;
+		for (i = 0; i < args.length; ++i) {
+			String arg = args[i];
+			if (arg.equals("-p") || arg.equals("--class-path")) {
+				result.classPath.add(next(args, i++));
+			} else if (arg.equals("-o") || arg.equals("--out-file")) {
+				result.output = Paths.get(next(args, i++));
+			} else if (arg.equals("--format")) {
+				String format = next(args, i++);
+				if (format.equals("xml")) {
+					result.format = OutputFormat.XML;
+				} else if (format.equals("xml2")) {
+					result.format = OutputFormat.XML2;
+				} else if (format.equals("binary")) {
+					result.format = OutputFormat.BINARY;
+				} else {
+					throw new IllegalArgumentException("unknown output format: "+format);
+				}
+			} else if (arg.equals("--reachable-methods")) {
+				result.reachableMethodsOnly = true;
+			} else if (arg.equals("--")) {
+				i += 1;
+				break;
+			} else if (arg.startsWith("-")) {
+				throw new IllegalArgumentException("unsupported argument in request: "+arg);
+			} else {
+				DataflowAnalyser.addClassToHandle(result.classes, result.methods, arg);
+			}
+		}
+		for (; i < args.length; ++i) {
+			DataflowAnalyser.addClassToHandle(result.classes, result.methods, args[i]);
+		}
+		if (result.output == null) {
+			throw new IllegalArgumentException("missing -o OUTFILE");
+		}
+		if (result.classes.isEmpty() && result.methods.isEmpty()) {
+			throw new IllegalArgumentException("at least one CLASS must be given");
+		}
+		return result;
+	}
+	
+	private static String next(String[] args, int i) {
+		if (i + 1 >= args.length) {
+			throw new IllegalArgumentException("missing argument to "+args[i]);
+		}
+		return args[i + 1];
+	}
+	
+	/**
+	 * @return the session of the class path, refreshed or newly created.
+	 */
+	private AnalysisSession getSession(ArrayList<String> classPath) throws IOException {
+		String key = String.join(":", classPath);
+		AnalysisSession session = sessions.get(key);
+		if (session != null) {
+			session.getClassPath().refresh();
+			return session;
+		}
+		
+		ClassPath cp = new ClassPath();
+		for (String arg: classPath) {
+			DataflowAnalyser.addToClassPath(cp, arg);
+		}
+		session = template.withClassPath(cp);
+		sessions.put(key, session);
+		if (sessions.size() > maxSessions) {
+			Iterator<AnalysisSession> eldest = sessions.values().iterator();
+			eldest.next().close();
+			eldest.remove();
+		}
+		return session;
+	}
+	
+	@Override
+	public void close() {
+		for (AnalysisSession session: sessions.values()) {
+			session.close();
+		}
+		sessions.clear();
+	}
+}
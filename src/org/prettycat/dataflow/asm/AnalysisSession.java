@@ -0,0 +1,1365 @@
+package org.prettycat.dataflow.asm;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+
+/**
+ * Runs analyses against one class path; this is what
+ * {@link DataflowAnalyser} uses and what embedding applications should use.
+ *
+ * A session keeps its worker threads and their {@link AnalysisContext}s
+ * between requests, so it is cheap to run many small requests on one
+ * session. Requests on one session are serialised; separate sessions are
+ * independent and can run concurrently. Close the session to stop its
+ * workers.
+ */
+public class AnalysisSession implements Closeable {
+	private static final int MAX_OPEN_SHARDS = 128;
+	/**
+	 * The number of classes per worker thread which may be analysed ahead
+	 * of the output, if not running a pipeline.
+	 */
+	private static final int CLASSES_AHEAD_PER_THREAD = 4;
+	private static final int SLOWEST_COUNT = 20;
+	private static final AnalysisEvents EVENTS = AnalysisEvents.load();
+	
+	private final ClassPath cp;
+	private int threads = 1;
+	private boolean useDOM = false;
+	private OutputFormat format = OutputFormat.XML;
+	private boolean reachableMethodsOnly = false;
+	private AnalysisCache cache = null;
+	private Path incrementalStateFile = null;
+	private boolean compressed = false;
+	private ShardedOutputSink.Granularity sharding = null;
+	private AnalysisBudget budget = AnalysisBudget.UNLIMITED;
+	private AnalysisReport lastReport = null;
+	private boolean collectMetrics = false;
+	private boolean streamMethods = false;
+	private boolean lineNumbers = true;
+	private boolean verbose = false;
+	private boolean skipSummarisedJars = false;
+	private PackageFilter scope = null;
+	private int maxDepth = -1;
+	private boolean deduplicate = false;
+	private PipelineConfig pipeline = null;
+	/**
+	 * Only analyse the classes asked for, see {@link #writeSummaries(File)}.
+	 */
+	private boolean followReferences = true;
+	private RunMetrics lastMetrics = null;
+	
+	private ForkJoinPool pool = null;
+	private final ThreadLocal<AnalysisContext> contexts = ThreadLocal.withInitial(AnalysisContext::new);
+	
+	public AnalysisSession() {
+		this(new ClassPath());
+	}
+	
+	/**
+	 * @param cp the class path, which is closed with the session.
+	 */
+	public AnalysisSession(ClassPath cp) {
+		this.cp = cp;
+	}
+	
+	public ClassPath getClassPath() {
+		return cp;
+	}
+	
+	/**
+	 * @return a new session on another class path, which it closes, with
+	 *    the same settings as this one and sharing its cache.
+	 */
+	public synchronized AnalysisSession withClassPath(ClassPath cp) {
+		AnalysisSession result = new AnalysisSession(cp);
+		result.threads = threads;
+		result.useDOM = useDOM;
+		result.format = format;
+		result.reachableMethodsOnly = reachableMethodsOnly;
+		result.cache = cache;
+		result.incrementalStateFile = incrementalStateFile;
+		result.compressed = compressed;
+		result.sharding = sharding;
+		result.budget = budget;
+		result.collectMetrics = collectMetrics;
+		result.streamMethods = streamMethods;
+		result.lineNumbers = lineNumbers;
+		result.verbose = verbose;
+		result.skipSummarisedJars = skipSummarisedJars;
+		result.scope = scope;
+		result.maxDepth = maxDepth;
+		result.deduplicate = deduplicate;
+		result.pipeline = pipeline;
+		return result;
+	}
+	
+	/**
+	 * Analyse classes and methods on threads worker threads. The output does
+	 * not depend on the number of threads.
+	 */
+	public synchronized void setThreads(int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("number of threads must be at least 1");
+		}
+		if (pool != null && threads != this.threads) {
+			pool.shutdown();
+			pool = null;
+		}
+		this.threads = threads;
+	}
+	
+	/**
+	 * Build the XML output as DOM document instead of streaming it; only
+	 * used by {@link #run(Path, Collection, Collection)}.
+	 */
+	public synchronized void setUseDOM(boolean useDOM) {
+		this.useDOM = useDOM;
+	}
+	
+	/**
+	 * Set the format written by {@link #run(Path, Collection, Collection)}.
+	 */
+	public synchronized void setFormat(OutputFormat format) {
+		this.format = format;
+	}
+	
+	public synchronized OutputFormat getFormat() {
+		return format;
+	}
+	
+	/**
+	 * Compress the streamed XML written by
+	 * {@link #run(Path, Collection, Collection)} on the worker threads, and
+	 * write a {@link GzipOutputIndex} next to it.
+	 */
+	public synchronized void setCompressed(boolean compressed) {
+		this.compressed = compressed;
+	}
+	
+	/**
+	 * @param sharding write one document per package or class into the
+	 *    directory given to {@link #run(Path, Collection, Collection)},
+	 *    see {@link ShardedOutputSink}, or null to write a single file.
+	 */
+	public synchronized void setSharding(ShardedOutputSink.Granularity sharding) {
+		this.sharding = sharding;
+	}
+	
+	/**
+	 * Set the limits for the analysis of each method. Methods exceeding them
+	 * get a degraded result and are listed in the {@link #getLastReport()
+	 * report} of the run. Degraded results are not cached.
+	 */
+	public synchronized void setBudget(AnalysisBudget budget) {
+		this.budget = budget;
+	}
+	
+	/**
+	 * @return the methods which were degraded or skipped in the last run,
+	 *    or null before the first run.
+	 */
+	public synchronized AnalysisReport getLastReport() {
+		return lastReport;
+	}
+	
+	/**
+	 * Measure the phases of each run and the counters of each method, see
+	 * {@link #getLastMetrics()}.
+	 */
+	public synchronized void setCollectMetrics(boolean collectMetrics) {
+		this.collectMetrics = collectMetrics;
+	}
+	
+	/**
+	 * @return the metrics of the last run, or null if the run did not
+	 *    collect them.
+	 */
+	public synchronized RunMetrics getLastMetrics() {
+		return lastMetrics;
+	}
+	
+	/**
+	 * Analyse the methods of each class while the class file is read, one
+	 * at a time, instead of building the tree of the whole class first.
+	 * Each method's tree is dropped as soon as it has been analysed, so the
+	 * memory needed is bounded by the largest method instead of the largest
+	 * class; the methods of a class are not analysed in parallel, though.
+	 *
+	 * The stack map frames are skipped in this mode, so the output does not
+	 * contain their (opcode -1) instructions, and the indices of the
+	 * instructions after them differ from those of the default mode.
+	 */
+	public synchronized void setStreamMethods(boolean streamMethods) {
+		this.streamMethods = streamMethods;
+	}
+	
+	/**
+	 * @param lineNumbers false to skip the debug information of the class
+	 *    files; the output then has no line numbers (-1), and no line
+	 *    number instructions.
+	 */
+	public synchronized void setLineNumbers(boolean lineNumbers) {
+		this.lineNumbers = lineNumbers;
+	}
+	
+	/**
+	 * @param verbose print the name of each method before it is analysed.
+	 *    Off by default, as the console output of large runs takes
+	 *    noticeable time.
+	 */
+	public synchronized void setVerbose(boolean verbose) {
+		this.verbose = verbose;
+	}
+	
+	/**
+	 * Do not analyse the classes of library jars which have up to date
+	 * summaries (see {@link #writeSummaries(File)}) unless they are entry
+	 * points, like an exclude of those classes. The summaries themselves
+	 * are not used: calls into the jars are reported as plain call targets,
+	 * and tools wanting the summaries of the targets have to read the side
+	 * files of the jars.
+	 */
+	public synchronized void setSkipSummarisedJars(boolean skipSummarisedJars) {
+		this.skipSummarisedJars = skipSummarisedJars;
+	}
+	
+	/**
+	 * @param scope the classes to analyse besides the entry points, or null
+	 *    for all referenced classes. Calls to classes out of scope are
+	 *    still reported as call targets.
+	 */
+	public synchronized void setScope(PackageFilter scope) {
+		this.scope = scope;
+	}
+	
+	/**
+	 * @param maxDepth the number of references (or, for reachable methods,
+	 *    calls) to follow from the entry points, or -1 for no limit. 0 only
+	 *    analyses the entry points.
+	 */
+	public synchronized void setMaxDepth(int maxDepth) {
+		this.maxDepth = maxDepth;
+	}
+	
+	/**
+	 * Analyse methods with the same code (see {@link MethodFingerprint})
+	 * only once per run; the others get a copy of the result, relabelled
+	 * with their owner and name. The output is the same as without.
+	 */
+	public synchronized void setDeduplicate(boolean deduplicate) {
+		this.deduplicate = deduplicate;
+	}
+	
+	/**
+	 * Run the classes through a pipeline of stages with their own threads
+	 * instead of the worker pool: reading the class files, building their
+	 * trees and analysing their methods, connected by bounded queues, with
+	 * the writing of the output as last stage on the calling thread. At
+	 * most {@link PipelineConfig#maxInFlight} classes are analysed ahead of
+	 * the output, so a slow output keeps the memory bounded. The queue depth,
+	 * stalls and idle time of each stage are printed after the run and
+	 * added to the metrics. The output is the same as without.
+	 *
+	 * Not supported with {@link #setStreamMethods(boolean)} and
+	 * {@link #setReachableMethodsOnly(boolean)}.
+	 *
+	 * @param pipeline the shape of the pipeline, or null to use the worker
+	 *    pool.
+	 */
+	public synchronized void setPipeline(PipelineConfig pipeline) {
+		this.pipeline = pipeline;
+	}
+	
+	/**
+	 * Analyse all classes of a jar on the class path and save the
+	 * {@link MethodSummary} of each method next to the jar, see
+	 * {@link SummaryFile}.
+	 *
+	 * @return the summaries.
+	 */
+	public synchronized SummaryFile writeSummaries(File jar) throws IOException {
+		ClassPath jarOnly = new ClassPath();
+		jarOnly.addJarFile(jar);
+		List<String> classes = jarOnly.getClassNames();
+		
+		SummaryFile result = new SummaryFile(jar);
+		result.addClasses(classes);
+		try (AnalysisSession session = withClassPath(jarOnly)) {
+			session.reachableMethodsOnly = false;
+			session.skipSummarisedJars = false;
+			session.followReferences = false;
+			session.incrementalStateFile = null;
+			session.run(new OutputSink() {
+				@Override
+				public void write(MethodResult analysis) {
+					result.add(MethodSummary.of(analysis));
+				}
+				
+				@Override
+				public void close() {
+				}
+			}, classes, new ArrayList<MethodRef>());
+			lastReport = session.getLastReport();
+			lastMetrics = session.getLastMetrics();
+		}
+		result.save(SummaryFile.getPath(jar));
+		return result;
+	}
+	
+	/**
+	 * Only analyse the methods reachable from the entry points, instead of
+	 * all methods of every referenced class.
+	 */
+	public synchronized void setReachableMethodsOnly(boolean reachableMethodsOnly) {
+		this.reachableMethodsOnly = reachableMethodsOnly;
+	}
+	
+	public synchronized boolean getReachableMethodsOnly() {
+		return reachableMethodsOnly;
+	}
+	
+	/**
+	 * @param cache the cache to reuse method results from, or null. A cache
+	 *    may be shared between sessions.
+	 */
+	public synchronized void setCache(AnalysisCache cache) {
+		this.cache = cache;
+	}
+	
+	public AnalysisCache getCache() {
+		return cache;
+	}
+	
+	/**
+	 * @param stateFile the state of the previous run writing to the same
+	 *    output, or null to always analyse everything. Only supported for
+	 *    streamed output of whole classes.
+	 */
+	public synchronized void setIncrementalStateFile(Path stateFile) {
+		this.incrementalStateFile = stateFile;
+	}
+	
+	/**
+	 * Analyse the given classes and methods and everything they reference,
+	 * and write the result to output.
+	 */
+	public synchronized void run(Path output, Collection<String> classes, Collection<MethodRef> methods) throws IOException {
+		if (incrementalStateFile == null) {
+			Request request = new Request(classes, methods);
+			try (OutputSink sink = request.measure(openOutput(output, request.metrics))) {
+				request.run(sink, null);
+			}
+			request.finish();
+			return;
+		}
+		
+		if (useDOM || reachableMethodsOnly || compressed || sharding != null || format != OutputFormat.XML) {
+			throw new IllegalStateException("incremental runs need uncompressed streamed XML output of whole classes");
+		}
+		Request request = new Request(classes, methods);
+		try {
+			request.previousState = IncrementalState.load(incrementalStateFile, output);
+		} catch (IOException e) {
+			System.err.println("ignoring incremental state: "+e);
+		}
+		if (request.previousState == null) {
+			System.out.println("no usable state from a previous run, analysing everything");
+		}
+		request.newState = new IncrementalState();
+		
+		// the previous output is read while the new one is written
+		Path target = output.resolveSibling(output.getFileName() + ".tmp");
+		boolean moved = false;
+		try {
+			request.positionedSink = new StreamingXMLOutputSink(openStream(target, request.metrics));
+			try (OutputSink sink = request.measure(request.positionedSink);
+				 FileChannel previousOutput = request.previousState != null ? FileChannel.open(output, StandardOpenOption.READ) : null)
+			{
+				request.run(sink, previousOutput);
+			}
+			Files.move(target, output, StandardCopyOption.REPLACE_EXISTING);
+			moved = true;
+		} finally {
+			if (!moved) {
+				// the previous output and state stay as they were
+				Files.deleteIfExists(target);
+			}
+		}
+		request.newState.save(incrementalStateFile, output);
+		request.finish();
+	}
+	
+	/**
+	 * Analyse the given classes and methods and everything they reference,
+	 * and hand the results to sink in a deterministic order. The sink is not
+	 * closed.
+	 */
+	public synchronized void run(OutputSink sink, Collection<String> classes, Collection<MethodRef> methods) throws IOException {
+		if (incrementalStateFile != null) {
+			throw new IllegalStateException("incremental runs need to write to a file");
+		}
+		Request request = new Request(classes, methods);
+		request.run(request.measure(sink), null);
+		request.finish();
+	}
+	
+	/**
+	 * Stop the worker threads and close the class path.
+	 */
+	@Override
+	public synchronized void close() {
+		if (pool != null) {
+			pool.shutdown();
+			pool = null;
+		}
+		try {
+			cp.close();
+		} catch (IOException e) {
+			System.err.println("failed to close class path: "+e);
+		}
+	}
+	
+	/**
+	 * @return a stream to the output file, measured as
+	 *    {@link RunMetrics#OUTPUT_WRITE} if metrics is not null.
+	 */
+	private static OutputStream openStream(Path output, RunMetrics metrics) throws IOException {
+		OutputStream result = Files.newOutputStream(output);
+		return metrics != null ? metrics.measure(result) : result;
+	}
+	
+	private OutputSink openOutput(Path output, RunMetrics metrics) throws IOException {
+		if (sharding != null) {
+			if (useDOM || compressed || format != OutputFormat.XML) {
+				throw new IllegalStateException("only uncompressed streamed XML output can be sharded");
+			}
+			return new ShardedOutputSink(output, sharding, getPool(), MAX_OPEN_SHARDS, 4 * threads);
+		}
+		if (compressed) {
+			if (useDOM || format != OutputFormat.XML) {
+				throw new IllegalStateException("only streamed XML output can be compressed");
+			}
+			return new GzipXMLOutputSink(output, getPool(), BlockGzipOutputStream.DEFAULT_BLOCK_SIZE, 2 * threads);
+		}
+		if (format == OutputFormat.BINARY) {
+			return new BinaryOutputSink(openStream(output, metrics));
+		}
+		if (format == OutputFormat.XML2) {
+			return new CompactXMLOutputSink(openStream(output, metrics));
+		}
+		if (useDOM) {
+			try {
+				return new DOMOutputSink(output);
+			} catch (ParserConfigurationException e) {
+				throw new IOException("failed to create the output document", e);
+			}
+		}
+		return new StreamingXMLOutputSink(openStream(output, metrics));
+	}
+	
+	/**
+	 * @return the ClassReader options for the class files.
+	 */
+	private int getParsingOptions() {
+		int result = 0;
+		if (streamMethods) {
+			// the analyzer computes its own frames
+			result |= ClassReader.SKIP_FRAMES;
+		}
+		if (!lineNumbers) {
+			result |= ClassReader.SKIP_DEBUG;
+		}
+		return result;
+	}
+	
+	private ForkJoinPool getPool() {
+		if (pool == null) {
+			// first in, first out, so the classes are analysed roughly in
+			// the breadth-first order in which they are written
+			pool = new ForkJoinPool(threads, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+		}
+		return pool;
+	}
+	
+	private MethodAnalysis handleMethod(String owner, MethodNode method, AnalysisReport report, RunMetrics metrics) {
+		if (verbose) {
+			System.out.println(method.name + " " + method.desc);
+		}
+		AnalysisContext context = contexts.get();
+		context.setBudget(budget);
+		RunMetrics.Measurement measurement = metrics != null ? metrics.begin() : null;
+		Object event = EVENTS.beginMethodAnalysis();
+		try {
+			MethodAnalysis result = new MethodAnalysis(owner, method, context);
+			if (metrics != null) {
+				metrics.addMethod(result, context, metrics.end(measurement, RunMetrics.ANALYSIS, null));
+			}
+			EVENTS.commitMethodAnalysis(event, owner, method.name, method.desc, method.instructions.size(),
+					result.getDegradation() != null ? 0 : context.getInterpreter().getMergeCount(),
+					result.getDegradation());
+			if (result.getDegradation() != null) {
+				System.out.println("analysis degraded to "+result.getDegradation()+": "+result.getDegradationReason());
+				report.add(new MethodRef(owner, method.name, method.desc), result.getDegradation(), result.getDegradationReason());
+			}
+			return result;
+		} catch (AnalyzerException e) {
+			if (metrics != null) {
+				metrics.end(measurement, RunMetrics.ANALYSIS, owner);
+			}
+			EVENTS.commitMethodAnalysis(event, owner, method.name, method.desc, method.instructions.size(), 0, AnalysisReport.SKIPPED);
+			System.out.println("analysis failed: "+e);
+			if (method.instructions.size() > 0) {
+				// abstract and native methods are expected to fail
+				report.add(new MethodRef(owner, method.name, method.desc), AnalysisReport.SKIPPED, e.getMessage());
+			}
+			return null;
+		}
+	}
+	
+	/**
+	 * @return the degradation of a result, see
+	 *    {@link MethodAnalysis#getDegradation()}.
+	 */
+	private static String getDegradation(MethodResult result) {
+		if (result instanceof RecordedMethod) {
+			return ((RecordedMethod)result).getDegradation();
+		}
+		return ((MethodAnalysis)result).getDegradation();
+	}
+	
+	private static boolean hasDegradedMethods(ClassResult result) {
+		for (MethodResult analysis: result.getMethods()) {
+			if (getDegradation(analysis) != null) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * The analysis of a method shared with the methods with the same code.
+	 */
+	private static class SharedAnalysis {
+		final MethodRef method;
+		/**
+		 * null if the analysis failed.
+		 */
+		final RecordedMethod result;
+		final long nanos;
+		
+		SharedAnalysis(MethodRef method, RecordedMethod result, long nanos) {
+			this.method = method;
+			this.result = result;
+			this.nanos = nanos;
+		}
+	}
+	
+	/**
+	 * A class on its way through the pipeline, see {@link #setPipeline}.
+	 */
+	private static class PendingClass {
+		final String className;
+		final int depth;
+		byte[] sourceClass = null;
+		String cacheKey = null;
+		ClassResult result = null;
+		ClassNode sourceClassNode = null;
+		
+		PendingClass(String className, int depth) {
+			this.className = className;
+			this.depth = depth;
+		}
+	}
+	
+	/**
+	 * The state of a single run.
+	 */
+	private class Request {
+		private final ArrayList<String> classesToHandle;
+		private final ArrayList<MethodRef> methodsToHandle;
+		private final ForkJoinPool pool;
+		private final ClassFrontier frontier = new ClassFrontier();
+		private final HashMap<MethodRef, CompletableFuture<MethodResult>> pendingMethods = new HashMap<>();
+		IncrementalState previousState = null;
+		IncrementalState newState = null;
+		final AnalysisReport report = new AnalysisReport();
+		final RunMetrics metrics = collectMetrics ? new RunMetrics(SLOWEST_COUNT) : null;
+		private final List<SummaryFile> summaries = skipSummarisedJars ? SummaryFile.forJars(cp.getJarFiles()) : new ArrayList<SummaryFile>();
+		/**
+		 * The summarised classes (or, for reachable methods, the methods)
+		 * which were not analysed.
+		 */
+		private final LinkedHashSet<Object> summarised = new LinkedHashSet<>();
+		/**
+		 * The classes (or methods) which were not analysed because they are
+		 * out of scope or too deep.
+		 */
+		private final LinkedHashSet<Object> external = new LinkedHashSet<>();
+		/**
+		 * The analyses by {@link MethodFingerprint}, if deduplicating.
+		 */
+		private final ConcurrentHashMap<String, CompletableFuture<SharedAnalysis>> sharedAnalyses = deduplicate ? new ConcurrentHashMap<>() : null;
+		private final AtomicInteger duplicates = new AtomicInteger();
+		private final AtomicLong duplicateNanos = new AtomicLong();
+		/**
+		 * The sink of incremental runs, without {@link #measure}.
+		 */
+		StreamingXMLOutputSink positionedSink = null;
+		/**
+		 * The stages of the pipeline, if any, see {@link #startPipeline()}.
+		 */
+		private PipelineStage<PendingClass> readStage = null;
+		private PipelineStage<PendingClass> parseStage = null;
+		private PipelineStage<PendingClass> analysisStage = null;
+		private final PipelineStage.Stats outputStats = new PipelineStage.Stats();
+		/**
+		 * A permit for each class which may be analysed ahead of the output;
+		 * this bounds the finished classes waiting to be written.
+		 */
+		private Semaphore inFlight = null;
+		/**
+		 * The classes in the pipeline (or done) which hold a permit.
+		 */
+		private final Set<String> admitted = ConcurrentHashMap.newKeySet();
+		/**
+		 * The classes which were reached without a permit left, in the order
+		 * they were reached; they are admitted as the output releases
+		 * permits.
+		 */
+		private final ConcurrentLinkedQueue<PendingClass> deferred = new ConcurrentLinkedQueue<>();
+		private final Set<String> deferredClasses = ConcurrentHashMap.newKeySet();
+		
+		Request(Collection<String> classes, Collection<MethodRef> methods) {
+			lastReport = report;
+			lastMetrics = metrics;
+			this.classesToHandle = new ArrayList<>(classes);
+			this.methodsToHandle = new ArrayList<>(methods);
+			this.pool = getPool();
+			if (!reachableMethodsOnly) {
+				for (MethodRef method: methods) {
+					classesToHandle.add(method.owner);
+				}
+			}
+		}
+		
+		/**
+		 * @return sink, measured by the metrics of the request (if any), and
+		 *    recording a flush event when it is closed.
+		 */
+		OutputSink measure(OutputSink sink) {
+			final OutputSink target = metrics != null ? metrics.measure(sink) : sink;
+			return new OutputSink() {
+				@Override
+				public void write(MethodResult analysis) throws IOException {
+					target.write(analysis);
+				}
+				
+				@Override
+				public void close() throws IOException {
+					Object event = EVENTS.beginOutputFlush();
+					try {
+						target.close();
+					} finally {
+						EVENTS.commitOutputFlush(event, null, 0);
+					}
+				}
+			};
+		}
+		
+		void finish() {
+			if (metrics != null) {
+				metrics.finish();
+			}
+			String targets = reachableMethodsOnly ? " methods" : " classes";
+			if (!summarised.isEmpty()) {
+				System.out.println(summarised.size()+" summarised"+targets+" not analysed");
+			}
+			if (!external.isEmpty()) {
+				System.out.println(external.size()+" external"+targets+" (out of scope or too deep) not analysed");
+			}
+			if (duplicates.get() > 0) {
+				System.out.format("%d methods with the same code as another method, %.1f ms of analysis saved\n",
+						duplicates.get(), duplicateNanos.get() / 1e6);
+			}
+			if (readStage != null) {
+				System.out.println("pipeline stages (mean/max depth of the queue in front of each, time producers stalled on it):");
+				reportStage(readStage.getName(), readStage.getThreads(), readStage.getCapacity(), readStage.getStats());
+				reportStage(parseStage.getName(), parseStage.getThreads(), parseStage.getCapacity(), parseStage.getStats());
+				reportStage(analysisStage.getName(), analysisStage.getThreads(), analysisStage.getCapacity(), analysisStage.getStats());
+				// the depth of the output is the number of classes analysed
+				// ahead of it
+				reportStage("output", 1, pipeline.maxInFlight, outputStats);
+				if (!deferredClasses.isEmpty()) {
+					System.out.println(deferredClasses.size()+" classes deferred until the output caught up");
+				}
+			}
+		}
+		
+		private void reportStage(String name, int threads, int capacity, PipelineStage.Stats stats) {
+			System.out.format("  %-8s %3d threads, %6d classes, depth %6.1f / %4d of %4d, %6d stalls (%.1f ms), %.1f ms idle\n",
+					name, threads, stats.getItems(), stats.getMeanDepth(), stats.getMaxDepth(), capacity,
+					stats.getStalls(), stats.getStallNanos() / 1e6, stats.getIdleNanos() / 1e6);
+			if (metrics != null) {
+				metrics.addStage(name, threads, capacity, stats);
+			}
+		}
+		
+		/**
+		 * Analyse a method, or take the result of a method with the same code
+		 * if deduplicating.
+		 *
+		 * @return the result, or null if the analysis failed.
+		 */
+		private MethodResult analyse(String owner, MethodNode method) {
+			if (sharedAnalyses == null || method.instructions.size() == 0) {
+				// abstract and native methods have nothing to share
+				return AnalysisSession.this.handleMethod(owner, method, report, metrics);
+			}
+			
+			String fingerprint = MethodFingerprint.of(owner, method);
+			CompletableFuture<SharedAnalysis> future = new CompletableFuture<>();
+			CompletableFuture<SharedAnalysis> shared = sharedAnalyses.putIfAbsent(fingerprint, future);
+			MethodRef ref = new MethodRef(owner, method.name, method.desc);
+			if (shared == null) {
+				// the first method with this code is analysed right away, so
+				// the others never wait for a method which has not started
+				long start = System.nanoTime();
+				try {
+					MethodAnalysis analysis = AnalysisSession.this.handleMethod(owner, method, report, metrics);
+					RecordedMethod result = analysis != null ? RecordedMethod.record(analysis) : null;
+					future.complete(new SharedAnalysis(ref, result, System.nanoTime() - start));
+					return result;
+				} catch (Throwable e) {
+					future.completeExceptionally(e);
+					throw e;
+				}
+			}
+			
+			// duplicates are only counted; generated code can have thousands
+			SharedAnalysis analysis = shared.join();
+			duplicates.incrementAndGet();
+			duplicateNanos.addAndGet(analysis.nanos);
+			if (metrics != null) {
+				metrics.addDuplicate(analysis.nanos);
+			}
+			if (analysis.result == null) {
+				report.add(ref, AnalysisReport.SKIPPED, "analysis of the same code failed: "+analysis.method);
+				return null;
+			}
+			if (analysis.result.getDegradation() != null) {
+				report.add(ref, analysis.result.getDegradation(), analysis.result.getDegradationReason());
+			}
+			return analysis.result.relabel(owner, method.name, (method.access & Opcodes.ACC_STATIC) == 0);
+		}
+		
+		private boolean inScope(String class_name) {
+			return scope == null || scope.matches(class_name);
+		}
+		
+		private boolean isSummarised(String class_name) {
+			for (SummaryFile file: summaries) {
+				if (file.containsClass(class_name)) {
+					return true;
+				}
+			}
+			return false;
+		}
+		
+		private boolean withinDepth(int depth) {
+			return maxDepth < 0 || depth <= maxDepth;
+		}
+		
+		/**
+		 * Record why a target is not analysed.
+		 *
+		 * @param target the referenced class or reachable method.
+		 * @return false if the target is not to be analysed.
+		 */
+		private boolean follows(Object target, String class_name, int depth) {
+			if (!inScope(class_name) || !withinDepth(depth)) {
+				external.add(target);
+				return false;
+			}
+			if (isSummarised(class_name)) {
+				summarised.add(target);
+				return false;
+			}
+			return true;
+		}
+		
+		
+		/**
+		 * @return the class file, measured as {@link RunMetrics#CLASS_LOOKUP}.
+		 */
+		private byte[] readClass(String class_name) {
+			RunMetrics.Measurement measurement = metrics != null ? metrics.begin() : null;
+			Object event = EVENTS.beginClassLoad();
+			byte[] result = cp.readClass(class_name);
+			if (metrics != null) {
+				metrics.end(measurement, RunMetrics.CLASS_LOOKUP, class_name);
+			}
+			if (event != null) {
+				EVENTS.commitClassLoad(event, class_name, cp.getSourceName(class_name), result != null ? result.length : -1);
+			}
+			return result;
+		}
+		
+		void run(OutputSink sink, FileChannel previousOutput) throws IOException {
+			if (reachableMethodsOnly) {
+				if (pipeline != null) {
+					throw new IllegalStateException("reachable methods cannot be analysed in a pipeline");
+				}
+				writeReachableMethods(sink);
+				return;
+			}
+			if (pipeline != null) {
+				if (streamMethods) {
+					throw new IllegalStateException("streamed methods cannot be analysed in a pipeline");
+				}
+				startPipeline();
+			} else {
+				inFlight = new Semaphore(CLASSES_AHEAD_PER_THREAD * threads);
+			}
+			try {
+				for (String class_name: classesToHandle) {
+					enqueueClass(class_name, 0, true);
+				}
+				writeResults(sink, previousOutput);
+			} finally {
+				if (readStage != null) {
+					readStage.close();
+					parseStage.close();
+					analysisStage.close();
+				}
+			}
+		}
+		
+		/**
+		 * Start the stages of the pipeline. A class goes through reading,
+		 * parsing and analysis, or is done after reading if its result is
+		 * known already.
+		 *
+		 * The analysis stage enqueues the referenced classes to the read
+		 * stage, so the read queue has room for all classes which may be in
+		 * flight; otherwise the stages could block each other in a cycle.
+		 * Only the queues in front of parsing and analysis are bounded by
+		 * {@link PipelineConfig#queueCapacity}.
+		 */
+		private void startPipeline() {
+			inFlight = new Semaphore(pipeline.maxInFlight);
+			analysisStage = new PipelineStage<>("analysis", pipeline.analysisThreads, pipeline.queueCapacity, job -> {
+				try {
+					analyseClass(job, false);
+					finishClass(job.className, job.depth, job.result);
+				} catch (Throwable e) {
+					frontier.fail(job.className, e);
+				}
+			});
+			parseStage = new PipelineStage<>("parse", pipeline.parseThreads, pipeline.queueCapacity, job -> {
+				try {
+					parseClass(job);
+					analysisStage.submit(job);
+				} catch (Throwable e) {
+					frontier.fail(job.className, e);
+				}
+			});
+			// one more for the class the output waits for, which needs no
+			// permit
+			readStage = new PipelineStage<>("read", pipeline.readThreads, pipeline.maxInFlight + 1, job -> {
+				try {
+					if (lookupClass(job)) {
+						parseStage.submit(job);
+					} else {
+						finishClass(job.className, job.depth, job.result);
+					}
+				} catch (Throwable e) {
+					frontier.fail(job.className, e);
+				}
+			});
+		}
+		
+		/**
+		 * Analyse a class and, in the background, the classes it references.
+		 * Which referenced classes are written is decided by
+		 * {@link #writeResults}, which also enqueues those which a worker
+		 * reached at a greater depth or held back and left out.
+		 *
+		 * @param depth the number of references from an entry class.
+		 * @param ahead true if the class is not needed by the output yet; it
+		 *    is then only enqueued if it gets a permit, and deferred
+		 *    otherwise.
+		 */
+		private void enqueueClass(final String class_name, final int depth, boolean ahead) {
+			if (!ahead) {
+				if (frontier.claim(class_name)) {
+					start(new PendingClass(class_name, depth));
+				}
+				return;
+			}
+			if (!frontier.isClaimed(class_name) && !admit(class_name, depth) && deferredClasses.add(class_name)) {
+				deferred.add(new PendingClass(class_name, depth));
+			}
+		}
+		
+		/**
+		 * Hand a claimed class to the pipeline or the worker pool.
+		 */
+		private void start(PendingClass job) {
+			if (readStage != null) {
+				readStage.submit(job);
+				return;
+			}
+			pool.execute(() -> {
+				try {
+					finishClass(job.className, job.depth, handleClass(job.className));
+				} catch (Throwable e) {
+					frontier.fail(job.className, e);
+				}
+			});
+		}
+		
+		/**
+		 * Enqueue a class ahead of the output if there is a permit left.
+		 *
+		 * @return false if there was no permit.
+		 */
+		private boolean admit(String class_name, int depth) {
+			if (!inFlight.tryAcquire()) {
+				return false;
+			}
+			if (!frontier.claim(class_name)) {
+				inFlight.release();
+				return true;
+			}
+			admitted.add(class_name);
+			start(new PendingClass(class_name, depth));
+			return true;
+		}
+		
+		/**
+		 * Admit the deferred classes, oldest first, while there are permits.
+		 * Only called by the output, so the head of the queue does not change
+		 * under it.
+		 */
+		private void admitDeferred() {
+			PendingClass next;
+			while ((next = deferred.peek()) != null) {
+				if (!frontier.isClaimed(next.className) && !admit(next.className, next.depth)) {
+					return;
+				}
+				deferred.poll();
+			}
+		}
+		
+		/**
+		 * Enqueue the classes referenced by a finished class and hand it to
+		 * the output.
+		 */
+		private void finishClass(String class_name, int depth, ClassResult result) {
+			for (String referenced: result.getReferencedClasses()) {
+				if (followReferences && withinDepth(depth + 1) && inScope(referenced) && !isSummarised(referenced)) {
+					enqueueClass(referenced, depth + 1, true);
+				}
+			}
+			frontier.complete(class_name, result);
+		}
+		
+		private void enqueueMethod(final MethodRef method) {
+			CompletableFuture<MethodResult> future = new CompletableFuture<>();
+			pendingMethods.put(method, future);
+			pool.execute(() -> {
+				try {
+					future.complete(handleMethod(method));
+				} catch (Throwable e) {
+					future.completeExceptionally(e);
+				}
+			});
+		}
+		
+		private MethodResult handleMethod(MethodRef ref) {
+			byte[] sourceClass = readClass(ref.owner);
+			if (sourceClass == null) {
+				System.err.println("could not open class: "+ref.owner);
+				return null;
+			}
+			
+			String cacheKey = null;
+			if (cache != null) {
+				cacheKey = AnalysisCache.methodKey(AnalysisCache.classKey(sourceClass, getParsingOptions()), ref.name, ref.desc);
+				List<RecordedMethod> cached = cache.load(cacheKey);
+				if (cached != null) {
+					return cached.isEmpty() ? null : cached.get(0);
+				}
+			}
+			
+			// only build the tree for the method we are interested in; ASM skips
+			// the code of all other methods
+			MethodNode[] method = new MethodNode[1];
+			RunMetrics.Measurement measurement = metrics != null ? metrics.begin() : null;
+			new ClassReader(sourceClass).accept(new ClassVisitor(Opcodes.ASM5) {
+				@Override
+				public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+					if (method[0] == null && ref.matches(name, desc)) {
+						method[0] = new MethodNode(Opcodes.ASM5, access, name, desc, signature, exceptions);
+						return method[0];
+					}
+					return null;
+				}
+			}, getParsingOptions());
+			if (metrics != null) {
+				metrics.end(measurement, RunMetrics.PARSE, ref.owner);
+			}
+			if (method[0] == null) {
+				System.err.println("no such method: "+ref);
+				return null;
+			}
+			MethodResult analysis = analyse(ref.owner, method[0]);
+			if (cache == null) {
+				return analysis;
+			}
+			if (analysis != null && getDegradation(analysis) != null) {
+				// may well succeed with another budget
+				return RecordedMethod.record(analysis);
+			}
+			
+			ArrayList<RecordedMethod> recorded = new ArrayList<>();
+			if (analysis != null) {
+				recorded.add(RecordedMethod.record(analysis));
+			}
+			cache.store(cacheKey, recorded);
+			return recorded.isEmpty() ? null : recorded.get(0);
+		}
+		
+		private ClassResult handleClass(String class_name) {
+			PendingClass job = new PendingClass(class_name, 0);
+			if (!lookupClass(job)) {
+				return job.result;
+			}
+			if (streamMethods) {
+				ArrayList<RecordedMethod> recorded = new ArrayList<>();
+				boolean degraded = streamClass(class_name, job.sourceClass, job.result, recorded);
+				if (cache != null && !degraded) {
+					cache.store(job.cacheKey, recorded);
+				}
+				return job.result;
+			}
+			parseClass(job);
+			// methods of large classes are spread over the worker pool as well
+			analyseClass(job, threads > 1);
+			return job.result;
+		}
+		
+		/**
+		 * Read a class file and look for the result of an earlier run.
+		 *
+		 * @return true if the class still has to be analysed; otherwise,
+		 *    the result of job is set already.
+		 */
+		private boolean lookupClass(PendingClass job) {
+			String class_name = job.className;
+			System.out.println("processing "+class_name);
+			
+			byte[] sourceClass = readClass(class_name);
+			if (sourceClass == null) {
+				System.err.println("could not open class: "+class_name);
+				job.result = ClassResult.missing(class_name);
+				return false;
+			}
+			
+			String classHash = null;
+			if (previousState != null || newState != null) {
+				classHash = AnalysisCache.classKey(sourceClass, getParsingOptions());
+				IncrementalState.ClassRecord unchanged = previousState == null ? null : previousState.getUnchanged(class_name, classHash);
+				if (unchanged != null) {
+					System.out.println("unchanged since last run: "+class_name);
+					job.result = ClassResult.reused(unchanged);
+					return false;
+				}
+			}
+			
+			String cacheKey = null;
+			if (cache != null) {
+				cacheKey = classHash != null ? classHash : AnalysisCache.classKey(sourceClass, getParsingOptions());
+				List<RecordedMethod> cached = cache.load(cacheKey);
+				if (cached != null) {
+					ClassResult result = new ClassResult(class_name);
+					result.setClassHash(classHash);
+					for (RecordedMethod method: cached) {
+						result.addMethod(method);
+					}
+					job.result = result;
+					return false;
+				}
+			}
+			
+			job.sourceClass = sourceClass;
+			job.cacheKey = cacheKey;
+			job.result = new ClassResult(class_name);
+			job.result.setClassHash(classHash);
+			return true;
+		}
+		
+		private void parseClass(PendingClass job) {
+			RunMetrics.Measurement measurement = metrics != null ? metrics.begin() : null;
+			ClassNode sourceClassNode = new ClassNode(Opcodes.ASM5);
+			ClassReader sourceClassReader = new ClassReader(job.sourceClass);
+			
+			sourceClassReader.accept(sourceClassNode, getParsingOptions());
+			if (metrics != null) {
+				metrics.end(measurement, RunMetrics.PARSE, job.className);
+			}
+			job.sourceClassNode = sourceClassNode;
+			job.sourceClass = null;
+		}
+		
+		/**
+		 * Analyse the methods of a parsed class into its result, and store it
+		 * in the cache.
+		 *
+		 * @param parallel spread the methods over the worker pool.
+		 */
+		private void analyseClass(PendingClass job, boolean parallel) {
+			ClassNode sourceClassNode = job.sourceClassNode;
+			job.sourceClassNode = null;
+			// the ordered collect keeps the methods in declaration order
+			Stream<MethodNode> methods = ((List<MethodNode>)sourceClassNode.methods).stream();
+			if (parallel) {
+				methods = methods.parallel();
+			}
+			List<MethodResult> analyses = methods
+					.map(method -> analyse(sourceClassNode.name, method))
+					.collect(Collectors.toList());
+			
+			ClassResult result = job.result;
+			ArrayList<RecordedMethod> recorded = new ArrayList<>();
+			boolean degraded = false;
+			for (MethodResult analysis: analyses) {
+				if (analysis == null) {
+					continue;
+				}
+				degraded |= getDegradation(analysis) != null;
+				if (cache != null) {
+					// the recording is much more compact than the analysis, so
+					// use it for the output as well
+					RecordedMethod method = RecordedMethod.record(analysis);
+					recorded.add(method);
+					result.addMethod(method);
+				} else {
+					result.addMethod(analysis);
+				}
+			}
+			if (cache != null && !degraded) {
+				cache.store(job.cacheKey, recorded);
+			}
+		}
+		
+		/**
+		 * Analyse the methods of a class while it is read, see
+		 * {@link AnalysisSession#setStreamMethods(boolean)}. The methods are
+		 * recorded right away, which lets go of their trees.
+		 *
+		 * @return true if any method was degraded.
+		 */
+		private boolean streamClass(String class_name, byte[] sourceClass, ClassResult result, List<RecordedMethod> recorded) {
+			boolean[] degraded = {false};
+			// the time spent analysing, which is not part of the parse time
+			long[] nested = {0, 0};
+			RunMetrics.Measurement measurement = metrics != null ? metrics.begin() : null;
+			new ClassReader(sourceClass).accept(new ClassVisitor(Opcodes.ASM5) {
+				private String owner;
+				
+				@Override
+				public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+					owner = name;
+				}
+				
+				@Override
+				public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+					return new MethodNode(Opcodes.ASM5, access, name, desc, signature, exceptions) {
+						@Override
+						public void visitEnd() {
+							RunMetrics.Measurement analysis = metrics != null ? metrics.begin() : null;
+							addStreamedMethod(analyse(owner, this));
+							if (metrics != null) {
+								long[] elapsed = metrics.elapsed(analysis);
+								nested[0] += elapsed[0];
+								nested[1] += elapsed[1];
+							}
+						}
+					};
+				}
+				
+				private void addStreamedMethod(MethodResult analysis) {
+					if (analysis == null) {
+						return;
+					}
+					degraded[0] |= getDegradation(analysis) != null;
+					RecordedMethod method = RecordedMethod.record(analysis);
+					recorded.add(method);
+					result.addMethod(method);
+				}
+			}, getParsingOptions());
+			if (metrics != null) {
+				long[] elapsed = metrics.elapsed(measurement);
+				metrics.add(RunMetrics.PARSE, elapsed[0] - nested[0], elapsed[1] < 0 ? -1 : elapsed[1] - nested[1], class_name);
+			}
+			return degraded[0];
+		}
+		
+		/**
+		 * Write the results in the order a sequential breadth-first run would
+		 * produce them, independent of the order in which the workers finish.
+		 *
+		 * Each class is handed to the sink as soon as it and all classes before
+		 * it are done, and released afterwards. Since only a limited number of
+		 * classes is analysed ahead (see {@link #inFlight}), the finished
+		 * classes waiting to be written are bounded as well.
+		 *
+		 * In incremental mode, the sink writes to {@link #positionedSink}; the
+		 * output of unchanged classes is copied from the previous output and the
+		 * position of each class is recorded for the next run.
+		 */
+		private void writeResults(OutputSink sink, FileChannel previousOutput) throws IOException {
+			ArrayDeque<String> order = new ArrayDeque<>();
+			// the depth of each class in breadth-first order, which can be
+			// less than the depth at which a worker reached it first
+			HashMap<String, Integer> depths = new HashMap<>();
+			for (String class_name: classesToHandle) {
+				if (depths.putIfAbsent(class_name, 0) == null) {
+					order.add(class_name);
+				}
+			}
+			
+			while (!order.isEmpty()) {
+				String class_name = order.poll();
+				int depth = depths.get(class_name);
+				enqueueClass(class_name, depth, false);
+				ClassResult result = takeClass(class_name);
+				long start = positionedSink != null ? positionedSink.getOffset() : 0;
+				IncrementalState.ClassRecord reused = result.getReused();
+				Object event = EVENTS.beginOutputFlush();
+				if (reused != null) {
+					RunMetrics.Measurement measurement = metrics != null ? metrics.begin() : null;
+					positionedSink.copyFrom(previousOutput, reused.offset, reused.length);
+					if (metrics != null) {
+						metrics.end(measurement, RunMetrics.OUTPUT, null);
+					}
+				} else {
+					for (MethodResult analysis: result.getMethods()) {
+						sink.write(analysis);
+					}
+				}
+				EVENTS.commitOutputFlush(event, result.className, result.getMethods().size());
+				// like the cache, the state leaves out classes which may well
+				// get a full result with another budget
+				if (positionedSink != null && result.getClassHash() != null && !hasDegradedMethods(result)) {
+					newState.add(
+							result.className,
+							result.getClassHash(),
+							start,
+							positionedSink.getOffset() - start,
+							result.getReferencedClasses());
+				}
+				if (!followReferences) {
+					continue;
+				}
+				for (String referenced: result.getReferencedClasses()) {
+					if (!depths.containsKey(referenced) && follows(referenced, referenced, depth + 1)) {
+						depths.put(referenced, depth + 1);
+						order.add(referenced);
+					}
+				}
+			}
+		}
+		
+		/**
+		 * Wait for a class to be done, and give its permit (if it has one)
+		 * to the next class.
+		 */
+		private ClassResult takeClass(String class_name) {
+			outputStats.addDepth(admitted.size());
+			long start = System.nanoTime();
+			ClassResult result = frontier.take(class_name);
+			outputStats.addIdle(System.nanoTime() - start);
+			outputStats.addItem();
+			if (admitted.remove(class_name)) {
+				inFlight.release();
+				admitDeferred();
+			}
+			return result;
+		}
+		
+		/**
+		 * Analyse only the methods reachable from the entry points, in the order
+		 * in which they are discovered.
+		 */
+		private void writeReachableMethods(OutputSink sink) throws IOException {
+			HashSet<String> entryClasses = new HashSet<>(classesToHandle);
+			for (MethodRef method: methodsToHandle) {
+				entryClasses.add(method.owner);
+			}
+			MethodReachability[] holder = new MethodReachability[1];
+			MethodReachability reachability = new MethodReachability(new ClassHierarchy(cp), method -> {
+				if (entryClasses.contains(method.owner) || follows(method, method.owner, holder[0].getDepth(method))) {
+					enqueueMethod(method);
+				}
+			});
+			holder[0] = reachability;
+			for (String class_name: classesToHandle) {
+				reachability.addEntryClass(class_name);
+			}
+			for (MethodRef method: methodsToHandle) {
+				reachability.addEntryMethod(method);
+			}
+			
+			MethodRef next;
+			while ((next = reachability.next()) != null) {
+				CompletableFuture<MethodResult> pending = pendingMethods.remove(next);
+				MethodResult analysis = pending != null ? pending.join() : null;
+				if (analysis == null) {
+					continue;
+				}
+				Object event = EVENTS.beginOutputFlush();
+				sink.write(analysis);
+				EVENTS.commitOutputFlush(event, analysis.getOwner(), 1);
+				reachability.addCallsFrom(analysis);
+			}
+			System.out.println(reachability.size()+" reachable methods");
+		}
+	}
+}
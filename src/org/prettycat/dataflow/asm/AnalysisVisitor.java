@@ -0,0 +1,88 @@
+package org.prettycat.dataflow.asm;
+
+import org.objectweb.asm.Type;
+
+/**
+ * Receives the results of a {@link MethodResult} in document order.
+ *
+ * The calls follow the structure of the {@link XMLProtocol} schema:
+ *
+ * <pre>
+ * visitMethod
+ *   visitDegraded?
+ *   visitParametersStart visitParameter* visitParametersEnd
+ *   visitInstructionsStart
+ *     ( visitInstruction
+ *         visitConstant? visitField?
+ *         ( visitInputsStart input* visitInputsEnd )?
+ *         visitCallTarget?
+ *         ( visitExitsStart visitExit* visitExitsEnd )?
+ *       visitInstructionEnd )*
+ *   visitInstructionsEnd
+ * visitMethodEnd
+ * </pre>
+ *
+ * where an input is one of visitValueOfInstruction, visitValueOfParameter,
+ * visitException, visitUnknown or a visitMergeStart input* visitMergeEnd
+ * group. Instructions and parameters are referred to by their index within
+ * the method; it is up to the visitor to turn them into identifiers.
+ */
+public interface AnalysisVisitor {
+	public void visitMethod(String owner, String name, String desc);
+	
+	/**
+	 * The method was only analysed partially.
+	 * 
+	 * @param level e.g. {@link MethodAnalysis#CFG_ONLY}
+	 * @param reason a human readable explanation
+	 */
+	public void visitDegraded(String level, String reason);
+	
+	public void visitParametersStart();
+	
+	public void visitParameter(int index, Type type);
+	
+	public void visitParametersEnd();
+	
+	public void visitInstructionsStart();
+	
+	public void visitInstruction(int index, int opcode, int lineNumber);
+	
+	/**
+	 * @param value the constant pushed by the instruction; null for
+	 *    ACONST_NULL.
+	 */
+	public void visitConstant(Object value);
+	
+	public void visitField(String owner, String name);
+	
+	public void visitInputsStart();
+	
+	public void visitValueOfInstruction(int index);
+	
+	public void visitValueOfParameter(int index);
+	
+	public void visitMergeStart();
+	
+	public void visitMergeEnd();
+	
+	public void visitException(String descriptor);
+	
+	public void visitUnknown();
+	
+	public void visitInputsEnd();
+	
+	public void visitCallTarget(String owner, String name, String desc);
+	
+	public void visitExitsStart();
+	
+	public void visitExit(int target, boolean exceptional);
+	
+	public void visitExitsEnd();
+	
+	public void visitInstructionEnd();
+	
+	public void visitInstructionsEnd();
+	
+	public void visitMethodEnd();
+}
@@ -0,0 +1,89 @@
+package org.prettycat.dataflow.asm;
+
+/**
+ * Constants of the binary output format, written by {@link BinaryOutputSink}
+ * and read by {@link BinaryReader}.
+ *
+ * It carries the same information as the {@link XMLProtocol} output. A file
+ * is laid out as follows; "varint" is a {@link VarInt}, "string" is the
+ * varint index of an entry of the string table:
+ *
+ * <pre>
+ * file     := MAGIC:int VERSION:byte record* strings index trailer
+ * record   := length:varint owner:string name:string desc:string event* METHOD_END
+ * strings  := count:varint (length:varint utf8-bytes)*
+ * index    := count:varint (owner:string name:string desc:string length:varint)*
+ * trailer  := strings-offset:long index-offset:long MAGIC:int
+ * </pre>
+ *
+ * The record length counts the bytes after the length itself; the index
+ * lists the records in file order, so the offset of each record follows
+ * from the lengths before it. Events are a tag byte followed by their
+ * arguments, in the order of the corresponding {@link AnalysisVisitor}
+ * calls.
+ */
+public final class BinaryFormat {
+	public static final int MAGIC = 0x44464142; // "DFAB"
+	/**
+	 * Version 2 added {@link #DEGRADED}; version 1 files can still be read.
+	 */
+	public static final int VERSION = 2;
+	/**
+	 * Size of the fixed trailer at the end of the file.
+	 */
+	public static final int TRAILER_SIZE = 8 + 8 + 4;
+	
+	/** no arguments */
+	public static final int PARAMETERS_START = 1;
+	/** index:varint type:varint (string index + 1, 0 for none) */
+	public static final int PARAMETER = 2;
+	public static final int PARAMETERS_END = 3;
+	public static final int INSTRUCTIONS_START = 4;
+	/** index:varint opcode:signed-varint line:signed-varint */
+	public static final int INSTRUCTION = 5;
+	/** tag:byte value, see the CONSTANT_* tags */
+	public static final int CONSTANT = 6;
+	/** owner:string name:string */
+	public static final int FIELD = 7;
+	public static final int INPUTS_START = 8;
+	/** index:varint */
+	public static final int VALUE_OF_INSTRUCTION = 9;
+	/** index:varint */
+	public static final int VALUE_OF_PARAMETER = 10;
+	public static final int MERGE_START = 11;
+	public static final int MERGE_END = 12;
+	/** type:string */
+	public static final int EXCEPTION = 13;
+	public static final int UNKNOWN = 14;
+	public static final int INPUTS_END = 15;
+	/** owner:string name:string desc:string */
+	public static final int CALL_TARGET = 16;
+	public static final int EXITS_START = 17;
+	/** (target &lt;&lt; 1 | exceptional):varint */
+	public static final int EXIT = 18;
+	public static final int EXITS_END = 19;
+	public static final int INSTRUCTION_END = 20;
+	public static final int INSTRUCTIONS_END = 21;
+	public static final int METHOD_END = 22;
+	/** level:string reason:string */
+	public static final int DEGRADED = 23;
+	
+	public static final int CONSTANT_NULL = 0;
+	/** signed-varint */
+	public static final int CONSTANT_INTEGER = 1;
+	/** int bits */
+	public static final int CONSTANT_FLOAT = 2;
+	/** long */
+	public static final int CONSTANT_LONG = 3;
+	/** long bits */
+	public static final int CONSTANT_DOUBLE = 4;
+	/** string */
+	public static final int CONSTANT_STRING = 5;
+	/** descriptor:string */
+	public static final int CONSTANT_TYPE = 6;
+	/** tag:byte owner:string name:string desc:string interface:byte */
+	public static final int CONSTANT_HANDLE = 7;
+	
+	private BinaryFormat() {
+	}
+}
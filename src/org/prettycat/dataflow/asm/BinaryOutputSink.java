@@ -0,0 +1,292 @@
+package org.prettycat.dataflow.asm;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Type;
+
+/**
+ * Writes methods in the {@link BinaryFormat}.
+ *
+ * Each method is encoded into a buffer and appended to the output as soon as
+ * it is complete; only the string table and the method index are held until
+ * the sink is closed.
+ */
+public class BinaryOutputSink implements OutputSink, AnalysisVisitor {
+	private final CountingOutputStream counter;
+	private final DataOutputStream out;
+	
+	private final HashMap<String, Integer> stringIndices;
+	private final ArrayList<String> strings;
+	/**
+	 * Owner, name and desc string indices and record length of each method.
+	 */
+	private final ArrayList<int[]> index;
+	
+	private final ByteArrayOutputStream recordBuffer;
+	private final DataOutputStream record;
+	private int[] currentMethod = null;
+	
+	public BinaryOutputSink(OutputStream out) throws IOException {
+		this.counter = new CountingOutputStream(new BufferedOutputStream(out, 65536));
+		this.out = new DataOutputStream(counter);
+		this.stringIndices = new HashMap<String, Integer>();
+		this.strings = new ArrayList<String>();
+		this.index = new ArrayList<int[]>();
+		this.recordBuffer = new ByteArrayOutputStream();
+		this.record = new DataOutputStream(recordBuffer);
+		
+		this.out.writeInt(BinaryFormat.MAGIC);
+		this.out.writeByte(BinaryFormat.VERSION);
+	}
+	
+	public static BinaryOutputSink open(Path output) throws IOException {
+		return new BinaryOutputSink(Files.newOutputStream(output));
+	}
+	
+	private int string(String value) {
+		Integer existing = stringIndices.get(value);
+		if (existing != null) {
+			return existing;
+		}
+		int result = strings.size();
+		strings.add(value);
+		stringIndices.put(value, result);
+		return result;
+	}
+	
+	@Override
+	public void write(MethodResult analysis) throws IOException {
+		try {
+			analysis.accept(this);
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+	
+	@Override
+	public void close() throws IOException {
+		try {
+			long stringsOffset = counter.count;
+			VarInt.writeUnsigned(out, strings.size());
+			for (String value: strings) {
+				byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+				VarInt.writeUnsigned(out, bytes.length);
+				out.write(bytes);
+			}
+			long indexOffset = counter.count;
+			
+			VarInt.writeUnsigned(out, index.size());
+			for (int[] method: index) {
+				for (int value: method) {
+					VarInt.writeUnsigned(out, value);
+				}
+			}
+			out.writeLong(stringsOffset);
+			out.writeLong(indexOffset);
+			out.writeInt(BinaryFormat.MAGIC);
+		} finally {
+			out.close();
+		}
+	}
+	
+	private void event(int event, int... values) {
+		try {
+			record.writeByte(event);
+			for (int value: values) {
+				VarInt.writeUnsigned(record, value);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public void visitMethod(String owner, String name, String desc) {
+		recordBuffer.reset();
+		currentMethod = new int[]{string(owner), string(name), string(desc), 0};
+		try {
+			for (int i = 0; i < 3; ++i) {
+				VarInt.writeUnsigned(record, currentMethod[i]);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public void visitDegraded(String level, String reason) {
+		event(BinaryFormat.DEGRADED, string(level), string(reason));
+	}
+
+	@Override
+	public void visitParametersStart() {
+		event(BinaryFormat.PARAMETERS_START);
+	}
+
+	@Override
+	public void visitParameter(int index, Type type) {
+		event(BinaryFormat.PARAMETER, index, type == null ? 0 : string(type.getDescriptor()) + 1);
+	}
+
+	@Override
+	public void visitParametersEnd() {
+		event(BinaryFormat.PARAMETERS_END);
+	}
+
+	@Override
+	public void visitInstructionsStart() {
+		event(BinaryFormat.INSTRUCTIONS_START);
+	}
+
+	@Override
+	public void visitInstruction(int index, int opcode, int lineNumber) {
+		try {
+			record.writeByte(BinaryFormat.INSTRUCTION);
+			VarInt.writeUnsigned(record, index);
+			VarInt.writeSigned(record, opcode);
+			VarInt.writeSigned(record, lineNumber);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public void visitConstant(Object value) {
+		try {
+			record.writeByte(BinaryFormat.CONSTANT);
+			if (value == null) {
+				record.writeByte(BinaryFormat.CONSTANT_NULL);
+			} else if (value instanceof Integer) {
+				record.writeByte(BinaryFormat.CONSTANT_INTEGER);
+				VarInt.writeSigned(record, (Integer)value);
+			} else if (value instanceof Float) {
+				record.writeByte(BinaryFormat.CONSTANT_FLOAT);
+				record.writeFloat((Float)value);
+			} else if (value instanceof Long) {
+				record.writeByte(BinaryFormat.CONSTANT_LONG);
+				record.writeLong((Long)value);
+			} else if (value instanceof Double) {
+				record.writeByte(BinaryFormat.CONSTANT_DOUBLE);
+				record.writeDouble((Double)value);
+			} else if (value instanceof String) {
+				record.writeByte(BinaryFormat.CONSTANT_STRING);
+				VarInt.writeUnsigned(record, string((String)value));
+			} else if (value instanceof Type) {
+				record.writeByte(BinaryFormat.CONSTANT_TYPE);
+				VarInt.writeUnsigned(record, string(((Type)value).getDescriptor()));
+			} else if (value instanceof Handle) {
+				Handle handle = (Handle)value;
+				record.writeByte(BinaryFormat.CONSTANT_HANDLE);
+				record.writeByte(handle.getTag());
+				VarInt.writeUnsigned(record, string(handle.getOwner()));
+				VarInt.writeUnsigned(record, string(handle.getName()));
+				VarInt.writeUnsigned(record, string(handle.getDesc()));
+				record.writeBoolean(handle.isInterface());
+			} else {
+				throw new IllegalArgumentException("cannot encode constant "+value);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public void visitField(String owner, String name) {
+		event(BinaryFormat.FIELD, string(owner), string(name));
+	}
+
+	@Override
+	public void visitInputsStart() {
+		event(BinaryFormat.INPUTS_START);
+	}
+
+	@Override
+	public void visitValueOfInstruction(int index) {
+		event(BinaryFormat.VALUE_OF_INSTRUCTION, index);
+	}
+
+	@Override
+	public void visitValueOfParameter(int index) {
+		event(BinaryFormat.VALUE_OF_PARAMETER, index);
+	}
+
+	@Override
+	public void visitMergeStart() {
+		event(BinaryFormat.MERGE_START);
+	}
+
+	@Override
+	public void visitMergeEnd() {
+		event(BinaryFormat.MERGE_END);
+	}
+
+	@Override
+	public void visitException(String descriptor) {
+		event(BinaryFormat.EXCEPTION, string(descriptor));
+	}
+
+	@Override
+	public void visitUnknown() {
+		event(BinaryFormat.UNKNOWN);
+	}
+
+	@Override
+	public void visitInputsEnd() {
+		event(BinaryFormat.INPUTS_END);
+	}
+
+	@Override
+	public void visitCallTarget(String owner, String name, String desc) {
+		event(BinaryFormat.CALL_TARGET, string(owner), string(name), string(desc));
+	}
+
+	@Override
+	public void visitExitsStart() {
+		event(BinaryFormat.EXITS_START);
+	}
+
+	@Override
+	public void visitExit(int target, boolean exceptional) {
+		event(BinaryFormat.EXIT, (target << 1) | (exceptional ? 1 : 0));
+	}
+
+	@Override
+	public void visitExitsEnd() {
+		event(BinaryFormat.EXITS_END);
+	}
+
+	@Override
+	public void visitInstructionEnd() {
+		event(BinaryFormat.INSTRUCTION_END);
+	}
+
+	@Override
+	public void visitInstructionsEnd() {
+		event(BinaryFormat.INSTRUCTIONS_END);
+	}
+
+	@Override
+	public void visitMethodEnd() {
+		event(BinaryFormat.METHOD_END);
+		try {
+			VarInt.writeUnsigned(out, recordBuffer.size());
+			recordBuffer.writeTo(out);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		currentMethod[3] = recordBuffer.size();
+		index.add(currentMethod);
+		currentMethod = null;
+	}
+}
@@ -0,0 +1,294 @@
+package org.prettycat.dataflow.asm;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Type;
+
+/**
+ * Reads files in the {@link BinaryFormat}.
+ *
+ * Opening a file only reads its string table and method index; the record
+ * of a single method is read when it is visited, so any method can be
+ * extracted without decoding the ones before it. Methods may be visited
+ * concurrently.
+ */
+public class BinaryReader implements Closeable {
+	private final FileChannel channel;
+	private final String[] strings;
+	private final int[] owners;
+	private final int[] names;
+	private final int[] descs;
+	private final long[] offsets;
+	private final int[] lengths;
+	
+	private BinaryReader(FileChannel channel) throws IOException {
+		this.channel = channel;
+		long size = channel.size();
+		if (size < 5 + BinaryFormat.TRAILER_SIZE) {
+			throw new IOException("file too short for the binary format");
+		}
+		DataInputStream header = read(0, 5);
+		int magic = header.readInt();
+		int version = header.readUnsignedByte();
+		if (magic != BinaryFormat.MAGIC || version < 1 || version > BinaryFormat.VERSION) {
+			throw new IOException("not a binary analysis file (or unsupported version)");
+		}
+		DataInputStream trailer = read(size - BinaryFormat.TRAILER_SIZE, BinaryFormat.TRAILER_SIZE);
+		long stringsOffset = trailer.readLong();
+		long indexOffset = trailer.readLong();
+		if (trailer.readInt() != BinaryFormat.MAGIC || stringsOffset > indexOffset || indexOffset > size - BinaryFormat.TRAILER_SIZE) {
+			throw new IOException("corrupt trailer (incomplete file?)");
+		}
+		
+		DataInputStream in = read(stringsOffset, (int)(indexOffset - stringsOffset));
+		strings = new String[VarInt.readUnsigned(in)];
+		for (int i = 0; i < strings.length; ++i) {
+			byte[] bytes = new byte[VarInt.readUnsigned(in)];
+			in.readFully(bytes);
+			strings[i] = new String(bytes, StandardCharsets.UTF_8);
+		}
+		
+		in = read(indexOffset, (int)(size - BinaryFormat.TRAILER_SIZE - indexOffset));
+		int count = VarInt.readUnsigned(in);
+		owners = new int[count];
+		names = new int[count];
+		descs = new int[count];
+		offsets = new long[count];
+		lengths = new int[count];
+		long offset = 5;
+		for (int i = 0; i < count; ++i) {
+			owners[i] = VarInt.readUnsigned(in);
+			names[i] = VarInt.readUnsigned(in);
+			descs[i] = VarInt.readUnsigned(in);
+			lengths[i] = VarInt.readUnsigned(in);
+			// skip the length prefix of the record
+			offset += 1;
+			for (int length = lengths[i]; (length & ~0x7f) != 0; length >>>= 7) {
+				offset += 1;
+			}
+			offsets[i] = offset;
+			offset += lengths[i];
+		}
+		if (offset != stringsOffset) {
+			throw new IOException("method index does not match the records");
+		}
+	}
+	
+	public static BinaryReader open(Path file) throws IOException {
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+		try {
+			return new BinaryReader(channel);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+	
+	private DataInputStream read(long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new EOFException();
+			}
+		}
+		return new DataInputStream(new ByteArrayInputStream(buffer.array()));
+	}
+	
+	public int getMethodCount() {
+		return offsets.length;
+	}
+	
+	public String getOwner(int method) {
+		return strings[owners[method]];
+	}
+	
+	public String getName(int method) {
+		return strings[names[method]];
+	}
+	
+	public String getDesc(int method) {
+		return strings[descs[method]];
+	}
+	
+	/**
+	 * @return the indices of all methods matching ref, in file order.
+	 */
+	public List<Integer> findMethods(MethodRef ref) {
+		ArrayList<Integer> result = new ArrayList<>();
+		for (int i = 0; i < offsets.length; ++i) {
+			if (getOwner(i).equals(ref.owner) && ref.matches(getName(i), getDesc(i))) {
+				result.add(i);
+			}
+		}
+		return result;
+	}
+	
+	private String string(DataInputStream in) throws IOException {
+		int index = VarInt.readUnsigned(in);
+		if (index >= strings.length) {
+			throw new IOException("invalid string index "+index);
+		}
+		return strings[index];
+	}
+	
+	/**
+	 * Replay the given method to visitor, in the same order in which it was
+	 * written.
+	 */
+	public void accept(int method, AnalysisVisitor visitor) throws IOException {
+		DataInputStream in = read(offsets[method], lengths[method]);
+		visitor.visitMethod(string(in), string(in), string(in));
+		int event;
+		while ((event = in.read()) >= 0) {
+			switch (event) {
+			case BinaryFormat.DEGRADED:
+				visitor.visitDegraded(string(in), string(in));
+				break;
+			case BinaryFormat.PARAMETERS_START:
+				visitor.visitParametersStart();
+				break;
+			case BinaryFormat.PARAMETER:
+				int index = VarInt.readUnsigned(in);
+				int type = VarInt.readUnsigned(in);
+				visitor.visitParameter(index, type == 0 ? null : Type.getType(strings[type - 1]));
+				break;
+			case BinaryFormat.PARAMETERS_END:
+				visitor.visitParametersEnd();
+				break;
+			case BinaryFormat.INSTRUCTIONS_START:
+				visitor.visitInstructionsStart();
+				break;
+			case BinaryFormat.INSTRUCTION:
+				visitor.visitInstruction(VarInt.readUnsigned(in), VarInt.readSigned(in), VarInt.readSigned(in));
+				break;
+			case BinaryFormat.CONSTANT:
+				visitor.visitConstant(readConstant(in));
+				break;
+			case BinaryFormat.FIELD:
+				visitor.visitField(string(in), string(in));
+				break;
+			case BinaryFormat.INPUTS_START:
+				visitor.visitInputsStart();
+				break;
+			case BinaryFormat.VALUE_OF_INSTRUCTION:
+				visitor.visitValueOfInstruction(VarInt.readUnsigned(in));
+				break;
+			case BinaryFormat.VALUE_OF_PARAMETER:
+				visitor.visitValueOfParameter(VarInt.readUnsigned(in));
+				break;
+			case BinaryFormat.MERGE_START:
+				visitor.visitMergeStart();
+				break;
+			case BinaryFormat.MERGE_END:
+				visitor.visitMergeEnd();
+				break;
+			case BinaryFormat.EXCEPTION:
+				visitor.visitException(string(in));
+				break;
+			case BinaryFormat.UNKNOWN:
+				visitor.visitUnknown();
+				break;
+			case BinaryFormat.INPUTS_END:
+				visitor.visitInputsEnd();
+				break;
+			case BinaryFormat.CALL_TARGET:
+				visitor.visitCallTarget(string(in), string(in), string(in));
+				break;
+			case BinaryFormat.EXITS_START:
+				visitor.visitExitsStart();
+				break;
+			case BinaryFormat.EXIT:
+				int exit = VarInt.readUnsigned(in);
+				visitor.visitExit(exit >>> 1, (exit & 1) != 0);
+				break;
+			case BinaryFormat.EXITS_END:
+				visitor.visitExitsEnd();
+				break;
+			case BinaryFormat.INSTRUCTION_END:
+				visitor.visitInstructionEnd();
+				break;
+			case BinaryFormat.INSTRUCTIONS_END:
+				visitor.visitInstructionsEnd();
+				break;
+			case BinaryFormat.METHOD_END:
+				visitor.visitMethodEnd();
+				break;
+			default:
+				throw new IOException("invalid event "+event+" in "+getOwner(method)+"#"+getName(method));
+			}
+		}
+	}
+	
+	private Object readConstant(DataInputStream in) throws IOException {
+		int tag = in.readUnsignedByte();
+		switch (tag) {
+		case BinaryFormat.CONSTANT_NULL:
+			return null;
+		case BinaryFormat.CONSTANT_INTEGER:
+			return VarInt.readSigned(in);
+		case BinaryFormat.CONSTANT_FLOAT:
+			return in.readFloat();
+		case BinaryFormat.CONSTANT_LONG:
+			return in.readLong();
+		case BinaryFormat.CONSTANT_DOUBLE:
+			return in.readDouble();
+		case BinaryFormat.CONSTANT_STRING:
+			return string(in);
+		case BinaryFormat.CONSTANT_TYPE:
+			return Type.getType(string(in));
+		case BinaryFormat.CONSTANT_HANDLE:
+			return new Handle(in.readUnsignedByte(), string(in), string(in), string(in), in.readBoolean());
+		default:
+			throw new IOException("invalid constant tag "+tag);
+		}
+	}
+	
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+	
+	/**
+	 * Convert all methods of a binary file, or only the given ones, back to
+	 * XML.
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.out.println("... BINFILE XMLFILE [CLASS#METHOD ...]");
+			System.exit(1);
+		}
+		try (BinaryReader reader = BinaryReader.open(Paths.get(args[0]));
+			 StreamingXMLOutputSink sink = StreamingXMLOutputSink.open(Paths.get(args[1])))
+		{
+			if (args.length == 2) {
+				for (int i = 0; i < reader.getMethodCount(); ++i) {
+					reader.accept(i, sink);
+				}
+				return;
+			}
+			for (int i = 2; i < args.length; ++i) {
+				MethodRef ref = MethodRef.parse(args[i]);
+				List<Integer> methods = reader.findMethods(ref);
+				if (methods.isEmpty()) {
+					System.err.println("no such method: "+ref);
+				}
+				for (int method: methods) {
+					reader.accept(method, sink);
+				}
+			}
+		}
+	}
+}
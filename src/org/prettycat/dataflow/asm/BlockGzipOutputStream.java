@@ -0,0 +1,223 @@
+package org.prettycat.dataflow.asm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compresses a stream as a sequence of independent gzip members, like pigz.
+ *
+ * The data is cut into blocks which are compressed on an {@link Executor}
+ * while the writer goes on, and written in order. The result is an ordinary
+ * gzip file, but decompression can also start at the beginning of any block
+ * (see {@link #getBlockCount()}).
+ *
+ * Blocks end at the first {@link #boundary()} after they reached the block
+ * size, so that e.g. methods start at the beginning of a block where
+ * possible, and are cut regardless once they reach four times the block
+ * size.
+ */
+public class BlockGzipOutputStream extends OutputStream {
+	public static final int DEFAULT_BLOCK_SIZE = 1 << 20;
+	
+	private final OutputStream out;
+	private final Executor executor;
+	private final int blockSize;
+	private final int maxPending;
+	private final ArrayDeque<CompletableFuture<byte[]>> pending;
+	
+	private byte[] buffer;
+	private int count = 0;
+	private long position = 0;
+	private long compressedPosition = 0;
+	
+	/**
+	 * Uncompressed and compressed offset of each block, interleaved.
+	 */
+	private long[] blocks = new long[64];
+	private int blockCount = 0;
+	private boolean closed = false;
+	
+	public BlockGzipOutputStream(OutputStream out, Executor executor, int blockSize, int maxPending) {
+		this.out = out;
+		this.executor = executor;
+		this.blockSize = blockSize;
+		this.maxPending = maxPending;
+		this.pending = new ArrayDeque<>();
+		this.buffer = new byte[blockSize];
+	}
+	
+	/**
+	 * @return the number of uncompressed bytes written so far.
+	 */
+	public long getPosition() {
+		return position;
+	}
+	
+	/**
+	 * Mark a position at which the current block may end. The block is ended
+	 * here if it reached the block size.
+	 */
+	public void boundary() throws IOException {
+		if (count >= blockSize) {
+			endBlock();
+		}
+	}
+	
+	@Override
+	public void write(int b) throws IOException {
+		reserve(1);
+		buffer[count++] = (byte)b;
+		position += 1;
+	}
+	
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			int n = reserve(len);
+			System.arraycopy(b, off, buffer, count, n);
+			count += n;
+			position += n;
+			off += n;
+			len -= n;
+		}
+	}
+	
+	/**
+	 * Make room for up to n bytes in the current block, ending it if it
+	 * reached the hard limit.
+	 *
+	 * @return the number of bytes which fit.
+	 */
+	private int reserve(int n) throws IOException {
+		final int limit = 4 * blockSize;
+		if (count == limit) {
+			endBlock();
+		}
+		n = Math.min(n, limit - count);
+		if (count + n > buffer.length) {
+			buffer = Arrays.copyOf(buffer, Math.min(Math.max(buffer.length * 2, count + n), limit));
+		}
+		return n;
+	}
+	
+	private void endBlock() throws IOException {
+		if (count == 0) {
+			return;
+		}
+		if (blockCount * 2 == blocks.length) {
+			blocks = Arrays.copyOf(blocks, blocks.length * 2);
+		}
+		blocks[blockCount * 2] = position - count;
+		blockCount += 1;
+		
+		final byte[] data = Arrays.copyOf(buffer, count);
+		count = 0;
+		pending.add(CompletableFuture.supplyAsync(() -> compress(data), executor));
+		writeCompleted(pending.size() > maxPending);
+	}
+	
+	private static byte[] compress(byte[] data) {
+		ByteArrayOutputStream result = new ByteArrayOutputStream(data.length / 4 + 64);
+		try (GZIPOutputStream gz = new GZIPOutputStream(result, 65536)) {
+			gz.write(data);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return result.toByteArray();
+	}
+	
+	/**
+	 * Write the compressed blocks which are done, in order. If wait is set,
+	 * wait for at least the first one.
+	 */
+	private void writeCompleted(boolean wait) throws IOException {
+		while (!pending.isEmpty() && (wait || pending.peek().isDone())) {
+			byte[] member;
+			try {
+				member = pending.poll().join();
+			} catch (CompletionException e) {
+				if (e.getCause() instanceof UncheckedIOException) {
+					throw ((UncheckedIOException)e.getCause()).getCause();
+				}
+				throw e;
+			}
+			int block = blockCount - pending.size() - 1;
+			blocks[block * 2 + 1] = compressedPosition;
+			out.write(member);
+			compressedPosition += member.length;
+			wait = false;
+		}
+	}
+	
+	/**
+	 * Writes the blocks which have been compressed so far; the current block
+	 * is not ended.
+	 */
+	@Override
+	public void flush() throws IOException {
+		writeCompleted(false);
+	}
+	
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			endBlock();
+			while (!pending.isEmpty()) {
+				writeCompleted(true);
+			}
+		} finally {
+			out.close();
+		}
+	}
+	
+	/**
+	 * @return the number of blocks; only complete after {@link #close()}.
+	 */
+	public int getBlockCount() {
+		return blockCount;
+	}
+	
+	/**
+	 * @return the uncompressed offset of the first byte of the block.
+	 */
+	public long getBlockPosition(int block) {
+		return blocks[block * 2];
+	}
+	
+	/**
+	 * @return the offset of the gzip member of the block in the compressed
+	 *    output.
+	 */
+	public long getBlockCompressedPosition(int block) {
+		return blocks[block * 2 + 1];
+	}
+	
+	/**
+	 * @return the block containing the given uncompressed offset.
+	 */
+	public int findBlock(long position) {
+		int lo = 0;
+		int hi = blockCount - 1;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (blocks[mid * 2] <= position) {
+				lo = mid;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return lo;
+	}
+}
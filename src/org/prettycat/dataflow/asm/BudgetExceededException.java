@@ -0,0 +1,29 @@
+package org.prettycat.dataflow.asm;
+
+/**
+ * Thrown when the analysis of a method exceeds its {@link AnalysisBudget}.
+ *
+ * This is unchecked, as it is raised from within the callbacks of the ASM
+ * analyzer.
+ */
+public class BudgetExceededException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+	
+	public static final String INSTRUCTIONS = "instructions";
+	public static final String STEPS = "steps";
+	public static final String TIME = "milliseconds";
+	public static final String MERGE_INPUTS = "merge inputs";
+	
+	/**
+	 * One of {@link #INSTRUCTIONS}, {@link #STEPS}, {@link #TIME} and
+	 * {@link #MERGE_INPUTS}.
+	 */
+	public final String resource;
+	public final long limit;
+	
+	public BudgetExceededException(String resource, long limit) {
+		super("exceeded the budget of "+limit+" "+resource);
+		this.resource = resource;
+		this.limit = limit;
+	}
+}
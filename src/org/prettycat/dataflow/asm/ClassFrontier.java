@@ -0,0 +1,54 @@
+package org.prettycat.dataflow.asm;
+
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Concurrent set of classes which have been scheduled for analysis.
+ *
+ * Workers claim a class exactly once via {@link #claim(String)} and publish
+ * the finished {@link ClassResult} with {@link #complete(String, ClassResult)}.
+ * The writer takes results in its own (deterministic) order with
+ * {@link #take(String)}, blocking until the class has been analysed.
+ */
+public class ClassFrontier {
+	private final Set<String> claimed = ConcurrentHashMap.newKeySet();
+	private final ConcurrentHashMap<String, CompletableFuture<ClassResult>> pending = new ConcurrentHashMap<>();
+	
+	private CompletableFuture<ClassResult> future(String class_name) {
+		return pending.computeIfAbsent(class_name, k -> new CompletableFuture<ClassResult>());
+	}
+	
+	/**
+	 * Claim a class for analysis.
+	 * 
+	 * @return true if the caller is the first to claim the class and must
+	 *    analyse it, false if it has been claimed before.
+	 */
+	public boolean claim(String class_name) {
+		return claimed.add(class_name);
+	}
+	
+	public boolean isClaimed(String class_name) {
+		return claimed.contains(class_name);
+	}
+	
+	public void complete(String class_name, ClassResult result) {
+		future(class_name).complete(result);
+	}
+	
+	public void fail(String class_name, Throwable exc) {
+		future(class_name).completeExceptionally(exc);
+	}
+	
+	/**
+	 * Wait for the result of a claimed class and release it from the
+	 * frontier.
+	 */
+	public ClassResult take(String class_name) {
+		ClassResult result = future(class_name).join();
+		pending.remove(class_name);
+		return result;
+	}
+}
@@ -0,0 +1,216 @@
+package org.prettycat.dataflow.asm;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Lazily loaded index of class headers (super class, interfaces and declared
+ * methods), used to resolve call targets.
+ *
+ * Classes which are not on the class path are treated as having no methods
+ * and no super types. Not thread-safe.
+ */
+public class ClassHierarchy {
+	public static class ClassInfo {
+		public final String name;
+		public final int access;
+		public final String superName;
+		public final List<String> interfaces;
+		/**
+		 * Access flags of the declared methods, keyed by name + desc.
+		 */
+		private final LinkedHashMap<String, Integer> methods;
+		/**
+		 * The class and all its super classes and interfaces, computed on
+		 * first use by {@link ClassHierarchy#getSupertypes(String)}.
+		 */
+		private Set<String> supertypes;
+		
+		ClassInfo(int access, String name, String superName, String[] interfaces) {
+			this.access = access;
+			this.name = name;
+			this.superName = superName;
+			this.interfaces = interfaces == null ? Collections.<String>emptyList() : Arrays.asList(interfaces);
+			this.methods = new LinkedHashMap<String, Integer>();
+		}
+		
+		public boolean declares(String name, String desc) {
+			return methods.containsKey(name + desc);
+		}
+		
+		/**
+		 * @return whether the class declares the method with a body.
+		 */
+		public boolean hasBody(String name, String desc) {
+			Integer access = methods.get(name + desc);
+			return access != null && (access & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE)) == 0;
+		}
+		
+		/**
+		 * @return the name + desc keys of all declared methods, in class file
+		 *    order.
+		 */
+		public Iterable<String> getMethodKeys() {
+			return methods.keySet();
+		}
+		
+		public boolean isInterface() {
+			return (access & Opcodes.ACC_INTERFACE) != 0;
+		}
+	}
+	
+	private final ClassPath cp;
+	private final HashMap<String, ClassInfo> classes;
+	private final HashSet<String> missing;
+	
+	public ClassHierarchy(ClassPath cp) {
+		this.cp = cp;
+		this.classes = new HashMap<String, ClassInfo>();
+		this.missing = new HashSet<String>();
+	}
+	
+	/**
+	 * @return the header of the class or null if it cannot be found on the
+	 *    class path.
+	 */
+	public ClassInfo get(String class_name) {
+		ClassInfo info = classes.get(class_name);
+		if (info != null || missing.contains(class_name)) {
+			return info;
+		}
+		
+		byte[] bytes = class_name.startsWith("[") ? null : cp.readClass(class_name);
+		if (bytes == null) {
+			missing.add(class_name);
+			return null;
+		}
+		
+		ClassInfo[] result = new ClassInfo[1];
+		new ClassReader(bytes).accept(new ClassVisitor(Opcodes.ASM5) {
+			@Override
+			public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+				result[0] = new ClassInfo(access, name, superName, interfaces);
+			}
+			
+			@Override
+			public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+				result[0].methods.put(name + desc, access);
+				return null;
+			}
+		}, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+		
+		classes.put(class_name, result[0]);
+		return result[0];
+	}
+	
+	/**
+	 * @return whether type is a subtype of or equal to supertype, as far as
+	 *    the hierarchy can be loaded.
+	 */
+	public boolean isSubtypeOf(String type, String supertype) {
+		return supertype.equals("java/lang/Object") || getSupertypes(type).contains(supertype);
+	}
+	
+	/**
+	 * @return the type and all its super classes and interfaces, as far as
+	 *    the hierarchy can be loaded, in breadth-first order. The set is
+	 *    computed once per class.
+	 */
+	public Set<String> getSupertypes(String type) {
+		ClassInfo root = get(type);
+		if (root == null) {
+			return Collections.singleton(type);
+		}
+		if (root.supertypes != null) {
+			return root.supertypes;
+		}
+		LinkedHashSet<String> result = new LinkedHashSet<>();
+		ArrayDeque<String> todo = new ArrayDeque<>();
+		result.add(type);
+		todo.add(type);
+		while (!todo.isEmpty()) {
+			ClassInfo info = get(todo.poll());
+			if (info == null) {
+				continue;
+			}
+			if (info.superName != null && result.add(info.superName)) {
+				todo.add(info.superName);
+			}
+			for (String iface: info.interfaces) {
+				if (result.add(iface)) {
+					todo.add(iface);
+				}
+			}
+		}
+		root.supertypes = Collections.unmodifiableSet(result);
+		return root.supertypes;
+	}
+	
+	/**
+	 * Resolve a method reference the way the JVM does for invokestatic and
+	 * invokespecial: search the class and its super classes, then its super
+	 * interfaces.
+	 * 
+	 * @return the class declaring the method, or null if it cannot be
+	 *    resolved.
+	 */
+	public String resolve(String owner, String name, String desc) {
+		return lookup(owner, name, desc, false);
+	}
+	
+	/**
+	 * Select the implementation invoked by a virtual call on an instance of
+	 * the given receiver class.
+	 * 
+	 * @return the class declaring the implementation, or null if there is
+	 *    none (or it cannot be loaded).
+	 */
+	public String dispatch(String receiver, String name, String desc) {
+		return lookup(receiver, name, desc, true);
+	}
+	
+	private String lookup(String owner, String name, String desc, boolean needBody) {
+		ArrayDeque<String> interfaces = new ArrayDeque<>();
+		for (String current = owner; current != null; ) {
+			ClassInfo info = get(current);
+			if (info == null) {
+				break;
+			}
+			if (needBody ? info.hasBody(name, desc) : info.declares(name, desc)) {
+				return current;
+			}
+			interfaces.addAll(info.interfaces);
+			current = info.superName;
+		}
+		
+		// default methods
+		HashSet<String> seen = new HashSet<>();
+		while (!interfaces.isEmpty()) {
+			String current = interfaces.poll();
+			if (!seen.add(current)) {
+				continue;
+			}
+			ClassInfo info = get(current);
+			if (info == null) {
+				continue;
+			}
+			if (needBody ? info.hasBody(name, desc) : info.declares(name, desc)) {
+				return current;
+			}
+			interfaces.addAll(info.interfaces);
+		}
+		return null;
+	}
+}
@@ -1,19 +1,60 @@
 package org.prettycat.dataflow.asm;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
+import java.util.stream.Stream;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
 
-public class ClassPath {
-	private interface ClassSource {
-		public InputStream openClass(String fqcn); 
+/**
+ * Resolves classes against a list of directories and jar files.
+ *
+ * The contents of each source are indexed when it is added, so looking up a
+ * class costs a single hash probe; if a class exists in multiple sources,
+ * the first one added wins. Classes added to a directory after it has been
+ * added to the class path are not found.
+ *
+ * The index of the jar files can be saved with {@link #saveIndex(Path)} and
+ * loaded with {@link #loadIndex(Path)} before adding the jars, in which case
+ * jars whose modification time and size did not change are not scanned
+ * again.
+ *
+ * Closing the class path closes the jar files it opened.
+ */
+public class ClassPath implements Closeable {
+	private static final int INDEX_MAGIC = 0x70634350;
+	private static final int INDEX_VERSION = 1;
+	
+	private interface ClassSource extends Closeable {
+		public List<String> listClasses() throws IOException;
+		
+		/**
+		 * @return the class file or null if the source does not contain it.
+		 */
+		public byte[] readClass(String name) throws IOException;
+		
+		/**
+		 * @return the path of the jar file or directory.
+		 */
+		public String getName();
 	}
 	
 	private class FileSystemClassSource implements ClassSource {
@@ -23,87 +64,364 @@ public class ClassPath {
 			this.root = root.toRealPath();
 		}
 		
-		public InputStream openClass(String fqcn) {
-			String[] parts = fqcn.split("\\.");
-			// System.err.println("looking for "+fqcn+" in "+root.toString());
-			Path path = this.root;
-			for (int i = 0; i < parts.length-1; i++) {
-				path = path.resolve(parts[i]);
+		@Override
+		public String getName() {
+			return root.toString();
+		}
+		
+		public List<String> listClasses() throws IOException {
+			ArrayList<String> result = new ArrayList<String>();
+			try (Stream<Path> files = Files.walk(root)) {
+				files.forEach(path -> {
+					String file_name = path.getFileName().toString();
+					if (file_name.endsWith(".class") && Files.isRegularFile(path)) {
+						String relative = root.relativize(path).toString().replace(File.separatorChar, '/');
+						result.add(relative.substring(0, relative.length() - ".class".length()));
+					}
+				});
 			}
-			path = path.resolve(parts[parts.length-1] + ".class");
-			// System.err.println("final path: "+path);
+			return result;
+		}
+		
+		public byte[] readClass(String name) throws IOException {
 			try {
-				return new FileInputStream(path.toFile());
-			} catch (FileNotFoundException exc) {
+				return Files.readAllBytes(root.resolve(name + ".class"));
+			} catch (NoSuchFileException exc) {
 				// System.err.println("failed to open: "+path);
 				return null;
 			}
 		}
+		
+		@Override
+		public void close() {
+		}
 	}
 	
+	/**
+	 * A jar file, opened on first use. Jars are memory-mapped where
+	 * possible and read through {@link JarFile} otherwise.
+	 */
 	private class JarClassSource implements ClassSource {
-		private final JarFile file;
+		private final File path;
+		private final long lastModified;
+		private final long length;
+		private List<String> classes = null;
+		private volatile boolean opened = false;
+		private MappedJar mapped = null;
+		private JarFile file = null;
 		
 		public JarClassSource(File jarfile) throws IOException {
-			this.file = new JarFile(jarfile);
+			this.path = jarfile.getAbsoluteFile();
+			if (!this.path.isFile()) {
+				throw new FileNotFoundException(this.path.toString());
+			}
+			this.lastModified = this.path.lastModified();
+			this.length = this.path.length();
+		}
+		
+		/**
+		 * @return true if the jar file changed since this source was created.
+		 */
+		public boolean isModified() {
+			return path.lastModified() != lastModified || path.length() != length;
 		}
 		
-		public InputStream openClass(String fqcn) {
-			String[] parts = fqcn.split("\\.");
-			String path = String.join("/", parts) + ".class"; 
+		@Override
+		public String getName() {
+			return path.toString();
+		}
+		
+		private synchronized void open() throws IOException {
+			if (opened) {
+				return;
+			}
+			try {
+				mapped = new MappedJar(path);
+			} catch (ZipException e) {
+				file = new JarFile(path);
+			}
+			opened = true;
+		}
+		
+		public List<String> listClasses() throws IOException {
+			if (classes != null) {
+				return classes;
+			}
+			open();
+			if (mapped != null) {
+				classes = mapped.listClasses();
+				return classes;
+			}
+			classes = new ArrayList<String>();
+			Enumeration<JarEntry> entries = file.entries();
+			while (entries.hasMoreElements()) {
+				String entry_name = entries.nextElement().getName();
+				if (entry_name.endsWith(".class") && !entry_name.startsWith("META-INF/")) {
+					classes.add(entry_name.substring(0, entry_name.length() - ".class".length()));
+				}
+			}
+			return classes;
+		}
+		
+		public byte[] readClass(String name) throws IOException {
+			if (!opened) {
+				open();
+			}
+			if (mapped != null) {
+				return mapped.readClass(name);
+			}
+			
 			// System.err.println("looking for "+path+" in jarfile "+file);
-			ZipEntry entry = this.file.getEntry(path);
+			ZipEntry entry = file.getEntry(name + ".class");
 			if (entry == null) {
 				return null;
 			}
-			try {
-				return this.file.getInputStream(entry);
-			} catch (IOException e) {
-				// System.err.println("failed to open "+path+" from jarfile");
-				return null;
+			try (InputStream in = file.getInputStream(entry)) {
+				if (entry.getSize() < 0) {
+					return readFully(in);
+				}
+				byte[] result = new byte[(int)entry.getSize()];
+				new DataInputStream(in).readFully(result);
+				return result;
+			}
+		}
+		
+		/**
+		 * Close the jar file; it is opened again if a class is read
+		 * afterwards.
+		 */
+		@Override
+		public synchronized void close() throws IOException {
+			opened = false;
+			if (mapped != null) {
+				mapped.close();
+				mapped = null;
+			}
+			if (file != null) {
+				file.close();
+				file = null;
 			}
 		}
 	}
 	
+	private static byte[] readFully(InputStream inputStream) throws IOException {
+		ByteArrayOutputStream result = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int length;
+		while ((length = inputStream.read(buffer)) != -1) {
+		    result.write(buffer, 0, length);
+		}
+		return result.toByteArray();
+	}
+	
+	/**
+	 * Contents of a jar file as recorded in a saved index.
+	 */
+	private static class IndexedJar {
+		final long lastModified;
+		final long length;
+		final List<String> classes;
+		
+		IndexedJar(long lastModified, long length, List<String> classes) {
+			this.lastModified = lastModified;
+			this.length = length;
+			this.classes = classes;
+		}
+	}
+	
 	private final ArrayList<ClassSource> sources;
+	private final HashMap<String, ClassSource> index;
+	private final HashMap<String, IndexedJar> savedIndex;
+	private int reusedJars = 0;
 	
 	public ClassPath() {
 		sources = new ArrayList<ClassSource>();
+		index = new HashMap<String, ClassSource>();
+		savedIndex = new HashMap<String, IndexedJar>();
+	}
+	
+	private void addToIndex(ClassSource source, List<String> classes) {
+		for (String name: classes) {
+			index.putIfAbsent(name, source);
+		}
 	}
 	
 	public void addJarFile(File jarfile) throws IOException {
-		sources.add(new JarClassSource(jarfile));
+		JarClassSource source = new JarClassSource(jarfile);
+		sources.add(source);
+		
+		// with a matching saved listing, the jar is only opened once a
+		// class is read from it
+		IndexedJar saved = savedIndex.get(source.path.getPath());
+		if (saved != null && saved.lastModified == source.path.lastModified() && saved.length == source.path.length()) {
+			source.classes = saved.classes;
+			reusedJars += 1;
+		}
+		addToIndex(source, source.listClasses());
 	}
 	
 	public void addPath(Path root) throws IOException {
-		sources.add(new FileSystemClassSource(root));
+		FileSystemClassSource source = new FileSystemClassSource(root);
+		sources.add(source);
+		addToIndex(source, source.listClasses());
 	}
 	
-	public InputStream openClass(String fqcn) {
+	/**
+	 * Pick up the changes since the class path was set up: directories are
+	 * listed again and jar files which changed are closed and reopened.
+	 * Must not be called while classes are read.
+	 */
+	public void refresh() throws IOException {
+		index.clear();
+		for (int i = 0; i < sources.size(); ++i) {
+			ClassSource source = sources.get(i);
+			if (source instanceof JarClassSource && ((JarClassSource)source).isModified()) {
+				source.close();
+				source = new JarClassSource(((JarClassSource)source).path);
+				sources.set(i, source);
+			}
+			addToIndex(source, source.listClasses());
+		}
+	}
+	
+	/**
+	 * Load a jar index written by {@link #saveIndex(Path)}. Must be called
+	 * before adding jar files to have an effect.
+	 */
+	public void loadIndex(Path file) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION) {
+				throw new IOException("not a class path index (or unsupported version): "+file);
+			}
+			int njars = in.readInt();
+			for (int i = 0; i < njars; ++i) {
+				String path = in.readUTF();
+				long lastModified = in.readLong();
+				long length = in.readLong();
+				int nclasses = in.readInt();
+				ArrayList<String> classes = new ArrayList<String>(nclasses);
+				for (int j = 0; j < nclasses; ++j) {
+					classes.add(in.readUTF());
+				}
+				savedIndex.put(path, new IndexedJar(lastModified, length, classes));
+			}
+		}
+	}
+	
+	/**
+	 * Save the contents of all jar files on the class path.
+	 */
+	public void saveIndex(Path file) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+			out.writeInt(INDEX_MAGIC);
+			out.writeInt(INDEX_VERSION);
+			ArrayList<JarClassSource> jars = new ArrayList<JarClassSource>();
+			for (ClassSource source: sources) {
+				if (source instanceof JarClassSource) {
+					jars.add((JarClassSource)source);
+				}
+			}
+			out.writeInt(jars.size());
+			for (JarClassSource jar: jars) {
+				List<String> classes = jar.listClasses();
+				out.writeUTF(jar.path.getPath());
+				out.writeLong(jar.path.lastModified());
+				out.writeLong(jar.path.length());
+				out.writeInt(classes.size());
+				for (String name: classes) {
+					out.writeUTF(name);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * @return the number of jar files whose contents were taken from a
+	 *    loaded index instead of scanning them.
+	 */
+	public int getReusedJarCount() {
+		return reusedJars;
+	}
+	
+	/**
+	 * @return the jar files on the class path, in class path order.
+	 */
+	public List<File> getJarFiles() {
+		ArrayList<File> result = new ArrayList<File>();
 		for (ClassSource source: sources) {
-			InputStream result = source.openClass(fqcn);
-			if (result != null) {
-				return result;
+			if (source instanceof JarClassSource) {
+				result.add(((JarClassSource)source).path);
 			}
 		}
-		return null;
+		return result;
 	}
 	
+	/**
+	 * @return the internal names of all classes on the class path, sorted.
+	 */
+	public List<String> getClassNames() {
+		ArrayList<String> result = new ArrayList<String>(index.keySet());
+		result.sort(null);
+		return result;
+	}
+	
+	public boolean contains(String fqcn) {
+		return index.containsKey(fqcn.replace('.', '/'));
+	}
+	
+	public InputStream openClass(String fqcn) {
+		byte[] result = readClass(fqcn);
+		if (result == null) {
+			return null;
+		}
+		return new ByteArrayInputStream(result);
+	}
+	
+	/**
+	 * @return the path of the jar file or directory the class is read from,
+	 *    or null if the class cannot be found.
+	 */
+	public String getSourceName(String fqcn) {
+		ClassSource source = index.get(fqcn.replace('.', '/'));
+		return source != null ? source.getName() : null;
+	}
+	
+	/**
+	 * Read a class file with a single read of its exact size. Safe to call
+	 * from multiple threads once the class path has been set up.
+	 * 
+	 * @return the class file or null if the class cannot be found or read.
+	 */
 	public byte[] readClass(String fqcn) {
-		InputStream inputStream = openClass(fqcn);
-		if (inputStream == null) {
+		String name = fqcn.replace('.', '/');
+		ClassSource source = index.get(name);
+		if (source == null) {
 			return null;
 		}
-		ByteArrayOutputStream result = new ByteArrayOutputStream();
-		byte[] buffer = new byte[1024];
-		int length;
 		try {
-			while ((length = inputStream.read(buffer)) != -1) {
-			    result.write(buffer, 0, length);
-			}
+			return source.readClass(name);
 		} catch (IOException e) {
 			return null;
 		}
-		return result.toByteArray();
+	}
+	
+	/**
+	 * Close all jar files. Must not be called while classes are read.
+	 */
+	@Override
+	public void close() throws IOException {
+		IOException failure = null;
+		for (ClassSource source: sources) {
+			try {
+				source.close();
+			} catch (IOException e) {
+				if (failure == null) {
+					failure = e;
+				}
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
 	}
 }
@@ -0,0 +1,79 @@
+package org.prettycat.dataflow.asm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * The finished analyses of all methods of a single class, together with the
+ * classes referenced from those methods.
+ *
+ * The referenced classes are kept in the order in which a sequential run
+ * would have enqueued them, which allows the output to be written in a
+ * deterministic order independent of the worker scheduling.
+ */
+public class ClassResult {
+	public final String className;
+	private final List<MethodResult> methods;
+	private final LinkedHashSet<String> referencedClasses;
+	private String classHash = null;
+	private IncrementalState.ClassRecord reused = null;
+	
+	public ClassResult(String className) {
+		this.className = className;
+		this.methods = new ArrayList<MethodResult>();
+		this.referencedClasses = new LinkedHashSet<String>();
+	}
+	
+	public static ClassResult missing(String className) {
+		return new ClassResult(className);
+	}
+	
+	/**
+	 * @return a result standing in for the unchanged output of the class
+	 *    recorded by an earlier run.
+	 */
+	public static ClassResult reused(IncrementalState.ClassRecord record) {
+		ClassResult result = new ClassResult(record.className);
+		result.classHash = record.hash;
+		result.reused = record;
+		result.referencedClasses.addAll(record.referencedClasses);
+		return result;
+	}
+	
+	public IncrementalState.ClassRecord getReused() {
+		return reused;
+	}
+	
+	/**
+	 * @return the {@link AnalysisCache#classKey(byte[])} of the class file, if
+	 *    it has been computed.
+	 */
+	public String getClassHash() {
+		return classHash;
+	}
+	
+	public void setClassHash(String classHash) {
+		this.classHash = classHash;
+	}
+	
+	public void addMethod(MethodResult analysis) {
+		methods.add(analysis);
+		for (String referenced: analysis.getReferencedMethods()) {
+			referencedClasses.add(getOwnerClass(referenced));
+		}
+	}
+	
+	public static String getOwnerClass(String method) {
+		return method.substring(0, method.lastIndexOf("/"));
+	}
+	
+	public List<MethodResult> getMethods() {
+		return Collections.unmodifiableList(methods);
+	}
+	
+	public Iterable<String> getReferencedClasses() {
+		return Collections.unmodifiableSet(referencedClasses);
+	}
+}
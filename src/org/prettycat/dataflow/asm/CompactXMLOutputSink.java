@@ -0,0 +1,280 @@
+package org.prettycat.dataflow.asm;
+
+import java.io.BufferedWriter;
+import java.io.CharArrayWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.objectweb.asm.Type;
+
+/**
+ * Writes methods in version 2 of the XML protocol
+ * ({@link XMLProtocol#NAMESPACE_V2}).
+ *
+ * Instructions and parameters are identified by their index within the
+ * method, and method, type and field owner names are declared once as
+ * {@code <symbol id="N" value="..."/>} children of the document element and
+ * referred to by their number. Symbols are declared before the first method
+ * which uses them. The values of the symbols are the strings used in version
+ * 1, so the old identifiers can be derived as
+ * {@link MethodAnalysis#getFullyQualifiedInstructionName(String, int)} and
+ * {@link MethodAnalysis#getFullyQualifiedParameterName(String, int)} of the
+ * method symbol and the index.
+ *
+ * <pre>
+ * &lt;symbol id="0" value="java:pkg.Class.method[(I)V]"/&gt;
+ * &lt;symbol id="1" value="java:int"/&gt;
+ * &lt;method symbol="0"&gt;
+ *   &lt;parameters&gt;&lt;parameter id="0" type="1"/&gt;&lt;/parameters&gt;
+ *   &lt;insns&gt;
+ *     &lt;insn id="0" line="3" opcode="21"&gt;
+ *       &lt;inputs&gt;&lt;value-of param="0"/&gt;&lt;/inputs&gt;
+ *       &lt;exits&gt;&lt;exit to="1"/&gt;&lt;/exits&gt;
+ *     &lt;/insn&gt;
+ *     ...
+ * </pre>
+ *
+ * {@code <value-of>} refers to an instruction with {@code insn} or to a
+ * parameter with {@code param}, {@code <exit>} only carries
+ * {@code exceptional="true"} for exception edges, and the {@code owner} of
+ * {@code <field>}, the {@code type} of {@code <exception>} and the
+ * {@code target} of {@code <call-target>} are symbols. Everything else is
+ * the same as in version 1.
+ */
+public class CompactXMLOutputSink implements OutputSink, AnalysisVisitor {
+	private final Writer out;
+	private final XMLElementWriter document;
+	private final HashMap<String, Integer> symbols;
+	private final ArrayList<String> newSymbols;
+	
+	/**
+	 * The current method is written here, so that the symbols it introduces
+	 * can be declared in front of it.
+	 */
+	private final CharArrayWriter methodBuffer;
+	private final XMLElementWriter xml;
+	
+	public CompactXMLOutputSink(Writer out) throws IOException {
+		this.out = out;
+		this.document = new XMLElementWriter(out);
+		this.symbols = new HashMap<String, Integer>();
+		this.newSymbols = new ArrayList<String>();
+		this.methodBuffer = new CharArrayWriter();
+		this.xml = new XMLElementWriter(methodBuffer);
+		out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+		document.startElement("asm");
+		document.attribute("xmlns", XMLProtocol.NAMESPACE_V2);
+	}
+	
+	public CompactXMLOutputSink(OutputStream out) throws IOException {
+		this(new BufferedWriter(new OutputStreamWriter(out, Charset.forName("UTF-8"))));
+	}
+	
+	public static CompactXMLOutputSink open(Path output) throws IOException {
+		return new CompactXMLOutputSink(Files.newOutputStream(output));
+	}
+	
+	@Override
+	public void write(MethodResult analysis) throws IOException {
+		try {
+			analysis.accept(this);
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+	
+	@Override
+	public void close() throws IOException {
+		try {
+			document.endElement();
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		} finally {
+			out.close();
+		}
+	}
+	
+	private int symbol(String value) {
+		Integer id = symbols.get(value);
+		if (id == null) {
+			id = symbols.size();
+			symbols.put(value, id);
+			newSymbols.add(value);
+		}
+		return id;
+	}
+	
+	private void flushMethod() throws IOException {
+		int firstId = symbols.size() - newSymbols.size();
+		for (int i = 0; i < newSymbols.size(); ++i) {
+			document.startElement("symbol");
+			document.attribute("id", firstId + i);
+			document.attribute("value", newSymbols.get(i));
+			document.endElement();
+		}
+		newSymbols.clear();
+		document.completeStartTag();
+		methodBuffer.writeTo(out);
+		methodBuffer.reset();
+	}
+	
+	@Override
+	public void visitMethod(String owner, String name, String desc) {
+		xml.startElement("method");
+		xml.attribute("symbol", symbol(MethodAnalysis.getFullyQualifiedMethodName(owner, name, desc)));
+	}
+	
+	@Override
+	public void visitDegraded(String level, String reason) {
+		xml.startElement("degraded");
+		xml.attribute("level", level);
+		xml.attribute("reason", reason);
+		xml.endElement();
+	}
+	
+	@Override
+	public void visitParametersStart() {
+		xml.startElement("parameters");
+	}
+	
+	@Override
+	public void visitParameter(int index, Type type) {
+		xml.startElement("parameter");
+		xml.attribute("id", index);
+		xml.attribute("type", symbol(MethodAnalysis.getFullyQualifiedTypeName(type)));
+		xml.endElement();
+	}
+	
+	@Override
+	public void visitParametersEnd() {
+		xml.endElement();
+	}
+	
+	@Override
+	public void visitInstructionsStart() {
+		xml.startElement("insns");
+	}
+	
+	@Override
+	public void visitInstruction(int index, int opcode, int lineNumber) {
+		xml.startElement("insn");
+		xml.attribute("id", index);
+		xml.attribute("line", lineNumber);
+		xml.attribute("opcode", opcode);
+	}
+	
+	@Override
+	public void visitConstant(Object value) {
+		xml.attribute("value", XMLProtocol.marshallValue(value));
+	}
+	
+	@Override
+	public void visitField(String owner, String name) {
+		xml.startElement("field");
+		xml.attribute("name", name);
+		xml.attribute("owner", symbol(owner));
+		xml.endElement();
+	}
+	
+	@Override
+	public void visitInputsStart() {
+		xml.startElement("inputs");
+	}
+	
+	@Override
+	public void visitValueOfInstruction(int index) {
+		xml.startElement("value-of");
+		xml.attribute("insn", index);
+		xml.endElement();
+	}
+	
+	@Override
+	public void visitValueOfParameter(int index) {
+		xml.startElement("value-of");
+		xml.attribute("param", index);
+		xml.endElement();
+	}
+	
+	@Override
+	public void visitMergeStart() {
+		xml.startElement("merge");
+	}
+	
+	@Override
+	public void visitMergeEnd() {
+		xml.endElement();
+	}
+	
+	@Override
+	public void visitException(String descriptor) {
+		xml.startElement("exception");
+		xml.attribute("type", symbol(descriptor));
+		xml.endElement();
+	}
+	
+	@Override
+	public void visitUnknown() {
+		xml.startElement("unknown");
+		xml.endElement();
+	}
+	
+	@Override
+	public void visitInputsEnd() {
+		xml.endElement();
+	}
+	
+	@Override
+	public void visitCallTarget(String owner, String name, String desc) {
+		xml.startElement("call-target");
+		xml.attribute("target", symbol(MethodAnalysis.getFullyQualifiedMethodName(owner, name, desc)));
+		xml.endElement();
+	}
+	
+	@Override
+	public void visitExitsStart() {
+		xml.startElement("exits");
+	}
+	
+	@Override
+	public void visitExit(int target, boolean exceptional) {
+		xml.startElement("exit");
+		if (exceptional) {
+			xml.attribute("exceptional", "true");
+		}
+		xml.attribute("to", target);
+		xml.endElement();
+	}
+	
+	@Override
+	public void visitExitsEnd() {
+		xml.endElement();
+	}
+	
+	@Override
+	public void visitInstructionEnd() {
+		xml.endElement();
+	}
+	
+	@Override
+	public void visitInstructionsEnd() {
+		xml.endElement();
+	}
+	
+	@Override
+	public void visitMethodEnd() {
+		xml.endElement();
+		try {
+			flushMethod();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+}
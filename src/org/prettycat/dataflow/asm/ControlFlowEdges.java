@@ -0,0 +1,99 @@
+package org.prettycat.dataflow.asm;
+
+import java.util.Arrays;
+
+/**
+ * The control flow edges of one method, in compressed sparse row form.
+ *
+ * The exits of instruction {@code i} are the edges from {@link #getStart(int)
+ * getStart(i)} (inclusive) to {@link #getEnd(int) getEnd(i)} (exclusive),
+ * ordered by target. Each edge is packed into a single int: the target
+ * instruction index shifted left by one, with the lowest bit set for
+ * exception edges.
+ */
+public class ControlFlowEdges {
+	private final int[] offsets;
+	private final int[] edges;
+	
+	private ControlFlowEdges(int[] offsets, int[] edges) {
+		this.offsets = offsets;
+		this.edges = edges;
+	}
+	
+	/**
+	 * @return edges for instructionCount instructions without any exits.
+	 */
+	public static ControlFlowEdges empty(int instructionCount) {
+		return new ControlFlowEdges(new int[instructionCount + 1], new int[0]);
+	}
+	
+	public int getInstructionCount() {
+		return offsets.length - 1;
+	}
+	
+	public int getEdgeCount() {
+		return edges.length;
+	}
+	
+	public int getStart(int insn) {
+		return offsets[insn];
+	}
+	
+	public int getEnd(int insn) {
+		return offsets[insn + 1];
+	}
+	
+	public boolean hasExits(int insn) {
+		return offsets[insn] != offsets[insn + 1];
+	}
+	
+	public int getTarget(int edge) {
+		return edges[edge] >>> 1;
+	}
+	
+	public boolean isException(int edge) {
+		return (edges[edge] & 1) != 0;
+	}
+	
+	/**
+	 * Collects edges in discovery order; duplicates are dropped by
+	 * {@link #build(int)}.
+	 */
+	public static class Builder {
+		// source in the upper half, packed edge in the lower half, so that
+		// sorting groups the edges by source and orders them by target
+		private long[] pending = new long[16];
+		private int size = 0;
+		
+		public void clear() {
+			size = 0;
+		}
+		
+		public void add(int insn, int successor, boolean exception) {
+			if (size == pending.length) {
+				pending = Arrays.copyOf(pending, size * 2);
+			}
+			pending[size++] = ((long)insn << 32) | ((successor << 1) | (exception ? 1 : 0));
+		}
+		
+		public ControlFlowEdges build(int instructionCount) {
+			long[] sorted = Arrays.copyOf(pending, size);
+			Arrays.sort(sorted);
+			
+			int[] offsets = new int[instructionCount + 1];
+			int[] edges = new int[sorted.length];
+			int count = 0;
+			for (int i = 0; i < sorted.length; ++i) {
+				if (i > 0 && sorted[i] == sorted[i - 1]) {
+					continue;
+				}
+				offsets[(int)(sorted[i] >>> 32) + 1] += 1;
+				edges[count++] = (int)sorted[i];
+			}
+			for (int i = 0; i < instructionCount; ++i) {
+				offsets[i + 1] += offsets[i];
+			}
+			return new ControlFlowEdges(offsets, Arrays.copyOf(edges, count));
+		}
+	}
+}
@@ -0,0 +1,28 @@
+package org.prettycat.dataflow.asm;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Counts the bytes written to the underlying stream.
+ */
+class CountingOutputStream extends FilterOutputStream {
+	long count = 0;
+	
+	CountingOutputStream(OutputStream out) {
+		super(out);
+	}
+	
+	@Override
+	public void write(int b) throws IOException {
+		out.write(b);
+		count += 1;
+	}
+	
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		out.write(b, off, len);
+		count += len;
+	}
+}
@@ -0,0 +1,170 @@
+package org.prettycat.dataflow.asm;
+
+import java.util.ArrayDeque;
+
+import org.objectweb.asm.Type;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Builds the DOM {@code <method>} element for a {@link MethodResult}.
+ */
+public class DOMAnalysisWriter implements AnalysisVisitor {
+	private final Document doc;
+	private final ArrayDeque<Element> stack;
+	private Element methodElement = null;
+	private String instructionPrefix = null;
+	private String parameterPrefix = null;
+	
+	public DOMAnalysisWriter(Document doc) {
+		this.doc = doc;
+		this.stack = new ArrayDeque<Element>();
+	}
+	
+	public Element getMethodElement() {
+		return methodElement;
+	}
+	
+	private void push(Element el) {
+		stack.peek().appendChild(el);
+		stack.push(el);
+	}
+	
+	private void append(Element el) {
+		stack.peek().appendChild(el);
+	}
+
+	@Override
+	public void visitMethod(String owner, String name, String desc) {
+		String fqmn = MethodAnalysis.getFullyQualifiedMethodName(owner, name, desc);
+		instructionPrefix = MethodAnalysis.getInstructionNamePrefix(fqmn);
+		parameterPrefix = MethodAnalysis.getParameterNamePrefix(fqmn);
+		methodElement = XMLProtocol.createMethodElement(doc, fqmn);
+		stack.clear();
+		stack.push(methodElement);
+	}
+
+	@Override
+	public void visitDegraded(String level, String reason) {
+		append(XMLProtocol.createDegradedElement(doc, level, reason));
+	}
+
+	@Override
+	public void visitParametersStart() {
+		push(XMLProtocol.createParametersElement(doc));
+	}
+
+	@Override
+	public void visitParameter(int index, Type type) {
+		append(XMLProtocol.createParameterElement(
+				doc,
+				parameterPrefix + index,
+				MethodAnalysis.getFullyQualifiedTypeName(type)));
+	}
+
+	@Override
+	public void visitParametersEnd() {
+		stack.pop();
+	}
+
+	@Override
+	public void visitInstructionsStart() {
+		push(XMLProtocol.createInstructionsElement(doc));
+	}
+
+	@Override
+	public void visitInstruction(int index, int opcode, int lineNumber) {
+		push(XMLProtocol.createInstructionElement(
+				doc, 
+				opcode, 
+				lineNumber,
+				instructionPrefix + index));
+	}
+
+	@Override
+	public void visitConstant(Object value) {
+		stack.peek().setAttribute("value", XMLProtocol.marshallValue(value));
+	}
+
+	@Override
+	public void visitField(String owner, String name) {
+		append(XMLProtocol.createFieldElement(doc, owner, name));
+	}
+
+	@Override
+	public void visitInputsStart() {
+		push(XMLProtocol.createInputsElement(doc));
+	}
+
+	@Override
+	public void visitValueOfInstruction(int index) {
+		append(XMLProtocol.createValueOfElement(doc, instructionPrefix + index));
+	}
+
+	@Override
+	public void visitValueOfParameter(int index) {
+		append(XMLProtocol.createValueOfElement(doc, parameterPrefix + index));
+	}
+
+	@Override
+	public void visitMergeStart() {
+		push(XMLProtocol.createMergeElement(doc));
+	}
+
+	@Override
+	public void visitMergeEnd() {
+		stack.pop();
+	}
+
+	@Override
+	public void visitException(String descriptor) {
+		append(XMLProtocol.createExceptionElement(doc, descriptor));
+	}
+
+	@Override
+	public void visitUnknown() {
+		append(XMLProtocol.createUnknownElement(doc));
+	}
+
+	@Override
+	public void visitInputsEnd() {
+		stack.pop();
+	}
+
+	@Override
+	public void visitCallTarget(String owner, String name, String desc) {
+		append(XMLProtocol.createCallTargetElement(
+				doc, 
+				MethodAnalysis.getFullyQualifiedMethodName(owner, name, desc)));
+	}
+
+	@Override
+	public void visitExitsStart() {
+		push(XMLProtocol.createExitsElement(doc));
+	}
+
+	@Override
+	public void visitExit(int target, boolean exceptional) {
+		append(XMLProtocol.createExitElement(doc, instructionPrefix + target, exceptional));
+	}
+
+	@Override
+	public void visitExitsEnd() {
+		stack.pop();
+	}
+
+	@Override
+	public void visitInstructionEnd() {
+		stack.pop();
+	}
+
+	@Override
+	public void visitInstructionsEnd() {
+		stack.pop();
+	}
+
+	@Override
+	public void visitMethodEnd() {
+		stack.pop();
+	}
+}
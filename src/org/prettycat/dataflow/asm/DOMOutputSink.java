@@ -0,0 +1,55 @@
+package org.prettycat.dataflow.asm;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.TransformerFactoryConfigurationError;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Collects all methods in a single DOM document which is serialized when the
+ * sink is closed.
+ *
+ * This keeps the whole output in memory; see {@link StreamingXMLOutputSink}
+ * for a writer which does not.
+ */
+public class DOMOutputSink implements OutputSink {
+	private final Path output;
+	private final Document doc;
+	private final Element root;
+	
+	public DOMOutputSink(Path output) throws ParserConfigurationException {
+		this.output = output;
+		this.doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+		this.doc.setXmlStandalone(true);
+		this.root = XMLProtocol.createASMElement(doc);
+		this.doc.appendChild(root);
+	}
+	
+	@Override
+	public void write(MethodResult analysis) {
+		DOMAnalysisWriter writer = new DOMAnalysisWriter(doc);
+		analysis.accept(writer);
+		root.appendChild(writer.getMethodElement());
+	}
+
+	@Override
+	public void close() throws IOException {
+		try (BufferedWriter backend_writer = Files.newBufferedWriter(output, Charset.forName("UTF-8"))) {
+			TransformerFactory.newInstance().newTransformer().transform(new DOMSource(doc), new StreamResult(backend_writer));
+		} catch (TransformerException | TransformerFactoryConfigurationError e) {
+			throw new IOException("failed to serialize document", e);
+		}
+	}
+}
@@ -1,122 +1,29 @@
 package org.prettycat.dataflow.asm;
 
-import java.io.BufferedWriter;
+import java.io.BufferedReader;
 import java.io.IOException;
-import java.nio.charset.Charset;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
 
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.TransformerFactoryConfigurationError;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-
-import org.objectweb.asm.ClassReader;
-import org.objectweb.asm.Opcodes;
-import org.objectweb.asm.tree.ClassNode;
-import org.objectweb.asm.tree.MethodNode;
-import org.objectweb.asm.tree.analysis.AnalyzerException;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-
 public class DataflowAnalyser {
 	
 	final static String CLASS_FILE_DIR = "./bin";
 	final static String CLASS_NAME = "org/prettycat/examples/test/TestClass";
 	final static String EXTRACTION_ANNOTATION = "Lorg/senecade/asm/Extract;";
 	final static boolean EXTRACT_ALL = false;
-	
-	private final static ArrayList<String> classesToHandle = new ArrayList<>();
-	private final static HashSet<String> handledClasses = new HashSet<>();
-	private final static ClassPath cp = new ClassPath();
-	
-	private static void enqueueMethod(final String method) {
-		final String class_name = (method.substring(0, method.lastIndexOf("/")));
-		enqueueClass(class_name);
-	}
-	
-	private static void enqueueClass(final String class_name) {
-		if (handledClasses.contains(class_name)) {
-			return;
-		}
-		if (classesToHandle.contains(class_name)) {
-			return;
-		}
-		classesToHandle.add(class_name);
-	}
-	
-	private static void handleClass(String class_name, Document dest_doc, Element dest_el) {
-		System.out.println("processing "+class_name);
-		if (handledClasses.contains(class_name)) {
-			return;
-		}
-		handledClasses.add(class_name);
-		
-		byte[] sourceClass = cp.readClass(class_name);
-		if (sourceClass == null) {
-			System.err.println("could not open class: "+class_name);
-			return;
-		}
-
-		ClassNode sourceClassNode = new ClassNode(Opcodes.ASM5);
-		ClassReader sourceClassReader = new ClassReader(sourceClass);
-
-		sourceClassReader.accept(sourceClassNode, 0);
-		
-		for (MethodNode method: (List<MethodNode>)sourceClassNode.methods) {
-			System.out.println(method.name + " " + method.desc);
-			
-			try {
-				// methodFlow(sourceClassNode.name, method);
-				MethodAnalysis analysis = new MethodAnalysis(sourceClassNode.name, method);
-				for (String referenced: analysis.getReferencedMethods()) {
-					enqueueMethod(referenced);
-				}
-				dest_el.appendChild(analysis.writeXML(dest_doc));
-			} catch (AnalyzerException e) {
-				System.out.println("analysis failed: "+e);
-			}
-		}
-		
-		
-	}
-	
-	public static void run(Path output) {
-		Document doc;
-		try {
-			doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
-			doc.setXmlStandalone(true);
-			
-			Element root = XMLProtocol.createASMElement(doc);
-			doc.appendChild(root);
-			
-			while (!classesToHandle.isEmpty()) {
-				String next_class = classesToHandle.get(0);
-				classesToHandle.remove(0);
-				
-				handleClass(next_class, doc, root);
-			}
-			
-			try (BufferedWriter backend_writer = Files.newBufferedWriter(output, Charset.forName("UTF-8"))) {
-				TransformerFactory.newInstance().newTransformer().transform(new DOMSource(doc), new StreamResult(backend_writer));
-			} catch (IOException e) {
-				System.err.format("failed to write to %s: %s\n", output, e);
-			}
-		} catch (ParserConfigurationException | TransformerException | TransformerFactoryConfigurationError e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-	}
+	final static int DEFAULT_PIPELINE_QUEUE = 16;
+	final static int DEFAULT_MAX_IN_FLIGHT = 64;
 	
 	private static void printUsage() {
-		System.out.println("... [-p CLASSPATH | --class-path CLASSPATH] [-o OUTFILE | --out-file OUTFILE] -- CLASS ...");
+		System.out.println("... [-p CLASSPATH | --class-path CLASSPATH] [--class-path-index FILE] [-o OUTFILE | --out-file OUTFILE] [-j N | --threads N] [--pipeline R,P,A] [--pipeline-queue N] [--max-in-flight N] [--format FORMAT] [--gzip] [--shards package|class] [--dom] [--stream-methods] [--no-line-numbers] [-v | --verbose] [--dedup-methods] [--reachable-methods] [--include PACKAGE] [--exclude PACKAGE] [--max-depth N] [--max-instructions N] [--max-steps N] [--max-time MS] [--max-merge-inputs N] [--cache DIR] [--incremental STATEFILE] [--metrics FILE] [--skip-summarised-jars] -- CLASS[#METHOD] ...");
+		System.out.println("... [-p CLASSPATH]... --write-summaries JAR ... [OPTIONS]");
+		System.out.println("... --server [OPTIONS]");
 	}
 	
 	private static void printHelp() {
@@ -125,10 +32,87 @@ public class DataflowAnalyser {
 		System.out.println("optional arguments:");
 		System.out.println("   -h, --help                   yours truly.");
 		System.out.println("   -p, --class-path CLASSPATH   add paths to the search path. If the paths ends in .jar, it is added as a jarfile.");
+		System.out.println("   --class-path-index FILE      load the list of classes in each jar from FILE (if it exists) instead of");
+		System.out.println("                                scanning jars which did not change since, and save it afterwards.");
 		System.out.println("   -o, --out-file OUTFILE       set the output file (defaults to ./out.xml)");
+		System.out.println("   -j, --threads N              analyse classes and methods on N worker threads (defaults to 1).");
+		System.out.println("                                The output does not depend on the number of threads.");
+		System.out.println("   --pipeline R,P,A             run the classes through separate stages connected by bounded queues,");
+		System.out.println("                                with R threads reading class files, P threads parsing them and A");
+		System.out.println("                                threads analysing them, while the output is written. The queue depth,");
+		System.out.println("                                stalls and idle time of each stage are reported after the run. -j");
+		System.out.println("                                still applies to --gzip and --shards. Not supported with");
+		System.out.println("                                --stream-methods or --reachable-methods.");
+		System.out.println("   --pipeline-queue N           the capacity of the queues in front of parsing and analysis");
+		System.out.println("                                (defaults to "+DEFAULT_PIPELINE_QUEUE+"). Only with --pipeline.");
+		System.out.println("   --max-in-flight N            analyse at most N classes ahead of the output (defaults to "+DEFAULT_MAX_IN_FLIGHT+"),");
+		System.out.println("                                which bounds the memory if the output is slow. Only with --pipeline.");
+		System.out.println("   --format FORMAT              write the output as xml (the default), xml2 or binary. xml2 uses");
+		System.out.println("                                method-relative ids and declares names once. Binary files can be");
+		System.out.println("                                converted to XML with org.prettycat.dataflow.asm.BinaryReader.");
+		System.out.println("   --gzip                       compress the XML output on the worker threads, as independent gzip");
+		System.out.println("                                members, and write an index of the methods to OUTFILE.idx. Single");
+		System.out.println("                                methods can be extracted with org.prettycat.dataflow.asm.GzipOutputIndex.");
+		System.out.println("   --shards package|class       write one document per package or class into the directory OUTFILE,");
+		System.out.println("                                in parallel, with a manifest.tsv listing the shard, byte range and");
+		System.out.println("                                SHA-256 of each method.");
+		System.out.println("   --dom                        build the whole output as DOM document and serialize it at the end,");
+		System.out.println("                                instead of writing each method as soon as it is analysed.");
+		System.out.println("   --stream-methods             analyse each method while its class is read and drop its tree right");
+		System.out.println("                                away, so memory is bounded by the largest method instead of the");
+		System.out.println("                                largest class. Skips the stack map frames, which are not part of");
+		System.out.println("                                the output then, and changes the indices of later instructions.");
+		System.out.println("   --no-line-numbers            skip the debug information of the class files; the output has no");
+		System.out.println("                                line numbers (-1).");
+		System.out.println("   -v, --verbose                print the name of each method before it is analysed.");
+		System.out.println("   --dedup-methods              analyse methods with the same code (apart from the owner and name,");
+		System.out.println("                                e.g. bridge methods and generated accessors) once, and copy the");
+		System.out.println("                                result to the others. Reports the duplicates and the time saved.");
+		System.out.println("   --reachable-methods          only analyse methods reachable from the given classes or methods,");
+		System.out.println("                                resolving virtual calls against the instantiated classes.");
+		System.out.println("                                By default, all methods of every referenced class are analysed.");
+		System.out.println("   --include PACKAGE            only analyse referenced classes in PACKAGE or its subpackages (e.g.");
+		System.out.println("                                com.example or com/example/**). May be given more than once.");
+		System.out.println("   --exclude PACKAGE            do not analyse referenced classes in PACKAGE or its subpackages. If");
+		System.out.println("                                several patterns match, the longest wins. Calls to classes out of");
+		System.out.println("                                scope are still reported as call targets; entry classes are always");
+		System.out.println("                                analysed.");
+		System.out.println("   --max-depth N                only analyse classes at most N references (with --reachable-methods,");
+		System.out.println("                                methods at most N calls) away from the entry points.");
+		System.out.println("   --max-instructions N         do not analyse methods with more than N instructions; only their");
+		System.out.println("                                call targets are reported.");
+		System.out.println("   --max-steps N                give up the analysis of a method after following N control flow");
+		System.out.println("                                edges, and report the exits read off its instructions instead.");
+		System.out.println("   --max-time MS                the same after MS milliseconds of analysing a method.");
+		System.out.println("   --max-merge-inputs N         the same once the merge values of a method have N inputs in total.");
+		System.out.println("                                Degraded methods are marked with a <degraded> element and listed");
+		System.out.println("                                at the end of the run. All limits are off by default.");
+		System.out.println("   --cache DIR                  reuse method results from earlier runs over identical class files,");
+		System.out.println("                                stored in DIR.");
+		System.out.println("   --incremental STATEFILE      only analyse classes which changed since the run which wrote STATEFILE");
+		System.out.println("                                and OUTFILE, copying the output of all other classes. The state is");
+		System.out.println("                                updated afterwards. Not supported with --dom or --reachable-methods.");
+		System.out.println("   --metrics FILE               write the time and allocation of each phase, percentiles of the");
+		System.out.println("                                per-method counters and the slowest methods and classes to FILE,");
+		System.out.println("                                as JSON.");
+		System.out.println("   --write-summaries JAR        analyse all classes of JAR and write the parameters reaching the");
+		System.out.println("                                returned value, thrown exceptions and written fields, and the calls,");
+		System.out.println("                                of each method to JAR.summaries. May be given more than once, and");
+		System.out.println("                                without classes to analyse.");
+		System.out.println("   --skip-summarised-jars       do not analyse referenced classes from jars on the class path which");
+		System.out.println("                                have up to date JAR.summaries files, like --exclude for the classes");
+		System.out.println("                                of those jars. The summaries are not used or referenced in the");
+		System.out.println("                                output; calls into the jars are reported as plain call targets.");
+		System.out.println("   --server                     serve requests read from stdin, one per line, keeping the jar");
+		System.out.println("                                files, worker threads and results warm between them. Each request");
+		System.out.println("                                is a command line with -p, -o, --format, --reachable-methods and");
+		System.out.println("                                classes; the other options apply to all requests. Each request is");
+		System.out.println("                                answered on stdout with \"ok MILLIS DEGRADED\" or \"error MESSAGE\".");
 		System.out.println();
 		System.out.println("positional arguments:");
-		System.out.println("   CLASS  add a class to analyse");
+		System.out.println("   CLASS          add a class to analyse");
+		System.out.println("   CLASS#METHOD   add a method (all overloads, or a single one if given as NAME(DESC)RET)");
+		System.out.println("                  as entry point; without --reachable-methods, the whole class is added");
 	}
 	
 	private static void failArgument(String message) {
@@ -144,7 +128,20 @@ public class DataflowAnalyser {
 		return (curr < args.length - 1);
 	}
 	
-	private static void addToClassPath(String arg) throws IOException {
+	private static long parseLimit(String arg, String value) {
+		long result = 0;
+		try {
+			result = Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			failArgument("invalid number for "+arg+": "+value);
+		}
+		if (result < 1) {
+			failArgument(arg+" must be at least 1");
+		}
+		return result;
+	}
+	
+	static void addToClassPath(ClassPath cp, String arg) throws IOException {
 		String[] items = arg.split(":");
 		for (String path: items) {
 			if (path.endsWith(".jar")) {
@@ -155,13 +152,48 @@ public class DataflowAnalyser {
 		}
 	}
 	
-	private static void addClassToHandle(String arg) {
-		classesToHandle.add(arg.replace('.', '/'));
+	static void addClassToHandle(List<String> classesToHandle, List<MethodRef> methodsToHandle, String arg) {
+		if (arg.indexOf('#') >= 0) {
+			methodsToHandle.add(MethodRef.parse(arg));
+		} else {
+			classesToHandle.add(arg.replace('.', '/'));
+		}
 	}
 	
 	public static void main(String[] args) throws IOException {
 		int i;
+		AnalysisSession session = new AnalysisSession();
+		ClassPath cp = session.getClassPath();
+		ArrayList<String> classesToHandle = new ArrayList<>();
+		ArrayList<MethodRef> methodsToHandle = new ArrayList<>();
+		boolean useDOM = false;
+		boolean compressed = false;
+		ShardedOutputSink.Granularity sharding = null;
+		OutputFormat format = OutputFormat.XML;
+		boolean reachableMethodsOnly = false;
+		boolean streamMethods = false;
+		boolean lineNumbers = true;
+		boolean verbose = false;
+		boolean deduplicate = false;
+		int maxInstructions = 0;
+		long maxSteps = 0;
+		long maxMillis = 0;
+		long maxMergeInputs = 0;
+		Path incrementalStateFile = null;
+		Path metricsFile = null;
+		Path cacheDir = null;
+		boolean server = false;
+		boolean skipSummarisedJars = false;
+		PackageFilter scope = null;
+		int maxDepth = -1;
+		int[] pipelineThreads = null;
+		int pipelineQueue = DEFAULT_PIPELINE_QUEUE;
+		int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+		boolean pipelineLimits = false;
+		ArrayList<Path> summaryJars = new ArrayList<>();
 		Path outfile = Paths.get("./out.xml");
+		Path classPathIndex = null;
+		ArrayList<String> classPathArgs = new ArrayList<>();
 		for (i = 0; i < args.length; ++i) {
 			String arg = args[i];
 			if (arg.equals("-p") || arg.equals("--class-path")) {
@@ -169,11 +201,14 @@ public class DataflowAnalyser {
 					failArgument("missing argument to "+arg);
 				}
 				i += 1;
-				try {
-					addToClassPath(args[i]);
-				} catch (IOException e) {
-					failArgument("failed to add class path: "+e);
+				classPathArgs.add(args[i]);
+				continue;
+			} else if (arg.equals("--class-path-index")) {
+				if (!canUseNext(args, i)) {
+					failArgument("missing argument to "+arg);
 				}
+				i += 1;
+				classPathIndex = Paths.get(args[i]);
 				continue;
 			} else if (arg.equals("-o") || arg.equals("--out-file")) {
 				if (!canUseNext(args, i)) {
@@ -182,6 +217,181 @@ public class DataflowAnalyser {
 				i += 1;
 				outfile = Paths.get(args[i]);
 				continue;
+			} else if (arg.equals("-j") || arg.equals("--threads")) {
+				if (!canUseNext(args, i)) {
+					failArgument("missing argument to "+arg);
+				}
+				i += 1;
+				int threads = 0;
+				try {
+					threads = Integer.parseInt(args[i]);
+				} catch (NumberFormatException e) {
+					failArgument("invalid number of threads: "+args[i]);
+				}
+				if (threads < 1) {
+					failArgument("number of threads must be at least 1");
+				}
+				session.setThreads(threads);
+				continue;
+			} else if (arg.equals("--pipeline")) {
+				if (!canUseNext(args, i)) {
+					failArgument("missing argument to "+arg);
+				}
+				i += 1;
+				String[] counts = args[i].split(",", -1);
+				if (counts.length != 3) {
+					failArgument(arg+" takes the threads of the read, parse and analysis stages, e.g. 1,2,4");
+				}
+				pipelineThreads = new int[3];
+				for (int j = 0; j < 3; ++j) {
+					pipelineThreads[j] = (int)Math.min(parseLimit(arg, counts[j]), Integer.MAX_VALUE);
+				}
+				continue;
+			} else if (arg.equals("--pipeline-queue") || arg.equals("--max-in-flight")) {
+				if (!canUseNext(args, i)) {
+					failArgument("missing argument to "+arg);
+				}
+				i += 1;
+				int limit = (int)Math.min(parseLimit(arg, args[i]), Integer.MAX_VALUE - 1);
+				pipelineLimits = true;
+				if (arg.equals("--pipeline-queue")) {
+					pipelineQueue = limit;
+				} else {
+					maxInFlight = limit;
+				}
+				continue;
+			} else if (arg.equals("--format")) {
+				if (!canUseNext(args, i)) {
+					failArgument("missing argument to "+arg);
+				}
+				i += 1;
+				if (args[i].equals("xml")) {
+					format = OutputFormat.XML;
+				} else if (args[i].equals("xml2")) {
+					format = OutputFormat.XML2;
+				} else if (args[i].equals("binary")) {
+					format = OutputFormat.BINARY;
+				} else {
+					failArgument("unknown output format: "+args[i]);
+				}
+				continue;
+			} else if (arg.equals("--gzip")) {
+				compressed = true;
+				continue;
+			} else if (arg.equals("--shards")) {
+				if (!canUseNext(args, i)) {
+					failArgument("missing argument to "+arg);
+				}
+				i += 1;
+				if (args[i].equals("package")) {
+					sharding = ShardedOutputSink.Granularity.PACKAGE;
+				} else if (args[i].equals("class")) {
+					sharding = ShardedOutputSink.Granularity.CLASS;
+				} else {
+					failArgument("unknown shard granularity: "+args[i]);
+				}
+				continue;
+			} else if (arg.equals("--dom")) {
+				useDOM = true;
+				continue;
+			} else if (arg.equals("--stream-methods")) {
+				streamMethods = true;
+				continue;
+			} else if (arg.equals("--no-line-numbers")) {
+				lineNumbers = false;
+				continue;
+			} else if (arg.equals("-v") || arg.equals("--verbose")) {
+				verbose = true;
+				continue;
+			} else if (arg.equals("--dedup-methods")) {
+				deduplicate = true;
+				continue;
+			} else if (arg.equals("--cache")) {
+				if (!canUseNext(args, i)) {
+					failArgument("missing argument to "+arg);
+				}
+				i += 1;
+				cacheDir = Paths.get(args[i]);
+				continue;
+			} else if (arg.equals("--write-summaries")) {
+				if (!canUseNext(args, i)) {
+					failArgument("missing argument to "+arg);
+				}
+				i += 1;
+				summaryJars.add(Paths.get(args[i]));
+				continue;
+			} else if (arg.equals("--include") || arg.equals("--exclude")) {
+				if (!canUseNext(args, i)) {
+					failArgument("missing argument to "+arg);
+				}
+				i += 1;
+				if (scope == null) {
+					scope = new PackageFilter();
+				}
+				try {
+					if (arg.equals("--include")) {
+						scope.include(args[i]);
+					} else {
+						scope.exclude(args[i]);
+					}
+				} catch (IllegalArgumentException e) {
+					failArgument(e.getMessage());
+				}
+				continue;
+			} else if (arg.equals("--max-depth")) {
+				if (!canUseNext(args, i)) {
+					failArgument("missing argument to "+arg);
+				}
+				i += 1;
+				try {
+					maxDepth = Integer.parseInt(args[i]);
+				} catch (NumberFormatException e) {
+					failArgument("invalid number for "+arg+": "+args[i]);
+				}
+				if (maxDepth < 0) {
+					failArgument(arg+" must not be negative");
+				}
+				continue;
+			} else if (arg.equals("--skip-summarised-jars")) {
+				skipSummarisedJars = true;
+				continue;
+			} else if (arg.equals("--server")) {
+				server = true;
+				continue;
+			} else if (arg.equals("--incremental")) {
+				if (!canUseNext(args, i)) {
+					failArgument("missing argument to "+arg);
+				}
+				i += 1;
+				incrementalStateFile = Paths.get(args[i]);
+				continue;
+			} else if (arg.equals("--metrics")) {
+				if (!canUseNext(args, i)) {
+					failArgument("missing argument to "+arg);
+				}
+				i += 1;
+				metricsFile = Paths.get(args[i]);
+				continue;
+			} else if (arg.equals("--max-instructions") || arg.equals("--max-steps")
+					|| arg.equals("--max-time") || arg.equals("--max-merge-inputs")) {
+				if (!canUseNext(args, i)) {
+					failArgument("missing argument to "+arg);
+				}
+				i += 1;
+				long limit = parseLimit(arg, args[i]);
+				if (arg.equals("--max-instructions")) {
+					maxInstructions = (int)Math.min(limit, Integer.MAX_VALUE);
+				} else if (arg.equals("--max-steps")) {
+					maxSteps = limit;
+				} else if (arg.equals("--max-time")) {
+					maxMillis = limit;
+				} else {
+					maxMergeInputs = limit;
+				}
+				continue;
+			} else if (arg.equals("--reachable-methods")) {
+				reachableMethodsOnly = true;
+				continue;
 			} else if (arg.equals("-h") || arg.equals("--help")) {
 				printHelp();
 				System.exit(1);
@@ -190,20 +400,134 @@ public class DataflowAnalyser {
 			} else if (arg.startsWith("-")) {
 				failArgument("unrecognized argument: "+arg);
 			} else {
-				addClassToHandle(arg);
+				addClassToHandle(classesToHandle, methodsToHandle, arg);
 			}
 		}
 		
 		// pure positional arguments
 		for (; i < args.length; ++i) {
-			addClassToHandle(args[i]);
+			addClassToHandle(classesToHandle, methodsToHandle, args[i]);
 		}
 		
-		if (classesToHandle.isEmpty()) {
+		if (server) {
+			if (!classesToHandle.isEmpty() || !methodsToHandle.isEmpty() || !classPathArgs.isEmpty()) {
+				failArgument("--server takes the class path and classes with each request");
+			}
+			if (incrementalStateFile != null || metricsFile != null || !summaryJars.isEmpty()) {
+				failArgument("--server cannot be combined with --incremental, --metrics or --write-summaries");
+			}
+		} else if (classesToHandle.isEmpty() && methodsToHandle.isEmpty() && summaryJars.isEmpty()) {
 			failArgument("at least one CLASS must be given on command line.");
 		}
+		if (cacheDir != null || server) {
+			try {
+				session.setCache(new AnalysisCache(cacheDir, server ? AnalysisServer.MEMORY_ENTRIES : 0));
+			} catch (IOException e) {
+				failArgument("failed to open cache: "+e);
+			}
+		}
+		if (incrementalStateFile != null && (useDOM || reachableMethodsOnly)) {
+			failArgument("--incremental cannot be combined with --dom or --reachable-methods");
+		}
+		if (format != OutputFormat.XML && (useDOM || incrementalStateFile != null)) {
+			failArgument("--dom and --incremental are only supported for xml output");
+		}
+		if (compressed && (useDOM || incrementalStateFile != null || format != OutputFormat.XML)) {
+			failArgument("--gzip is only supported for streamed xml output without --incremental");
+		}
+		if (sharding != null && (useDOM || compressed || incrementalStateFile != null || format != OutputFormat.XML)) {
+			failArgument("--shards is only supported for uncompressed streamed xml output without --incremental");
+		}
+		if (pipelineThreads == null && pipelineLimits) {
+			failArgument("--pipeline-queue and --max-in-flight only apply with --pipeline");
+		}
+		if (pipelineThreads != null && (streamMethods || reachableMethodsOnly)) {
+			failArgument("--pipeline cannot be combined with --stream-methods or --reachable-methods");
+		}
+		if (classPathIndex != null && Files.exists(classPathIndex)) {
+			try {
+				cp.loadIndex(classPathIndex);
+			} catch (IOException e) {
+				System.err.println("ignoring class path index: "+e);
+			}
+		}
+		for (String arg: classPathArgs) {
+			try {
+				addToClassPath(cp, arg);
+			} catch (IOException e) {
+				failArgument("failed to add class path: "+e);
+			}
+		}
+		if (classPathIndex != null) {
+			System.out.println("class path index: reused the listings of "+cp.getReusedJarCount()+" jar files");
+			try {
+				cp.saveIndex(classPathIndex);
+			} catch (IOException e) {
+				System.err.println("failed to save class path index: "+e);
+			}
+		}
 		
-		run(outfile);
+		session.setUseDOM(useDOM);
+		session.setFormat(format);
+		session.setCompressed(compressed);
+		session.setSharding(sharding);
+		session.setReachableMethodsOnly(reachableMethodsOnly);
+		session.setStreamMethods(streamMethods);
+		session.setLineNumbers(lineNumbers);
+		session.setVerbose(verbose);
+		session.setDeduplicate(deduplicate);
+		session.setBudget(new AnalysisBudget(maxInstructions, maxSteps, maxMillis, maxMergeInputs));
+		session.setIncrementalStateFile(incrementalStateFile);
+		session.setCollectMetrics(metricsFile != null);
+		session.setSkipSummarisedJars(skipSummarisedJars);
+		session.setScope(scope);
+		session.setMaxDepth(maxDepth);
+		if (pipelineThreads != null) {
+			session.setPipeline(new PipelineConfig(pipelineThreads[0], pipelineThreads[1], pipelineThreads[2], pipelineQueue, maxInFlight));
+		}
+		if (server) {
+			// the diagnostics of the analysis go to stderr, stdout is for the
+			// responses
+			PrintStream responses = System.out;
+			System.setOut(System.err);
+			try (AnalysisServer analysisServer = new AnalysisServer(session, AnalysisServer.MAX_SESSIONS)) {
+				analysisServer.serve(new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8)), responses);
+			} finally {
+				session.close();
+			}
+			return;
+		}
+		for (Path jar: summaryJars) {
+			try {
+				SummaryFile summaries = session.writeSummaries(jar.toFile());
+				System.out.println("wrote "+summaries.getSummaries().size()+" method summaries to "+SummaryFile.getPath(jar.toFile()));
+			} catch (IOException e) {
+				System.err.println("failed to write summaries of "+jar+": "+e);
+			}
+		}
+		try {
+			if (!classesToHandle.isEmpty() || !methodsToHandle.isEmpty()) {
+				session.run(outfile, classesToHandle, methodsToHandle);
+			}
+		} catch (IOException e) {
+			System.err.format("failed to write to %s: %s\n", outfile, e);
+		} finally {
+			session.close();
+		}
+		if (session.getCache() != null) {
+			session.getCache().printStatistics();
+		}
+		if (session.getLastReport() != null && !session.getLastReport().isEmpty()) {
+			session.getLastReport().print(System.out);
+		}
+		if (session.getLastMetrics() != null) {
+			session.getLastMetrics().printSummary();
+			try {
+				session.getLastMetrics().save(metricsFile);
+			} catch (IOException e) {
+				System.err.println("failed to write metrics: "+e);
+			}
+		}
 	}
 
 }
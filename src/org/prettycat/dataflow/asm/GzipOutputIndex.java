@@ -0,0 +1,165 @@
+package org.prettycat.dataflow.asm;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Locates the methods in an output written by {@link GzipXMLOutputSink}.
+ *
+ * The index is a text file with a header line and one tab-separated line
+ * per method:
+ *
+ * <pre>
+ * MEMBER-OFFSET  OFFSET  LENGTH  OWNER  NAME  DESC
+ * </pre>
+ *
+ * To read a method, start decompressing at MEMBER-OFFSET of the compressed
+ * file (the start of a gzip member), skip OFFSET uncompressed bytes and read
+ * LENGTH bytes. The method may continue in the following members.
+ */
+public class GzipOutputIndex {
+	private static final String HEADER = "# dataflow-asm gzip index 1";
+	
+	public static class Entry {
+		public final MethodRef method;
+		public final long memberOffset;
+		public final long offset;
+		public final long length;
+		
+		Entry(MethodRef method, long memberOffset, long offset, long length) {
+			this.method = method;
+			this.memberOffset = memberOffset;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+	
+	private final ArrayList<Entry> entries = new ArrayList<>();
+	
+	/**
+	 * @return the index file belonging to a compressed output file.
+	 */
+	public static Path getIndexFile(Path output) {
+		return output.resolveSibling(output.getFileName() + ".idx");
+	}
+	
+	void add(MethodRef method, long memberOffset, long offset, long length) {
+		entries.add(new Entry(method, memberOffset, offset, length));
+	}
+	
+	public List<Entry> getEntries() {
+		return entries;
+	}
+	
+	public static GzipOutputIndex load(Path file) throws IOException {
+		GzipOutputIndex result = new GzipOutputIndex();
+		try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			if (!HEADER.equals(in.readLine())) {
+				throw new IOException("not a gzip output index (or unsupported version): "+file);
+			}
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] fields = line.split("\t", -1);
+				if (fields.length != 6) {
+					throw new IOException("malformed index line: "+line);
+				}
+				try {
+					result.add(
+							new MethodRef(fields[3], fields[4], fields[5]),
+							Long.parseLong(fields[0]),
+							Long.parseLong(fields[1]),
+							Long.parseLong(fields[2]));
+				} catch (NumberFormatException e) {
+					throw new IOException("malformed index line: "+line);
+				}
+			}
+		}
+		return result;
+	}
+	
+	public void save(Path file) throws IOException {
+		try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+			out.write(HEADER);
+			out.write('\n');
+			for (Entry entry: entries) {
+				out.write(entry.memberOffset+"\t"+entry.offset+"\t"+entry.length+"\t");
+				out.write(entry.method.owner+"\t"+entry.method.name+"\t"+entry.method.desc+"\n");
+			}
+		}
+	}
+	
+	public List<Entry> findMethods(MethodRef ref) {
+		ArrayList<Entry> result = new ArrayList<>();
+		for (Entry entry: entries) {
+			if (entry.method.owner.equals(ref.owner) && ref.matches(entry.method.name, entry.method.desc)) {
+				result.add(entry);
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Decompress the {@code <method>} element of a single method.
+	 */
+	public static byte[] read(FileChannel compressed, Entry entry) throws IOException {
+		compressed.position(entry.memberOffset);
+		InputStream in = new GZIPInputStream(Channels.newInputStream(compressed), 65536);
+		long skip = entry.offset;
+		while (skip > 0) {
+			long n = in.skip(skip);
+			if (n <= 0) {
+				throw new EOFException("compressed output ends before the method "+entry.method);
+			}
+			skip -= n;
+		}
+		byte[] result = new byte[(int)entry.length];
+		int done = 0;
+		while (done < result.length) {
+			int n = in.read(result, done, result.length - done);
+			if (n < 0) {
+				throw new EOFException("compressed output ends within the method "+entry.method);
+			}
+			done += n;
+		}
+		return result;
+	}
+	
+	/**
+	 * Print the given methods of a compressed output to stdout.
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.out.println("... GZFILE CLASS#METHOD ...");
+			System.exit(1);
+		}
+		Path output = Paths.get(args[0]);
+		GzipOutputIndex index = load(getIndexFile(output));
+		try (FileChannel compressed = FileChannel.open(output, StandardOpenOption.READ)) {
+			for (int i = 1; i < args.length; ++i) {
+				MethodRef ref = MethodRef.parse(args[i]);
+				List<Entry> methods = index.findMethods(ref);
+				if (methods.isEmpty()) {
+					System.err.println("no such method: "+ref);
+				}
+				for (Entry entry: methods) {
+					System.out.write(read(compressed, entry));
+					System.out.println();
+				}
+			}
+		}
+		System.out.flush();
+	}
+}
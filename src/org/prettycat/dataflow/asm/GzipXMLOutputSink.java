@@ -0,0 +1,63 @@
+package org.prettycat.dataflow.asm;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+
+/**
+ * Writes the streamed XML output compressed with a
+ * {@link BlockGzipOutputStream}, and a {@link GzipOutputIndex} of the
+ * methods next to it.
+ */
+public class GzipXMLOutputSink implements OutputSink {
+	private final Path indexFile;
+	private final BlockGzipOutputStream compressed;
+	private final StreamingXMLOutputSink xml;
+	private final ArrayList<MethodRef> methods;
+	
+	/**
+	 * Uncompressed start and length of each method, interleaved.
+	 */
+	private long[] ranges = new long[256];
+	
+	public GzipXMLOutputSink(Path output, Executor executor, int blockSize, int maxPending) throws IOException {
+		this.indexFile = GzipOutputIndex.getIndexFile(output);
+		this.compressed = new BlockGzipOutputStream(Files.newOutputStream(output), executor, blockSize, maxPending);
+		this.xml = new StreamingXMLOutputSink(compressed);
+		this.methods = new ArrayList<>();
+	}
+	
+	@Override
+	public void write(MethodResult analysis) throws IOException {
+		long start = xml.getOffset();
+		compressed.boundary();
+		xml.write(analysis);
+		
+		int i = methods.size();
+		if (i * 2 == ranges.length) {
+			ranges = Arrays.copyOf(ranges, ranges.length * 2);
+		}
+		ranges[i * 2] = start;
+		ranges[i * 2 + 1] = xml.getOffset() - start;
+		methods.add(new MethodRef(analysis.getOwner(), analysis.getName(), analysis.getDesc()));
+	}
+	
+	@Override
+	public void close() throws IOException {
+		xml.close();
+		GzipOutputIndex index = new GzipOutputIndex();
+		for (int i = 0; i < methods.size(); ++i) {
+			long start = ranges[i * 2];
+			int block = compressed.findBlock(start);
+			index.add(
+					methods.get(i),
+					compressed.getBlockCompressedPosition(block),
+					start - compressed.getBlockPosition(block),
+					ranges[i * 2 + 1]);
+		}
+		index.save(indexFile);
+	}
+}
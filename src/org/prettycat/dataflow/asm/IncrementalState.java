@@ -0,0 +1,133 @@
+package org.prettycat.dataflow.asm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Records, for each class of an output file, the hash of the class file it
+ * was computed from, the byte range its methods occupy in the output and
+ * the classes it references.
+ *
+ * An incremental run uses this to copy the output of unchanged classes
+ * verbatim and to follow their references without analysing them again.
+ */
+public class IncrementalState {
+	private static final int MAGIC = 0x70634953;
+	private static final int VERSION = 1;
+	
+	public static class ClassRecord {
+		public final String className;
+		public final String hash;
+		public final long offset;
+		public final long length;
+		public final List<String> referencedClasses;
+		
+		ClassRecord(String className, String hash, long offset, long length, List<String> referencedClasses) {
+			this.className = className;
+			this.hash = hash;
+			this.offset = offset;
+			this.length = length;
+			this.referencedClasses = referencedClasses;
+		}
+	}
+	
+	private final LinkedHashMap<String, ClassRecord> classes;
+	private long outputSize = -1;
+	private long outputLastModified = -1;
+	
+	public IncrementalState() {
+		this.classes = new LinkedHashMap<String, ClassRecord>();
+	}
+	
+	/**
+	 * Load the state, if it matches the given (previous) output file.
+	 * 
+	 * @return the state, or null if the file does not exist or the output
+	 *    has been modified since the state was saved.
+	 */
+	public static IncrementalState load(Path file, Path output) throws IOException {
+		if (!Files.exists(file) || !Files.exists(output)) {
+			return null;
+		}
+		IncrementalState result = new IncrementalState();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException("not an incremental state file (or unsupported version): "+file);
+			}
+			if (!in.readUTF().equals(AnalysisCache.ANALYSER_VERSION)) {
+				return null;
+			}
+			result.outputSize = in.readLong();
+			result.outputLastModified = in.readLong();
+			int nclasses = VarInt.readUnsigned(in);
+			for (int i = 0; i < nclasses; ++i) {
+				String className = in.readUTF();
+				String hash = in.readUTF();
+				long offset = in.readLong();
+				long length = in.readLong();
+				int nrefs = VarInt.readUnsigned(in);
+				ArrayList<String> refs = new ArrayList<String>(nrefs);
+				for (int j = 0; j < nrefs; ++j) {
+					refs.add(in.readUTF());
+				}
+				result.classes.put(className, new ClassRecord(className, hash, offset, length, Collections.unmodifiableList(refs)));
+			}
+		}
+		if (Files.size(output) != result.outputSize || Files.getLastModifiedTime(output).toMillis() != result.outputLastModified) {
+			return null;
+		}
+		return result;
+	}
+	
+	/**
+	 * Save the state for the given output file, which must be complete.
+	 */
+	public void save(Path file, Path output) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeUTF(AnalysisCache.ANALYSER_VERSION);
+			out.writeLong(Files.size(output));
+			out.writeLong(Files.getLastModifiedTime(output).toMillis());
+			VarInt.writeUnsigned(out, classes.size());
+			for (ClassRecord record: classes.values()) {
+				out.writeUTF(record.className);
+				out.writeUTF(record.hash);
+				out.writeLong(record.offset);
+				out.writeLong(record.length);
+				VarInt.writeUnsigned(out, record.referencedClasses.size());
+				for (String ref: record.referencedClasses) {
+					out.writeUTF(ref);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * @return the record of the class, if its class file had the given hash.
+	 */
+	public ClassRecord getUnchanged(String className, String hash) {
+		ClassRecord record = classes.get(className);
+		if (record == null || !record.hash.equals(hash)) {
+			return null;
+		}
+		return record;
+	}
+	
+	public void add(String className, String hash, long offset, long length, Iterable<String> referencedClasses) {
+		ArrayList<String> refs = new ArrayList<String>();
+		for (String ref: referencedClasses) {
+			refs.add(ref);
+		}
+		classes.put(className, new ClassRecord(className, hash, offset, length, Collections.unmodifiableList(refs)));
+	}
+}
@@ -0,0 +1,239 @@
+package org.prettycat.dataflow.asm;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Read-only view of the class files in a jar, backed by a memory mapping of
+ * the whole file.
+ *
+ * The central directory is parsed once; afterwards, reading a class only
+ * touches the mapping, so any number of threads can read concurrently
+ * without the locking done by {@link java.util.jar.JarFile}. Stored entries
+ * are copied straight out of the mapping, deflated entries are inflated
+ * directly into an array of the exact uncompressed size.
+ *
+ * Zip64 archives, encrypted entries and jars larger than 2 GiB are not
+ * supported; the constructor throws a {@link ZipException} for those. All
+ * offsets and sizes are checked against the size of the file, so corrupt
+ * jars fail with a {@link ZipException} as well.
+ *
+ * {@link #close()} drops the mapping, which is released once it has been
+ * garbage collected; Java offers no way to unmap it right away.
+ */
+public class MappedJar implements Closeable {
+	private static final int EOCD_SIGNATURE = 0x06054b50;
+	private static final int EOCD_SIZE = 22;
+	private static final int CEN_SIGNATURE = 0x02014b50;
+	private static final int CEN_SIZE = 46;
+	private static final int LOC_SIGNATURE = 0x04034b50;
+	private static final int LOC_SIZE = 30;
+	
+	private static final int METHOD_STORED = 0;
+	private static final int METHOD_DEFLATED = 8;
+	/**
+	 * Deflate cannot expand its input by more than this factor, which bounds
+	 * the size of the array a class is inflated into.
+	 */
+	private static final long MAX_DEFLATE_RATIO = 1032;
+	
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(() -> new Inflater(true));
+	
+	private static class Entry {
+		final int method;
+		final int compressedSize;
+		final int size;
+		final int localHeaderOffset;
+		
+		Entry(int method, int compressedSize, int size, int localHeaderOffset) {
+			this.method = method;
+			this.compressedSize = compressedSize;
+			this.size = size;
+			this.localHeaderOffset = localHeaderOffset;
+		}
+	}
+	
+	private final File path;
+	private MappedByteBuffer buffer;
+	/**
+	 * Class file entries, keyed by internal class name.
+	 */
+	private final LinkedHashMap<String, Entry> classes;
+	
+	public MappedJar(File path) throws IOException {
+		this.path = path;
+		try (FileChannel channel = FileChannel.open(path.toPath(), StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new ZipException("jar too large to be mapped: "+path);
+			}
+			this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		this.buffer.order(ByteOrder.LITTLE_ENDIAN);
+		this.classes = new LinkedHashMap<String, Entry>();
+		readCentralDirectory();
+	}
+	
+	private int findEndOfCentralDirectory() throws ZipException {
+		int limit = Math.max(0, buffer.limit() - EOCD_SIZE - 0xffff);
+		for (int pos = buffer.limit() - EOCD_SIZE; pos >= limit; --pos) {
+			if (buffer.getInt(pos) == EOCD_SIGNATURE) {
+				return pos;
+			}
+		}
+		throw new ZipException("no end of central directory found: "+path);
+	}
+	
+	private void readCentralDirectory() throws ZipException {
+		int eocd = findEndOfCentralDirectory();
+		int nentries = buffer.getShort(eocd + 10) & 0xffff;
+		long offset = buffer.getInt(eocd + 16) & 0xffffffffL;
+		if (nentries == 0xffff || offset == 0xffffffffL) {
+			throw new ZipException("zip64 archives are not supported: "+path);
+		}
+		checkBounds(buffer, offset, 0, "central directory");
+		
+		int pos = (int)offset;
+		for (int i = 0; i < nentries; ++i) {
+			checkBounds(buffer, pos, CEN_SIZE, "central directory entry");
+			if (buffer.getInt(pos) != CEN_SIGNATURE) {
+				throw new ZipException("invalid central directory entry: "+path);
+			}
+			int flags = buffer.getShort(pos + 8) & 0xffff;
+			int method = buffer.getShort(pos + 10) & 0xffff;
+			long compressedSize = buffer.getInt(pos + 20) & 0xffffffffL;
+			long size = buffer.getInt(pos + 24) & 0xffffffffL;
+			int nameLength = buffer.getShort(pos + 28) & 0xffff;
+			int extraLength = buffer.getShort(pos + 30) & 0xffff;
+			int commentLength = buffer.getShort(pos + 32) & 0xffff;
+			long localHeaderOffset = buffer.getInt(pos + 42) & 0xffffffffL;
+			checkBounds(buffer, pos + CEN_SIZE, nameLength + extraLength + commentLength, "central directory entry");
+			
+			String name = readName(pos + CEN_SIZE, nameLength);
+			pos += CEN_SIZE + nameLength + extraLength + commentLength;
+			
+			if (!name.endsWith(".class") || name.startsWith("META-INF/")) {
+				continue;
+			}
+			if ((flags & 1) != 0) {
+				throw new ZipException("encrypted entries are not supported: "+path);
+			}
+			if (compressedSize == 0xffffffffL || size == 0xffffffffL || localHeaderOffset == 0xffffffffL) {
+				throw new ZipException("zip64 entries are not supported: "+path);
+			}
+			if (method != METHOD_STORED && method != METHOD_DEFLATED) {
+				throw new ZipException("unsupported compression method "+method+": "+path);
+			}
+			if (method == METHOD_STORED && compressedSize != size) {
+				throw new ZipException("invalid size of stored entry "+name+": "+path);
+			}
+			checkBounds(buffer, localHeaderOffset, LOC_SIZE + compressedSize, "entry "+name);
+			if (size > Integer.MAX_VALUE || size > (compressedSize + 1) * MAX_DEFLATE_RATIO) {
+				throw new ZipException("invalid size of entry "+name+": "+path);
+			}
+			classes.put(
+				name.substring(0, name.length() - ".class".length()),
+				new Entry(method, (int)compressedSize, (int)size, (int)localHeaderOffset));
+		}
+	}
+	
+	/**
+	 * @throws ZipException if the length bytes at pos are not within the
+	 *    file.
+	 */
+	private void checkBounds(ByteBuffer buffer, long pos, long length, String what) throws ZipException {
+		if (pos < 0 || length < 0 || pos + length > buffer.limit()) {
+			throw new ZipException(what+" out of bounds: "+path);
+		}
+	}
+	
+	private String readName(int pos, int length) {
+		byte[] name = new byte[length];
+		ByteBuffer view = buffer.duplicate();
+		view.position(pos);
+		view.get(name);
+		return new String(name, UTF8);
+	}
+	
+	/**
+	 * @return the internal names of all classes in the jar.
+	 */
+	public List<String> listClasses() {
+		return new ArrayList<String>(classes.keySet());
+	}
+	
+	/**
+	 * @return the class file or null if the jar does not contain the class.
+	 */
+	public byte[] readClass(String name) throws IOException {
+		MappedByteBuffer buffer = this.buffer;
+		if (buffer == null) {
+			throw new IOException("jar is closed: "+path);
+		}
+		Entry entry = classes.get(name);
+		if (entry == null) {
+			return null;
+		}
+		
+		int loc = entry.localHeaderOffset;
+		if (buffer.getInt(loc) != LOC_SIGNATURE) {
+			throw new ZipException("invalid local header for "+name+": "+path);
+		}
+		int data = loc + LOC_SIZE + (buffer.getShort(loc + 26) & 0xffff) + (buffer.getShort(loc + 28) & 0xffff);
+		checkBounds(buffer, data, entry.compressedSize, "entry "+name);
+		
+		ByteBuffer view = buffer.duplicate();
+		view.position(data);
+		byte[] result = new byte[entry.size];
+		if (entry.method == METHOD_STORED) {
+			view.get(result);
+			return result;
+		}
+		
+		// the inflater needs an extra dummy byte at the end of the input in
+		// nowrap mode
+		byte[] compressed = new byte[entry.compressedSize + 1];
+		view.get(compressed, 0, entry.compressedSize);
+		Inflater inflater = inflaters.get();
+		inflater.reset();
+		inflater.setInput(compressed);
+		try {
+			int length = 0;
+			while (length < result.length) {
+				int n = inflater.inflate(result, length, result.length - length);
+				if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				length += n;
+			}
+			if (length != result.length) {
+				throw new ZipException("truncated entry "+name+": "+path);
+			}
+		} catch (DataFormatException e) {
+			throw new ZipException("corrupt entry "+name+": "+e.getMessage());
+		}
+		return result;
+	}
+	
+	/**
+	 * Drop the mapping. Must not be called while classes are read.
+	 */
+	@Override
+	public void close() {
+		buffer = null;
+	}
+}
@@ -1,125 +1,188 @@
 package org.prettycat.dataflow.asm;
 
-import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
-import java.util.Base64;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
+import org.objectweb.asm.Handle;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.AbstractInsnNode;
 import org.objectweb.asm.tree.FieldInsnNode;
 import org.objectweb.asm.tree.InsnNode;
 import org.objectweb.asm.tree.IntInsnNode;
+import org.objectweb.asm.tree.InvokeDynamicInsnNode;
 import org.objectweb.asm.tree.LabelNode;
 import org.objectweb.asm.tree.LdcInsnNode;
 import org.objectweb.asm.tree.LineNumberNode;
 import org.objectweb.asm.tree.MethodInsnNode;
 import org.objectweb.asm.tree.MethodNode;
-import org.objectweb.asm.tree.analysis.Analyzer;
+import org.objectweb.asm.tree.TypeInsnNode;
 import org.objectweb.asm.tree.analysis.AnalyzerException;
 import org.objectweb.asm.tree.analysis.Frame;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
-public class MethodAnalysis {
+public class MethodAnalysis implements MethodResult {
+	/**
+	 * Degradation of a method which exceeded the step, time or merge budget:
+	 * the exits are read off the instructions, and there are no inputs.
+	 */
+	public static final String CFG_ONLY = "cfg-only";
+	/**
+	 * Degradation of a method with more instructions than the budget: only
+	 * the instructions and call targets are reported.
+	 */
+	public static final String CALLS_ONLY = "calls-only";
+	
 	private final String owner;
 	private final MethodNode method;
-	private final Analyzer<SimpleFlowValue> analyzer;
 	private final SimpleFlowInterpreter interpreter;
-	
-	private final HashMap<Integer, HashSet<Edge> > edges;
-	private final HashSet<Integer> exceptionTargets;
 	private final ArrayList<SimpleFlowValue> arguments;
 	
-	private ArrayList<Integer> lineNumbers = null;
+	/**
+	 * Only kept if the context was asked to, see
+	 * {@link AnalysisContext#setKeepFrames(boolean)}.
+	 */
+	private Frame<SimpleFlowValue>[] frames = null;
+	private SimpleFlowValue[] values = null;
+	private ControlFlowEdges edges = null;
+	private int[] lineNumbers = null;
+	/**
+	 * Parameter index by value id, -1 for values which are not parameters.
+	 */
+	private int[] parameterIndices = null;
+	private String degradation = null;
+	private String degradationReason = null;
 	private final HashSet<String> referencedMethods;
+	private final ArrayList<CallSite> callSites;
+	private final ArrayList<String> instantiatedTypes;
 
-	public static class Edge {
-
-		final int target_node;
-		final boolean is_exception;
+	/**
+	 * A method invoked from the analysed method, either directly or through
+	 * a method handle passed to invokedynamic.
+	 */
+	public static class CallSite {
+		/**
+		 * One of the INVOKE* opcodes, describing how the target is resolved.
+		 */
+		public final int opcode;
+		public final MethodRef target;
 		
-		Edge(int target_node, boolean is_exception) {
-			this.target_node = target_node;
-			this.is_exception = is_exception;
-		}
-
-		@Override
-		public boolean equals(Object obj) {
-			if (obj instanceof Edge) {
-				Edge other = (Edge)obj;
-				return other.target_node == target_node && other.is_exception == is_exception;
-			}
-			// TODO Auto-generated method stub
-			return super.equals(obj);
+		public CallSite(int opcode, MethodRef target) {
+			this.opcode = opcode;
+			this.target = target;
 		}
-
-		@Override
-		public int hashCode() {
-			return Integer.hashCode(target_node) ^ Boolean.hashCode(is_exception);
+		
+		public boolean isVirtual() {
+			return opcode == Opcodes.INVOKEVIRTUAL || opcode == Opcodes.INVOKEINTERFACE;
 		}
 	}
 	
 	public MethodAnalysis(String owner, MethodNode method) throws AnalyzerException {
+		this(owner, method, new AnalysisContext());
+	}
+	
+	/**
+	 * Analyse method using the (reusable) context; the analysis does not
+	 * depend on the context afterwards.
+	 *
+	 * If the method exceeds the budget of the context, a cheaper, degraded
+	 * result is produced instead, see {@link #getDegradation()}.
+	 */
+	public MethodAnalysis(String owner, MethodNode method, AnalysisContext context) throws AnalyzerException {
 		this.owner = owner;
 		this.method = method;
-		this.interpreter = new SimpleFlowInterpreter();
-		this.edges = new HashMap<Integer, HashSet<Edge> >();
-		this.exceptionTargets = new HashSet<Integer>();
+		this.interpreter = context.getInterpreter();
 		this.referencedMethods = new HashSet<String>();
-		this.analyzer = new Analyzer<SimpleFlowValue>(interpreter) {
-			@Override
-			protected boolean newControlFlowExceptionEdge(int insn, int successor) {
-				if (!edges.containsKey(insn)) {
-					HashSet<Edge> exits = new HashSet<>();
-					edges.put(insn, exits);
-				}  
-				edges.get(insn).add(new Edge(successor, true));
-				
-				if (exceptionTargets.contains(successor)) {
-					return false;
-				} else {
-					exceptionTargets.add(successor);
-					return true;
-				}
-			}
-
-			@Override
-			protected void newControlFlowEdge(int insn, int successor) {
-				// System.out.println(insn + " -> " + successor);
-				
-				if (!edges.containsKey(insn)) {
-					HashSet<Edge> exits = new HashSet<>();
-					edges.put(insn, exits);
-				}
-				edges.get(insn).add(new Edge(successor, false));
-			}
-		};
+		this.callSites = new ArrayList<CallSite>();
+		this.instantiatedTypes = new ArrayList<String>();
 		this.arguments = new ArrayList<SimpleFlowValue>();
 		
-		runAnalysis();
+		try {
+			runAnalysis(context);
+		} catch (BudgetExceededException e) {
+			runFallback(context, e);
+		}
 	}
 	
-	private void runAnalysis() throws AnalyzerException {
-		analyzer.analyze(owner, method);
+	private void runAnalysis(AnalysisContext context) throws AnalyzerException {
+		Frame<SimpleFlowValue>[] frames = context.analyze(owner, method);
 		
-		if (analyzer.getFrames().length == 0) {
+		if (frames.length == 0) {
 			System.err.println("no frames after analysis?! -- rejecting result");
 			throw new AnalyzerException(null, "no frames after analysis");
 		}
+		values = interpreter.getValues();
+		
+		Frame<SimpleFlowValue> initialFrame = frames[0];
+		int nargs = getParameterCount();
+		for (int i = 0; i < nargs; ++i) {
+			arguments.add((SimpleFlowValue) initialFrame.getLocal(i));
+		}
+		indexParameters();
 		
-		Frame<SimpleFlowValue> initialFrame = analyzer.getFrames()[0];
+		edges = context.buildEdges(method.instructions.size());
+		if (context.getKeepFrames()) {
+			this.frames = frames;
+		}
+		fillLineNumbers();
+		extractReferencedMethods();
+	}
+	
+	private int getParameterCount() {
 		int nargs = Type.getArgumentTypes(method.desc).length;
 		if ((method.access & Opcodes.ACC_STATIC) == 0) {
 			nargs += 1;
 		}
-		for (int i = 0; i < nargs; ++i) {
-			arguments.add((SimpleFlowValue) initialFrame.getLocal(i));
+		return nargs;
+	}
+	
+	private void indexParameters() {
+		int maxId = -1;
+		for (SimpleFlowValue argument: arguments) {
+			maxId = Math.max(maxId, argument.id);
+		}
+		parameterIndices = new int[maxId + 1];
+		Arrays.fill(parameterIndices, -1);
+		for (int i = arguments.size() - 1; i >= 0; --i) {
+			parameterIndices[arguments.get(i).id] = i;
+		}
+	}
+	
+	/**
+	 * Produce a degraded result without running the analysis (again).
+	 */
+	private void runFallback(AnalysisContext context, BudgetExceededException e) {
+		degradation = e.resource.equals(BudgetExceededException.INSTRUCTIONS) ? CALLS_ONLY : CFG_ONLY;
+		degradationReason = e.getMessage();
+		
+		// the parameters as the analyzer sets up the first frame
+		interpreter.reset(method.instructions);
+		ArrayList<SimpleFlowValue> locals = new ArrayList<>();
+		if ((method.access & Opcodes.ACC_STATIC) == 0) {
+			locals.add(interpreter.newValue(Type.getObjectType(owner)));
 		}
+		for (Type type: Type.getArgumentTypes(method.desc)) {
+			locals.add(interpreter.newValue(type));
+			if (type.getSize() == 2) {
+				locals.add(interpreter.newValue(null));
+			}
+		}
+		arguments.clear();
+		arguments.addAll(locals.subList(0, getParameterCount()));
+		indexParameters();
 		
+		int size = method.instructions.size();
+		values = new SimpleFlowValue[size];
+		if (degradation == CFG_ONLY) {
+			edges = context.buildStructuralEdges(method);
+		} else {
+			edges = ControlFlowEdges.empty(size);
+		}
 		fillLineNumbers();
 		extractReferencedMethods();
 	}
@@ -134,14 +197,17 @@ public class MethodAnalysis {
 			}
 		}
 		
-		lineNumbers = new ArrayList<Integer>();
+		lineNumbers = new int[method.instructions.size()];
 		int currentLineno = -1;
-		for (int i = 0; i < method.instructions.size(); i += 1) {
-			AbstractInsnNode insn = method.instructions.get(i);
-			if (labelLineNumbers.containsKey(insn)) {
-				currentLineno = labelLineNumbers.get(insn);
+		int i = 0;
+		for (AbstractInsnNode insn = method.instructions.getFirst(); insn != null; insn = insn.getNext()) {
+			if (insn instanceof LabelNode) {
+				Integer lineno = labelLineNumbers.get(insn);
+				if (lineno != null) {
+					currentLineno = lineno;
+				}
 			}
-			lineNumbers.add(currentLineno);
+			lineNumbers[i++] = currentLineno;
 		}
 	}
 	
@@ -151,10 +217,45 @@ public class MethodAnalysis {
 			if (insn instanceof MethodInsnNode) {
 				MethodInsnNode minsn = (MethodInsnNode)insn;
 				referencedMethods.add(minsn.owner + "/" + minsn.name);
+				callSites.add(new CallSite(minsn.getOpcode(), new MethodRef(minsn.owner, minsn.name, minsn.desc)));
+			} else if (insn instanceof InvokeDynamicInsnNode) {
+				for (Object arg: ((InvokeDynamicInsnNode)insn).bsmArgs) {
+					if (arg instanceof Handle) {
+						addHandleCallSite((Handle)arg);
+					}
+				}
+			} else if (insn.getOpcode() == Opcodes.NEW) {
+				instantiatedTypes.add(((TypeInsnNode)insn).desc);
 			}
 		}
 	}
 	
+	private void addHandleCallSite(Handle handle) {
+		int opcode;
+		switch (handle.getTag()) {
+		case Opcodes.H_INVOKESTATIC:
+			opcode = Opcodes.INVOKESTATIC;
+			break;
+		case Opcodes.H_INVOKEVIRTUAL:
+			opcode = Opcodes.INVOKEVIRTUAL;
+			break;
+		case Opcodes.H_INVOKEINTERFACE:
+			opcode = Opcodes.INVOKEINTERFACE;
+			break;
+		case Opcodes.H_NEWINVOKESPECIAL:
+			instantiatedTypes.add(handle.getOwner());
+			opcode = Opcodes.INVOKESPECIAL;
+			break;
+		case Opcodes.H_INVOKESPECIAL:
+			opcode = Opcodes.INVOKESPECIAL;
+			break;
+		default:
+			// field handles
+			return;
+		}
+		callSites.add(new CallSite(opcode, new MethodRef(handle.getOwner(), handle.getName(), handle.getDesc())));
+	}
+	
 	public String getFullyQualifiedMethodName() {
 		return getFullyQualifiedMethodName(owner, method.name, method.desc);
 	}
@@ -164,47 +265,76 @@ public class MethodAnalysis {
 	}
 	
 	public String getFullyQualifiedInstructionName(int index) {
-		return getFullyQualifiedMethodName() + "/" + "instructions" + "/" + index;
+		return getFullyQualifiedInstructionName(getFullyQualifiedMethodName(), index);
+	}
+	
+	public static String getInstructionNamePrefix(String fqmn) {
+		return fqmn + "/" + "instructions" + "/";
+	}
+	
+	public static String getFullyQualifiedInstructionName(String fqmn, int index) {
+		return getInstructionNamePrefix(fqmn) + index;
 	}
 	
 	public String getFullyQualifiedParameterName(int index) {
-		return getFullyQualifiedMethodName() + "/" + "parameters" + "/" + index;
+		return getFullyQualifiedParameterName(getFullyQualifiedMethodName(), index);
 	}
 	
-	private static String getFullyQualifiedTypeName(Type t) {
+	public static String getParameterNamePrefix(String fqmn) {
+		return fqmn + "/" + "parameters" + "/";
+	}
+	
+	public static String getFullyQualifiedParameterName(String fqmn, int index) {
+		return getParameterNamePrefix(fqmn) + index;
+	}
+	
+	public static String getFullyQualifiedTypeName(Type t) {
 		return "java:"+t;
 	}
 	
-	private Element writeInputXML(Document doc, SimpleFlowValue input) {
+	/**
+	 * @return the parameter index of value, or -1 if it is not a parameter.
+	 */
+	private int getParameterIndex(SimpleFlowValue value) {
+		if (value.origin != null) {
+			return -1;
+		}
+		if (value.id >= parameterIndices.length) {
+			return -1;
+		}
+		return parameterIndices[value.id];
+	}
+	
+	private void acceptInput(AnalysisVisitor visitor, SimpleFlowValue input) {
 		if (input.origin != null && !input.isMerge) {
-			return XMLProtocol.createValueOfElement(doc, getFullyQualifiedInstructionName(method.instructions.indexOf(input.origin)));
+			visitor.visitValueOfInstruction(method.instructions.indexOf(input.origin));
 		} else {
-			int paramIndex = arguments.indexOf(input);
+			int paramIndex = getParameterIndex(input);
 			if (paramIndex >= 0) {
-				return XMLProtocol.createValueOfElement(doc, getFullyQualifiedParameterName(paramIndex));
+				visitor.visitValueOfParameter(paramIndex);
 			} else if (input.isMerge) {
-				Element merge = XMLProtocol.createMergeElement(doc);
+				visitor.visitMergeStart();
 				for (SimpleFlowValue subInput: input.inputs) {
-					merge.appendChild(writeInputXML(doc, subInput));
+					acceptInput(visitor, subInput);
 				}
-				return merge;
+				visitor.visitMergeEnd();
 			} else if (!input.isMerge) {
 				// TODO: check that this is actually an exception ...
-				return XMLProtocol.createExceptionElement(doc, input.type.getDescriptor());
+				visitor.visitException(input.type.getDescriptor());
 			} else {
 				// I don’t think this is reachable ...
 				System.err.println("unknown input value (origin="+input.origin+", isMerge="+input.isMerge+"): "+input);
-				return XMLProtocol.createUnknownElement(doc);
+				visitor.visitUnknown();
 			}
 		}
 	}
 	
-	private Element writeInputsXML(Document doc, SimpleFlowValue value) {
-		Element result = XMLProtocol.createInputsElement(doc);
+	private void acceptInputs(AnalysisVisitor visitor, SimpleFlowValue value) {
+		visitor.visitInputsStart();
 		for (SimpleFlowValue input: value.inputs) {
-			result.appendChild(writeInputXML(doc, input));
+			acceptInput(visitor, input);
 		}
-		return result;
+		visitor.visitInputsEnd();
 	}
 	
 	private Object getConstValue(AbstractInsnNode instruction)
@@ -252,122 +382,127 @@ public class MethodAnalysis {
 		return null;
 	}
 	
-	private String marshallValue(Object value) {
-		String value_s;
-		if (value instanceof String) {
-			try {
-				value_s = "b64+utf8:" + Base64.getEncoder().encodeToString(((String) value).getBytes("utf-8"));
-			} catch (UnsupportedEncodingException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-				return null;
-			}
-		} else {
-			value_s = "raw:" + String.valueOf(value);
-		}
-		return value_s;
-	}
-	
-	private Element writeInstructionXML(
-			Document doc, 
+	private void acceptInstruction(
+			AnalysisVisitor visitor, 
 			int index,
 			AbstractInsnNode instruction,
 			int lineNumber) 
 	{
-		Element result = XMLProtocol.createInstructionElement(
-				doc, 
-				instruction.getOpcode(), 
-				lineNumber,
-				getFullyQualifiedInstructionName(index));
+		visitor.visitInstruction(index, instruction.getOpcode(), lineNumber);
 		
 		{
 			Object value = getConstValue(instruction);
 			if (value != null || instruction.getOpcode() == Opcodes.ACONST_NULL) {
-				result.setAttribute("value", marshallValue(value));
+				visitor.visitConstant(value);
 			}
 		}
 		
 		if (instruction instanceof FieldInsnNode) {
-			result.appendChild(XMLProtocol.createFieldElement(
-				doc,
+			visitor.visitField(
 				((FieldInsnNode) instruction).owner,
 				((FieldInsnNode) instruction).name
-			));
+			);
 		}
 			
-		SimpleFlowValue value = interpreter.getValue(instruction);
+		SimpleFlowValue value = values[index];
 		if (value != null && value.inputs.size() > 0) {
-			result.appendChild(writeInputsXML(doc, value));
+			acceptInputs(visitor, value);
 		}
 		if (instruction instanceof MethodInsnNode) {
 			MethodInsnNode callNode = (MethodInsnNode)instruction;
-			result.appendChild(XMLProtocol.createCallTargetElement(
-					doc, 
-					getFullyQualifiedMethodName(callNode.owner, callNode.name, callNode.desc)
-			));
-		}
-		HashSet<Edge> exits = edges.get(index);
-		if (exits != null) {
-			Element exitsNode = XMLProtocol.createExitsElement(doc);
-			result.appendChild(exitsNode);
-			for (Edge exit: exits) {
-				exitsNode.appendChild(
-					XMLProtocol.createExitElement(doc, getFullyQualifiedInstructionName(exit.target_node), exit.is_exception)
-				);
+			visitor.visitCallTarget(callNode.owner, callNode.name, callNode.desc);
+		}
+		if (edges.hasExits(index)) {
+			visitor.visitExitsStart();
+			for (int edge = edges.getStart(index); edge < edges.getEnd(index); ++edge) {
+				visitor.visitExit(edges.getTarget(edge), edges.isException(edge));
 			}
+			visitor.visitExitsEnd();
 		}
-		return result;
+		visitor.visitInstructionEnd();
 	}
 	
-	private Element writeInstructionsXML(Document doc) {
-		Element result = XMLProtocol.createInstructionsElement(doc);
+	private void acceptInstructions(AnalysisVisitor visitor) {
+		visitor.visitInstructionsStart();
 		
 		int i = 0;
-		int lineno = 0;
-		for (Frame<SimpleFlowValue> frame: analyzer.getFrames()) {
-			final AbstractInsnNode instruction = method.instructions.get(i);
-			/* if (instruction.getOpcode() == -1) {
-				i += 1;
-				continue;
-			} */
-			result.appendChild(writeInstructionXML(doc, i, instruction, lineNumbers.get(i)));
-			
+		for (AbstractInsnNode instruction = method.instructions.getFirst(); instruction != null; instruction = instruction.getNext()) {
+			acceptInstruction(visitor, i, instruction, lineNumbers[i]);
 			i += 1;
-		}	
+		}
 		
-		return result;
+		visitor.visitInstructionsEnd();
 	}
 	
-	public Element writeParametersXML(Document doc) {
-		Element result = XMLProtocol.createParametersElement(doc);
+	private void acceptParameters(AnalysisVisitor visitor) {
+		visitor.visitParametersStart();
 		int i = 0;
 		for (SimpleFlowValue argument: arguments) {
-			result.appendChild(XMLProtocol.createParameterElement(doc, getFullyQualifiedParameterName(i), getFullyQualifiedTypeName(argument.type)));
+			visitor.visitParameter(i, argument.type);
 			i += 1;
 		}
-		return result;
+		visitor.visitParametersEnd();
+	}
+	
+	@Override
+	public void accept(AnalysisVisitor visitor) {
+		visitor.visitMethod(owner, method.name, method.desc);
+		if (degradation != null) {
+			visitor.visitDegraded(degradation, degradationReason);
+		}
+		acceptParameters(visitor);
+		acceptInstructions(visitor);
+		visitor.visitMethodEnd();
 	}
 	
 	public Element writeXML(Document doc) {
 		// dump();
 		
-		Element methodElement = XMLProtocol.createMethodElement(doc, getFullyQualifiedMethodName());
-		
-		methodElement.appendChild(writeParametersXML(doc));
-		methodElement.appendChild(writeInstructionsXML(doc));
-		
-		return methodElement;
+		DOMAnalysisWriter writer = new DOMAnalysisWriter(doc);
+		accept(writer);
+		return writer.getMethodElement();
 	}
 	
-	public Analyzer<SimpleFlowValue> getAnalyzer() {
-		return analyzer;
+	/**
+	 * @return the frame before each instruction, or null if the frames were
+	 *    not kept.
+	 */
+	public Frame<SimpleFlowValue>[] getFrames() {
+		return frames;
 	}
 	
+	/**
+	 * @return the interpreter which ran the analysis. If it came from a
+	 *    shared {@link AnalysisContext}, it may already be working on another
+	 *    method; use {@link #getValue(int)} instead.
+	 */
 	public SimpleFlowInterpreter getInterpreter() {
 		return interpreter;
 	}
 	
-	public HashMap<Integer, HashSet<Edge> > getEdges() {
+	/**
+	 * @return the value produced by the instruction at index, or null.
+	 */
+	public SimpleFlowValue getValue(int index) {
+		return values[index];
+	}
+	
+	/**
+	 * @return {@link #CFG_ONLY} or {@link #CALLS_ONLY} if the method exceeded
+	 *    the budget and was only analysed partially, or null.
+	 */
+	public String getDegradation() {
+		return degradation;
+	}
+	
+	/**
+	 * @return which budget the method exceeded, or null.
+	 */
+	public String getDegradationReason() {
+		return degradationReason;
+	}
+	
+	public ControlFlowEdges getEdges() {
 		return edges;
 	}
 	
@@ -397,11 +532,10 @@ public class MethodAnalysis {
 	} */
 	
 	public void dump() {
-		int i = 0;
-		for (Frame<SimpleFlowValue> frame: analyzer.getFrames()) {
+		for (int i = 0; i < method.instructions.size(); ++i) {
 			final AbstractInsnNode instruction = method.instructions.get(i);
-			System.out.println("instruction "+instruction+"; frame: "+i+" "+frame);
-			SimpleFlowValue value = interpreter.getValue(instruction);
+			System.out.println("instruction "+instruction+"; frame: "+i+" "+(frames != null ? frames[i] : "(not kept)"));
+			SimpleFlowValue value = values[i];
 			if (value != null) {
 				for (SimpleFlowValue input: value.inputs) {
 					StringBuilder b = new StringBuilder();
@@ -411,7 +545,7 @@ public class MethodAnalysis {
 						b.append(" from ");
 						b.append(input.origin);
 					} else {
-						int argIndex = arguments.indexOf(input);
+						int argIndex = getParameterIndex(input);
 						if (argIndex >= 0) {
 							b.append(" (argument ");
 							b.append(argIndex);
@@ -423,17 +557,39 @@ public class MethodAnalysis {
 					System.out.println(b);
 				}
 			}
-			HashSet<MethodAnalysis.Edge> exits = edges.get(new Integer(i));
-			if (exits != null) {
-				for (MethodAnalysis.Edge edge: exits) {
-					System.out.println("  -> "+edge.target_node+" "+edge.is_exception);
-				}
-			}	
-			i = i + 1;
+			for (int edge = edges.getStart(i); edge < edges.getEnd(i); ++edge) {
+				System.out.println("  -> "+edges.getTarget(edge)+" "+edges.isException(edge));
+			}
 		}
 	}
 	
+	@Override
+	public String getOwner() {
+		return owner;
+	}
+	
+	@Override
+	public String getName() {
+		return method.name;
+	}
+	
+	@Override
+	public String getDesc() {
+		return method.desc;
+	}
+	
+	@Override
 	public Set<String> getReferencedMethods() {
 		return referencedMethods;
 	}
+	
+	@Override
+	public List<CallSite> getCallSites() {
+		return callSites;
+	}
+	
+	@Override
+	public List<String> getInstantiatedTypes() {
+		return instantiatedTypes;
+	}
 }
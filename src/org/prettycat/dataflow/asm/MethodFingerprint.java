@@ -0,0 +1,196 @@
+package org.prettycat.dataflow.asm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.FrameNode;
+import org.objectweb.asm.tree.IincInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.IntInsnNode;
+import org.objectweb.asm.tree.InvokeDynamicInsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.LineNumberNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.MultiANewArrayInsnNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+import org.objectweb.asm.tree.TypeInsnNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+/**
+ * A hash of everything in a method which the analysis result depends on,
+ * except for the method's owner and name: the descriptor, whether it is
+ * static, the instructions (including labels, line numbers and the
+ * position of frames) and the try-catch blocks.
+ *
+ * References to the owner itself (e.g. the owner of a field or call, a
+ * type instruction, a class constant or a catch type) are replaced by a
+ * placeholder, so bridge methods, accessors and other generated code of
+ * different classes get the same fingerprint. Methods with the same
+ * fingerprint have the same result, up to the names which
+ * {@link RecordedMethod#relabel(String, String, boolean)} replaces.
+ */
+public class MethodFingerprint {
+	/**
+	 * Stands in for the owner; not a valid internal name.
+	 */
+	private static final String SELF = ";";
+	
+	private final String owner;
+	private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+	private final DataOutputStream out = new DataOutputStream(buffer);
+	
+	private MethodFingerprint(String owner) {
+		this.owner = owner;
+	}
+	
+	public static String of(String owner, MethodNode method) {
+		MethodFingerprint fingerprint = new MethodFingerprint(owner);
+		try {
+			fingerprint.write(method);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		MessageDigest digest = AnalysisCache.newDigest();
+		digest.update(AnalysisCache.ANALYSER_VERSION.getBytes(StandardCharsets.UTF_8));
+		digest.update(fingerprint.buffer.toByteArray());
+		return AnalysisCache.hex(digest.digest());
+	}
+	
+	private String name(String internalName) {
+		return owner.equals(internalName) ? SELF : internalName;
+	}
+	
+	private void write(MethodNode method) throws IOException {
+		InsnList instructions = method.instructions;
+		out.writeUTF(method.desc);
+		out.writeBoolean((method.access & Opcodes.ACC_STATIC) != 0);
+		out.writeInt(method.maxLocals);
+		out.writeInt(method.maxStack);
+		out.writeInt(instructions.size());
+		for (AbstractInsnNode insn = instructions.getFirst(); insn != null; insn = insn.getNext()) {
+			writeInstruction(instructions, insn);
+		}
+		out.writeInt(method.tryCatchBlocks.size());
+		for (TryCatchBlockNode tryCatch: method.tryCatchBlocks) {
+			out.writeInt(instructions.indexOf(tryCatch.start));
+			out.writeInt(instructions.indexOf(tryCatch.end));
+			out.writeInt(instructions.indexOf(tryCatch.handler));
+			out.writeUTF(tryCatch.type == null ? "" : name(tryCatch.type));
+		}
+	}
+	
+	private void writeInstruction(InsnList instructions, AbstractInsnNode insn) throws IOException {
+		out.writeByte(insn.getType());
+		out.writeShort(insn.getOpcode());
+		if (insn instanceof IntInsnNode) {
+			out.writeInt(((IntInsnNode)insn).operand);
+		} else if (insn instanceof VarInsnNode) {
+			out.writeInt(((VarInsnNode)insn).var);
+		} else if (insn instanceof TypeInsnNode) {
+			out.writeUTF(name(((TypeInsnNode)insn).desc));
+		} else if (insn instanceof FieldInsnNode) {
+			FieldInsnNode field = (FieldInsnNode)insn;
+			out.writeUTF(name(field.owner));
+			out.writeUTF(field.name);
+			out.writeUTF(field.desc);
+		} else if (insn instanceof MethodInsnNode) {
+			MethodInsnNode call = (MethodInsnNode)insn;
+			out.writeUTF(name(call.owner));
+			out.writeUTF(call.name);
+			out.writeUTF(call.desc);
+			out.writeBoolean(call.itf);
+		} else if (insn instanceof InvokeDynamicInsnNode) {
+			InvokeDynamicInsnNode indy = (InvokeDynamicInsnNode)insn;
+			out.writeUTF(indy.name);
+			out.writeUTF(indy.desc);
+			writeConstant(indy.bsm);
+			out.writeInt(indy.bsmArgs.length);
+			for (Object arg: indy.bsmArgs) {
+				writeConstant(arg);
+			}
+		} else if (insn instanceof JumpInsnNode) {
+			out.writeInt(instructions.indexOf(((JumpInsnNode)insn).label));
+		} else if (insn instanceof LdcInsnNode) {
+			writeConstant(((LdcInsnNode)insn).cst);
+		} else if (insn instanceof IincInsnNode) {
+			out.writeInt(((IincInsnNode)insn).var);
+			out.writeInt(((IincInsnNode)insn).incr);
+		} else if (insn instanceof TableSwitchInsnNode) {
+			TableSwitchInsnNode tableSwitch = (TableSwitchInsnNode)insn;
+			out.writeInt(tableSwitch.min);
+			out.writeInt(tableSwitch.max);
+			out.writeInt(instructions.indexOf(tableSwitch.dflt));
+			for (LabelNode label: tableSwitch.labels) {
+				out.writeInt(instructions.indexOf(label));
+			}
+		} else if (insn instanceof LookupSwitchInsnNode) {
+			LookupSwitchInsnNode lookupSwitch = (LookupSwitchInsnNode)insn;
+			out.writeInt(instructions.indexOf(lookupSwitch.dflt));
+			out.writeInt(lookupSwitch.keys.size());
+			for (int i = 0; i < lookupSwitch.keys.size(); ++i) {
+				out.writeInt(lookupSwitch.keys.get(i));
+				out.writeInt(instructions.indexOf(lookupSwitch.labels.get(i)));
+			}
+		} else if (insn instanceof MultiANewArrayInsnNode) {
+			out.writeUTF(((MultiANewArrayInsnNode)insn).desc);
+			out.writeInt(((MultiANewArrayInsnNode)insn).dims);
+		} else if (insn instanceof LineNumberNode) {
+			out.writeInt(((LineNumberNode)insn).line);
+			out.writeInt(instructions.indexOf(((LineNumberNode)insn).start));
+		} else if (insn instanceof FrameNode) {
+			// the analysis computes its own frames; only the position of
+			// the node shows up in the output
+		}
+	}
+	
+	private void writeConstant(Object value) throws IOException {
+		if (value instanceof Type) {
+			Type type = (Type)value;
+			out.writeByte('T');
+			out.writeUTF(type.getSort() == Type.OBJECT ? name(type.getInternalName()) : type.getDescriptor());
+		} else if (value instanceof Handle) {
+			Handle handle = (Handle)value;
+			out.writeByte('H');
+			out.writeByte(handle.getTag());
+			out.writeUTF(name(handle.getOwner()));
+			out.writeUTF(handle.getName());
+			out.writeUTF(handle.getDesc());
+			out.writeBoolean(handle.isInterface());
+		} else if (value instanceof String) {
+			out.writeByte('S');
+			out.writeUTF((String)value);
+		} else if (value instanceof Integer) {
+			out.writeByte('I');
+			out.writeInt((Integer)value);
+		} else if (value instanceof Float) {
+			out.writeByte('F');
+			out.writeFloat((Float)value);
+		} else if (value instanceof Long) {
+			out.writeByte('J');
+			out.writeLong((Long)value);
+		} else if (value instanceof Double) {
+			out.writeByte('D');
+			out.writeDouble((Double)value);
+		} else {
+			// anything else is not expected in a class file; keep such
+			// methods apart
+			out.writeByte('?');
+			out.writeUTF(owner);
+			out.writeUTF(String.valueOf(value));
+		}
+	}
+}
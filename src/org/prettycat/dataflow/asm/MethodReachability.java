@@ -0,0 +1,275 @@
+package org.prettycat.dataflow.asm;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Tracks the set of reachable methods, starting from a set of entry points.
+ *
+ * Direct calls (invokestatic, invokespecial) are resolved against the
+ * {@link ClassHierarchy}. Virtual calls are resolved rapid type analysis
+ * style: every instantiated class which is a subtype of the call owner
+ * contributes the implementation it dispatches to. Instantiating a class
+ * later re-resolves the virtual call sites seen so far whose owner is one of
+ * its super types. If no instantiated
+ * subtype provides an implementation (e.g. because the receiver comes from
+ * outside the analysed code), the implementation visible from the call owner
+ * is used.
+ *
+ * Methods are handed out by {@link #next()} in discovery order, which makes
+ * the result independent of the order in which analyses finish, as long as
+ * {@link #addCallsFrom(MethodResult)} is called in {@link #next()} order.
+ * The same goes for the call depth of each method (see
+ * {@link #getDepth(MethodRef)}), which is the depth at which it was
+ * discovered.
+ */
+public class MethodReachability {
+	/**
+	 * A virtual call target. Re-resolution after an instantiation visits the
+	 * calls ordered by method name + desc (in first-call order), then by the
+	 * order they were seen, which keeps the discovery order independent of
+	 * the hierarchy.
+	 */
+	private static class VirtualCall implements Comparable<VirtualCall> {
+		final MethodRef target;
+		final int keyIndex;
+		final int seq;
+		
+		VirtualCall(MethodRef target, int keyIndex, int seq) {
+			this.target = target;
+			this.keyIndex = keyIndex;
+			this.seq = seq;
+		}
+		
+		@Override
+		public int compareTo(VirtualCall other) {
+			int c = Integer.compare(keyIndex, other.keyIndex);
+			return c != 0 ? c : Integer.compare(seq, other.seq);
+		}
+	}
+	
+	private final ClassHierarchy hierarchy;
+	private final Consumer<MethodRef> onReachable;
+	
+	private final LinkedHashSet<MethodRef> reachable;
+	private final ArrayDeque<MethodRef> queue;
+	private final LinkedHashSet<String> instantiated;
+	private final HashSet<String> initialised;
+	/**
+	 * Virtual call targets seen so far, keyed by their owner, so that an
+	 * instantiation only re-resolves the calls on its super types.
+	 */
+	private final HashMap<String, ArrayList<VirtualCall>> virtualCalls;
+	private final HashSet<MethodRef> virtualTargets;
+	/**
+	 * The index of each virtual method name + desc in the order they were
+	 * first called, see {@link VirtualCall}.
+	 */
+	private final HashMap<String, Integer> virtualKeys;
+	/**
+	 * The instantiated classes, in instantiation order, keyed by each of
+	 * their super types.
+	 */
+	private final HashMap<String, ArrayList<String>> instantiatedSubtypes;
+	private final HashMap<MethodRef, Integer> depths;
+	/**
+	 * The depth of the methods discovered now: 0 for the entry points, and
+	 * one more than the calling method's depth in {@link #addCallsFrom}.
+	 */
+	private int currentDepth = 0;
+	
+	/**
+	 * @param onReachable called once for every method as soon as it becomes
+	 *    reachable, e.g. to schedule its analysis.
+	 */
+	public MethodReachability(ClassHierarchy hierarchy, Consumer<MethodRef> onReachable) {
+		this.hierarchy = hierarchy;
+		this.onReachable = onReachable;
+		this.reachable = new LinkedHashSet<MethodRef>();
+		this.queue = new ArrayDeque<MethodRef>();
+		this.instantiated = new LinkedHashSet<String>();
+		this.initialised = new HashSet<String>();
+		this.virtualCalls = new HashMap<String, ArrayList<VirtualCall>>();
+		this.virtualTargets = new HashSet<MethodRef>();
+		this.virtualKeys = new HashMap<String, Integer>();
+		this.instantiatedSubtypes = new HashMap<String, ArrayList<String>>();
+		this.depths = new HashMap<MethodRef, Integer>();
+	}
+	
+	/**
+	 * Mark all methods declared by the class as reachable.
+	 */
+	public void addEntryClass(String class_name) {
+		ClassHierarchy.ClassInfo info = hierarchy.get(class_name);
+		if (info == null) {
+			System.err.println("could not open class: "+class_name);
+			return;
+		}
+		instantiate(class_name);
+		for (String key: info.getMethodKeys()) {
+			int paren = key.indexOf('(');
+			markReachable(new MethodRef(class_name, key.substring(0, paren), key.substring(paren)));
+		}
+	}
+	
+	/**
+	 * Mark a method as reachable; if the reference has no descriptor, all
+	 * overloads of the name declared in the owner are used.
+	 */
+	public void addEntryMethod(MethodRef method) {
+		ClassHierarchy.ClassInfo info = hierarchy.get(method.owner);
+		if (info == null) {
+			System.err.println("could not open class: "+method.owner);
+			return;
+		}
+		boolean found = false;
+		for (String key: info.getMethodKeys()) {
+			int paren = key.indexOf('(');
+			String name = key.substring(0, paren);
+			String desc = key.substring(paren);
+			if (method.matches(name, desc)) {
+				markReachable(new MethodRef(method.owner, name, desc));
+				found = true;
+			}
+		}
+		if (!found) {
+			System.err.println("no such method: "+method);
+		}
+		instantiate(method.owner);
+	}
+	
+	/**
+	 * @return the next reachable method in discovery order, or null if all
+	 *    methods have been handed out.
+	 */
+	public MethodRef next() {
+		return queue.poll();
+	}
+	
+	public int size() {
+		return reachable.size();
+	}
+	
+	/**
+	 * @return the number of calls from the entry points at which the method
+	 *    became reachable, 0 for the entry points themselves.
+	 */
+	public int getDepth(MethodRef method) {
+		Integer depth = depths.get(method);
+		return depth != null ? depth : 0;
+	}
+	
+	/**
+	 * Add the methods called by an analysed method.
+	 */
+	public void addCallsFrom(MethodResult analysis) {
+		currentDepth = getDepth(new MethodRef(analysis.getOwner(), analysis.getName(), analysis.getDesc())) + 1;
+		for (String type: analysis.getInstantiatedTypes()) {
+			instantiate(type);
+		}
+		for (MethodAnalysis.CallSite call: analysis.getCallSites()) {
+			addCall(call);
+		}
+	}
+	
+	private void addCall(MethodAnalysis.CallSite call) {
+		MethodRef target = call.target;
+		if (!call.isVirtual()) {
+			String declaring = hierarchy.resolve(target.owner, target.name, target.desc);
+			if (declaring != null && hierarchy.get(declaring).hasBody(target.name, target.desc)) {
+				markReachable(new MethodRef(declaring, target.name, target.desc));
+			}
+			if (call.opcode == Opcodes.INVOKESTATIC) {
+				initialise(target.owner);
+			}
+			return;
+		}
+		
+		if (!virtualTargets.add(target)) {
+			return;
+		}
+		int keyIndex = virtualKeys.computeIfAbsent(target.name + target.desc, k -> virtualKeys.size());
+		virtualCalls.computeIfAbsent(target.owner, k -> new ArrayList<VirtualCall>())
+			.add(new VirtualCall(target, keyIndex, virtualTargets.size()));
+		
+		Collection<String> subtypes = target.owner.equals("java/lang/Object") ?
+			instantiated : instantiatedSubtypes.getOrDefault(target.owner, new ArrayList<String>());
+		boolean dispatched = false;
+		for (String type: new ArrayList<>(subtypes)) {
+			dispatched |= dispatch(type, target.name, target.desc);
+		}
+		if (!dispatched) {
+			String declaring = hierarchy.dispatch(target.owner, target.name, target.desc);
+			if (declaring != null) {
+				markReachable(new MethodRef(declaring, target.name, target.desc));
+			}
+		}
+	}
+	
+	private boolean dispatch(String type, String name, String desc) {
+		String declaring = hierarchy.dispatch(type, name, desc);
+		if (declaring == null) {
+			return false;
+		}
+		markReachable(new MethodRef(declaring, name, desc));
+		return true;
+	}
+	
+	private void instantiate(String type) {
+		if (!instantiated.add(type)) {
+			return;
+		}
+		initialise(type);
+		Set<String> supertypes = hierarchy.getSupertypes(type);
+		ArrayList<VirtualCall> calls = new ArrayList<>();
+		for (String supertype: supertypes) {
+			instantiatedSubtypes.computeIfAbsent(supertype, k -> new ArrayList<String>()).add(type);
+			calls.addAll(virtualCalls.getOrDefault(supertype, new ArrayList<VirtualCall>()));
+		}
+		if (!supertypes.contains("java/lang/Object")) {
+			calls.addAll(virtualCalls.getOrDefault("java/lang/Object", new ArrayList<VirtualCall>()));
+		}
+		Collections.sort(calls);
+		for (VirtualCall call: calls) {
+			dispatch(type, call.target.name, call.target.desc);
+		}
+	}
+	
+	/**
+	 * Make the static initialisers of the class and its super classes
+	 * reachable.
+	 */
+	private void initialise(String class_name) {
+		for (String current = class_name; current != null && initialised.add(current); ) {
+			ClassHierarchy.ClassInfo info = hierarchy.get(current);
+			if (info == null) {
+				break;
+			}
+			if (info.hasBody("<clinit>", "()V")) {
+				markReachable(new MethodRef(current, "<clinit>", "()V"));
+			}
+			current = info.superName;
+		}
+	}
+	
+	private void markReachable(MethodRef method) {
+		if (!reachable.add(method)) {
+			return;
+		}
+		queue.add(method);
+		if (currentDepth > 0) {
+			depths.put(method, currentDepth);
+		}
+		onReachable.accept(method);
+		initialise(method.owner);
+	}
+}
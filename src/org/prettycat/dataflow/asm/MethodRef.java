@@ -0,0 +1,65 @@
+package org.prettycat.dataflow.asm;
+
+/**
+ * Identifies a method by its owner (internal name), name and descriptor.
+ */
+public class MethodRef {
+	public final String owner;
+	public final String name;
+	public final String desc;
+	
+	public MethodRef(String owner, String name, String desc) {
+		this.owner = owner;
+		this.name = name;
+		this.desc = desc;
+	}
+	
+	/**
+	 * Parse a method given on the command line.
+	 * 
+	 * The format is {@code CLASS#NAME} or {@code CLASS#NAME(DESC)RET}, where
+	 * CLASS may use dots or slashes. Without a descriptor, the desc of the
+	 * returned reference is null and matches all overloads.
+	 */
+	public static MethodRef parse(String spec) {
+		int hash = spec.indexOf('#');
+		if (hash < 0) {
+			throw new IllegalArgumentException("not a method reference: "+spec);
+		}
+		String owner = spec.substring(0, hash).replace('.', '/');
+		String rest = spec.substring(hash+1);
+		int paren = rest.indexOf('(');
+		if (paren < 0) {
+			return new MethodRef(owner, rest, null);
+		}
+		return new MethodRef(owner, rest.substring(0, paren), rest.substring(paren));
+	}
+	
+	public boolean matches(String name, String desc) {
+		return this.name.equals(name) && (this.desc == null || this.desc.equals(desc));
+	}
+	
+	public String getFullyQualifiedName() {
+		return MethodAnalysis.getFullyQualifiedMethodName(owner, name, desc);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (obj instanceof MethodRef) {
+			MethodRef other = (MethodRef)obj;
+			return owner.equals(other.owner) && name.equals(other.name) && 
+					(desc == null ? other.desc == null : desc.equals(other.desc));
+		}
+		return false;
+	}
+
+	@Override
+	public int hashCode() {
+		return (owner.hashCode() * 31 + name.hashCode()) * 31 + (desc == null ? 0 : desc.hashCode());
+	}
+	
+	@Override
+	public String toString() {
+		return owner + "#" + name + (desc == null ? "" : desc);
+	}
+}
@@ -0,0 +1,38 @@
+package org.prettycat.dataflow.asm;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The finished result of analysing a method.
+ *
+ * Implemented by {@link MethodAnalysis} for fresh results and by
+ * {@link RecordedMethod} for results which were recorded earlier (e.g. read
+ * from the {@link AnalysisCache}).
+ */
+public interface MethodResult {
+	public String getOwner();
+	
+	public String getName();
+	
+	public String getDesc();
+	
+	/**
+	 * Report the results to the given visitor, in the order of the
+	 * {@link XMLProtocol} schema.
+	 */
+	public void accept(AnalysisVisitor visitor);
+	
+	/**
+	 * @return the called methods as {@code owner/name}.
+	 */
+	public Set<String> getReferencedMethods();
+	
+	public List<MethodAnalysis.CallSite> getCallSites();
+	
+	/**
+	 * @return the internal names of all classes instantiated by the method,
+	 *    in instruction order.
+	 */
+	public List<String> getInstantiatedTypes();
+}
@@ -0,0 +1,356 @@
+package org.prettycat.dataflow.asm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+/**
+ * A compact summary of the dataflow of a method, as seen by its callers:
+ * which parameters reach the returned value and the thrown exceptions,
+ * which fields are written (with the parameters reaching the object and
+ * the value) and which methods are called.
+ *
+ * Parameters are numbered like in the output, i.e. {@code this} is
+ * parameter 0 of an instance method. A parameter reaches a value if the
+ * value is computed from it, directly or through any number of
+ * instructions and merges. The result of a call is taken to be computed
+ * from all of its arguments, and so is an object from the arguments of its
+ * constructor.
+ *
+ * Summaries are computed from the visitor events of a {@link MethodResult}
+ * by {@link #of(MethodResult)}, so they can be made from fresh as well as
+ * recorded results. The summary of a degraded method is conservative: every
+ * parameter reaches everything.
+ */
+public class MethodSummary {
+	/**
+	 * The writes to one field; for static fields, target is empty.
+	 */
+	public static class FieldWrite {
+		public final String owner;
+		public final String name;
+		public final BitSet target;
+		public final BitSet value;
+		
+		public FieldWrite(String owner, String name, BitSet target, BitSet value) {
+			this.owner = owner;
+			this.name = name;
+			this.target = target;
+			this.value = value;
+		}
+	}
+	
+	public final MethodRef method;
+	public final boolean degraded;
+	public final BitSet returned;
+	public final BitSet thrown;
+	public final List<FieldWrite> fieldWrites;
+	public final List<MethodRef> calls;
+	
+	public MethodSummary(MethodRef method, boolean degraded, BitSet returned, BitSet thrown, List<FieldWrite> fieldWrites, List<MethodRef> calls) {
+		this.method = method;
+		this.degraded = degraded;
+		this.returned = returned;
+		this.thrown = thrown;
+		this.fieldWrites = Collections.unmodifiableList(fieldWrites);
+		this.calls = Collections.unmodifiableList(calls);
+	}
+	
+	public static MethodSummary of(MethodResult result) {
+		Builder builder = new Builder();
+		result.accept(builder);
+		
+		LinkedHashSet<MethodRef> calls = new LinkedHashSet<>();
+		for (MethodAnalysis.CallSite call: result.getCallSites()) {
+			calls.add(call.target);
+		}
+		return builder.build(new MethodRef(result.getOwner(), result.getName(), result.getDesc()), new ArrayList<>(calls));
+	}
+	
+	/**
+	 * The inputs at one position of an instruction: the parameters and the
+	 * values of other instructions, with merges flattened.
+	 */
+	private static class Input {
+		final BitSet parameters = new BitSet();
+		int[] instructions = new int[2];
+		int instructionCount = 0;
+		
+		void addInstruction(int index) {
+			if (instructionCount == instructions.length) {
+				instructions = Arrays.copyOf(instructions, instructionCount * 2);
+			}
+			instructions[instructionCount++] = index;
+		}
+	}
+	
+	/**
+	 * Collects the inputs of each instruction and the field and value
+	 * writes, and propagates the parameters through the instructions.
+	 */
+	private static class Builder implements AnalysisVisitor {
+		private int parameterCount = 0;
+		private boolean degraded = false;
+		private boolean returnsValue = false;
+		private final ArrayList<List<Input>> inputs = new ArrayList<>();
+		/**
+		 * The returns, throws and field writes, as {index, opcode}.
+		 */
+		private final ArrayList<int[]> sinks = new ArrayList<>();
+		private final ArrayList<String[]> sinkFields = new ArrayList<>();
+		/**
+		 * The constructor calls, whose arguments reach the new object.
+		 */
+		private final ArrayList<Integer> constructorCalls = new ArrayList<>();
+		
+		private int current;
+		private int currentOpcode;
+		private String[] currentField;
+		private ArrayList<Input> currentInputs;
+		private int depth;
+		
+		@Override
+		public void visitMethod(String owner, String name, String desc) {
+			returnsValue = Type.getReturnType(desc).getSort() != Type.VOID;
+		}
+		
+		@Override
+		public void visitDegraded(String level, String reason) {
+			degraded = true;
+		}
+		
+		@Override
+		public void visitParametersStart() {
+		}
+		
+		@Override
+		public void visitParameter(int index, Type type) {
+			parameterCount = Math.max(parameterCount, index + 1);
+		}
+		
+		@Override
+		public void visitParametersEnd() {
+		}
+		
+		@Override
+		public void visitInstructionsStart() {
+		}
+		
+		@Override
+		public void visitInstruction(int index, int opcode, int lineNumber) {
+			current = index;
+			currentOpcode = opcode;
+			currentField = null;
+			currentInputs = null;
+			while (inputs.size() <= index) {
+				inputs.add(Collections.<Input>emptyList());
+			}
+		}
+		
+		@Override
+		public void visitConstant(Object value) {
+		}
+		
+		@Override
+		public void visitField(String owner, String name) {
+			currentField = new String[] {owner, name};
+		}
+		
+		@Override
+		public void visitInputsStart() {
+			currentInputs = new ArrayList<>();
+			depth = 0;
+		}
+		
+		private Input input() {
+			if (depth == 0 || currentInputs.isEmpty()) {
+				currentInputs.add(new Input());
+			}
+			return currentInputs.get(currentInputs.size() - 1);
+		}
+		
+		@Override
+		public void visitValueOfInstruction(int index) {
+			input().addInstruction(index);
+		}
+		
+		@Override
+		public void visitValueOfParameter(int index) {
+			input().parameters.set(index);
+		}
+		
+		@Override
+		public void visitMergeStart() {
+			if (depth == 0) {
+				currentInputs.add(new Input());
+			}
+			depth += 1;
+		}
+		
+		@Override
+		public void visitMergeEnd() {
+			depth -= 1;
+		}
+		
+		@Override
+		public void visitException(String descriptor) {
+			input();
+		}
+		
+		@Override
+		public void visitUnknown() {
+			input();
+		}
+		
+		@Override
+		public void visitInputsEnd() {
+			inputs.set(current, currentInputs);
+		}
+		
+		@Override
+		public void visitCallTarget(String owner, String name, String desc) {
+			if (name.equals("<init>")) {
+				constructorCalls.add(current);
+			}
+		}
+		
+		@Override
+		public void visitExitsStart() {
+		}
+		
+		@Override
+		public void visitExit(int target, boolean exceptional) {
+		}
+		
+		@Override
+		public void visitExitsEnd() {
+		}
+		
+		@Override
+		public void visitInstructionEnd() {
+			if ((currentOpcode >= Opcodes.IRETURN && currentOpcode <= Opcodes.ARETURN)
+					|| currentOpcode == Opcodes.ATHROW
+					|| currentOpcode == Opcodes.PUTFIELD
+					|| currentOpcode == Opcodes.PUTSTATIC) {
+				sinks.add(new int[] {current, currentOpcode});
+				sinkFields.add(currentField);
+			}
+		}
+		
+		@Override
+		public void visitInstructionsEnd() {
+		}
+		
+		@Override
+		public void visitMethodEnd() {
+		}
+		
+		/**
+		 * @return the parameters reaching each instruction.
+		 */
+		private BitSet[] propagate() {
+			BitSet[] reach = new BitSet[inputs.size()];
+			for (int i = 0; i < reach.length; ++i) {
+				reach[i] = new BitSet();
+			}
+			// values mostly flow forward, so this takes a few passes, with
+			// one more for each loop carrying a parameter backwards
+			boolean changed = true;
+			while (changed) {
+				changed = false;
+				for (int i = 0; i < reach.length; ++i) {
+					int before = reach[i].cardinality();
+					for (Input input: inputs.get(i)) {
+						union(reach[i], input, reach);
+					}
+					changed |= reach[i].cardinality() != before;
+				}
+				for (int call: constructorCalls) {
+					List<Input> callInputs = inputs.get(call);
+					if (callInputs.isEmpty()) {
+						continue;
+					}
+					Input receiver = callInputs.get(0);
+					for (int j = 0; j < receiver.instructionCount; ++j) {
+						int before = reach[receiver.instructions[j]].cardinality();
+						reach[receiver.instructions[j]].or(reach[call]);
+						changed |= reach[receiver.instructions[j]].cardinality() != before;
+					}
+				}
+			}
+			return reach;
+		}
+		
+		private static void union(BitSet result, Input input, BitSet[] reach) {
+			result.or(input.parameters);
+			for (int j = 0; j < input.instructionCount; ++j) {
+				result.or(reach[input.instructions[j]]);
+			}
+		}
+		
+		private BitSet reachOf(int instruction, int position, BitSet[] reach) {
+			BitSet result = new BitSet();
+			List<Input> instructionInputs = inputs.get(instruction);
+			if (position < instructionInputs.size()) {
+				union(result, instructionInputs.get(position), reach);
+			}
+			return result;
+		}
+		
+		MethodSummary build(MethodRef method, List<MethodRef> calls) {
+			BitSet returned = new BitSet();
+			BitSet thrown = new BitSet();
+			LinkedHashMap<String, FieldWrite> fieldWrites = new LinkedHashMap<>();
+			
+			BitSet all = new BitSet();
+			all.set(0, parameterCount);
+			BitSet[] reach = degraded ? null : propagate();
+			if (degraded) {
+				if (returnsValue) {
+					returned.or(all);
+				}
+				thrown.or(all);
+			}
+			
+			for (int i = 0; i < sinks.size(); ++i) {
+				int instruction = sinks.get(i)[0];
+				int opcode = sinks.get(i)[1];
+				if (opcode == Opcodes.ATHROW) {
+					if (!degraded) {
+						thrown.or(reachOf(instruction, 0, reach));
+					}
+					continue;
+				}
+				if (opcode != Opcodes.PUTFIELD && opcode != Opcodes.PUTSTATIC) {
+					if (!degraded) {
+						returned.or(reachOf(instruction, 0, reach));
+					}
+					continue;
+				}
+				
+				String[] field = sinkFields.get(i);
+				FieldWrite write = fieldWrites.computeIfAbsent(field[0] + "." + field[1],
+						k -> new FieldWrite(field[0], field[1], new BitSet(), new BitSet()));
+				if (degraded) {
+					write.value.or(all);
+					if (opcode == Opcodes.PUTFIELD) {
+						write.target.or(all);
+					}
+				} else if (opcode == Opcodes.PUTFIELD) {
+					write.target.or(reachOf(instruction, 0, reach));
+					write.value.or(reachOf(instruction, 1, reach));
+				} else {
+					write.value.or(reachOf(instruction, 0, reach));
+				}
+			}
+			return new MethodSummary(method, degraded, returned, thrown, new ArrayList<>(fieldWrites.values()), calls);
+		}
+	}
+}
@@ -0,0 +1,21 @@
+package org.prettycat.dataflow.asm;
+
+/**
+ * The format of the analysis output.
+ */
+public enum OutputFormat {
+	/**
+	 * {@link XMLProtocol}, as read by the prettycat graph analysis tool.
+	 */
+	XML,
+	/**
+	 * Version 2 of the XML protocol, with method-relative ids and a symbol
+	 * table, see {@link CompactXMLOutputSink}.
+	 */
+	XML2,
+	/**
+	 * {@link BinaryFormat}, which can be converted back to XML with
+	 * {@link BinaryReader}.
+	 */
+	BINARY;
+}
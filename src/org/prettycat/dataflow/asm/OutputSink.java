@@ -0,0 +1,15 @@
+package org.prettycat.dataflow.asm;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Destination for finished method analyses.
+ *
+ * Methods are passed to the sink in output order. The sink must not hold on
+ * to the {@link MethodResult} after {@link #write(MethodResult)} returns
+ * unless it has to; closing the sink completes the output.
+ */
+public interface OutputSink extends Closeable {
+	public void write(MethodResult analysis) throws IOException;
+}
@@ -0,0 +1,110 @@
+package org.prettycat.dataflow.asm;
+
+import java.util.Arrays;
+
+/**
+ * Decides which classes are in the scope of an analysis, by include and
+ * exclude patterns.
+ *
+ * A pattern is a package name like {@code java.util} or {@code com/example},
+ * optionally followed by {@code .*} or {@code .**}; it matches the classes of
+ * the package and of all its subpackages (and a class with the pattern as
+ * name). If several patterns match a class, the longest one wins, so
+ * {@code --include com.example --exclude com.example.generated} works as
+ * expected. A class matching no pattern is in scope if no include patterns
+ * were given.
+ *
+ * The patterns are kept in a trie over the characters of the internal
+ * names, so {@link #matches(String)} takes a single pass over the class
+ * name and does not allocate.
+ */
+public class PackageFilter {
+	private static final byte NONE = 0;
+	private static final byte INCLUDE = 1;
+	private static final byte EXCLUDE = 2;
+	
+	private static class Node {
+		/**
+		 * The characters of the children, sorted.
+		 */
+		char[] labels = new char[0];
+		Node[] children = new Node[0];
+		/**
+		 * The rule of the pattern ending at this node, if any.
+		 */
+		byte rule = NONE;
+		
+		Node get(char label) {
+			int i = Arrays.binarySearch(labels, label);
+			return i >= 0 ? children[i] : null;
+		}
+		
+		Node getOrAdd(char label) {
+			int i = Arrays.binarySearch(labels, label);
+			if (i >= 0) {
+				return children[i];
+			}
+			i = -i - 1;
+			char[] newLabels = new char[labels.length + 1];
+			Node[] newChildren = new Node[children.length + 1];
+			System.arraycopy(labels, 0, newLabels, 0, i);
+			System.arraycopy(children, 0, newChildren, 0, i);
+			System.arraycopy(labels, i, newLabels, i + 1, labels.length - i);
+			System.arraycopy(children, i, newChildren, i + 1, children.length - i);
+			newLabels[i] = label;
+			newChildren[i] = new Node();
+			labels = newLabels;
+			children = newChildren;
+			return newChildren[i];
+		}
+	}
+	
+	private final Node root = new Node();
+	private boolean hasIncludes = false;
+	
+	public void include(String pattern) {
+		add(pattern, INCLUDE);
+		hasIncludes = true;
+	}
+	
+	public void exclude(String pattern) {
+		add(pattern, EXCLUDE);
+	}
+	
+	private void add(String pattern, byte rule) {
+		String name = pattern.replace('.', '/');
+		if (name.endsWith("/**")) {
+			name = name.substring(0, name.length() - 3);
+		} else if (name.endsWith("/*")) {
+			name = name.substring(0, name.length() - 2);
+		}
+		if (name.isEmpty() || name.startsWith("/") || name.endsWith("/")) {
+			throw new IllegalArgumentException("invalid package pattern: "+pattern);
+		}
+		Node node = root;
+		for (int i = 0; i < name.length(); ++i) {
+			node = node.getOrAdd(name.charAt(i));
+		}
+		node.rule = rule;
+	}
+	
+	/**
+	 * @return true if the class (given by its internal name) is in scope.
+	 */
+	public boolean matches(String class_name) {
+		byte rule = NONE;
+		Node node = root;
+		int length = class_name.length();
+		for (int i = 0; i < length && node != null; ++i) {
+			node = node.get(class_name.charAt(i));
+			// patterns only match whole name segments
+			if (node != null && node.rule != NONE && (i + 1 == length || class_name.charAt(i + 1) == '/')) {
+				rule = node.rule;
+			}
+		}
+		if (rule == NONE) {
+			return !hasIncludes;
+		}
+		return rule == INCLUDE;
+	}
+}
@@ -0,0 +1,45 @@
+package org.prettycat.dataflow.asm;
+
+/**
+ * The shape of the pipeline of {@link AnalysisSession#setPipeline}: the
+ * number of threads of each stage and the bounds of the queues between them.
+ */
+public class PipelineConfig {
+	/**
+	 * Threads finding and reading class files, and looking up results of
+	 * earlier runs.
+	 */
+	public final int readThreads;
+	/**
+	 * Threads building the trees of the classes.
+	 */
+	public final int parseThreads;
+	/**
+	 * Threads analysing the methods of the classes.
+	 */
+	public final int analysisThreads;
+	/**
+	 * The capacity of the queues in front of the parse and analysis stages;
+	 * a full queue stalls the stage before it.
+	 */
+	public final int queueCapacity;
+	/**
+	 * The number of classes which may be analysed ahead of the output, i.e.
+	 * in the pipeline or done and waiting to be written.
+	 */
+	public final int maxInFlight;
+	
+	public PipelineConfig(int readThreads, int parseThreads, int analysisThreads, int queueCapacity, int maxInFlight) {
+		if (readThreads < 1 || parseThreads < 1 || analysisThreads < 1) {
+			throw new IllegalArgumentException("each pipeline stage needs at least one thread");
+		}
+		if (queueCapacity < 1 || maxInFlight < 1) {
+			throw new IllegalArgumentException("pipeline queues must hold at least one class");
+		}
+		this.readThreads = readThreads;
+		this.parseThreads = parseThreads;
+		this.analysisThreads = analysisThreads;
+		this.queueCapacity = queueCapacity;
+		this.maxInFlight = maxInFlight;
+	}
+}
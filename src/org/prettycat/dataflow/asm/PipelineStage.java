@@ -0,0 +1,180 @@
+package org.prettycat.dataflow.asm;
+
+import java.io.Closeable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * One stage of a pipeline: a fixed number of threads taking items from a
+ * bounded queue and handing them to a handler, which usually submits its
+ * result to the next stage.
+ *
+ * {@link #submit(Object)} blocks while the queue is full, so a slow stage
+ * stalls the stages before it instead of letting its queue grow. The
+ * handler has to deal with its own failures; an exception ends the thread
+ * it was thrown on.
+ */
+public class PipelineStage<T> implements Closeable {
+	/**
+	 * The counters of a stage, which can also be kept for work which is not
+	 * done by a PipelineStage (e.g. the output).
+	 */
+	public static class Stats {
+		private final LongAdder items = new LongAdder();
+		private final LongAdder depthSamples = new LongAdder();
+		private final LongAdder depthSum = new LongAdder();
+		private final AtomicInteger maxDepth = new AtomicInteger();
+		private final LongAdder stalls = new LongAdder();
+		private final LongAdder stallNanos = new LongAdder();
+		private final LongAdder idleNanos = new LongAdder();
+		
+		public void addItem() {
+			items.increment();
+		}
+		
+		/**
+		 * Sample the number of items waiting for the stage.
+		 */
+		public void addDepth(int depth) {
+			depthSamples.increment();
+			depthSum.add(depth);
+			maxDepth.accumulateAndGet(depth, Math::max);
+		}
+		
+		/**
+		 * Count time a producer waited for room in the queue.
+		 */
+		public void addStall(long nanos) {
+			stalls.increment();
+			stallNanos.add(nanos);
+		}
+		
+		/**
+		 * Count time the stage waited for work.
+		 */
+		public void addIdle(long nanos) {
+			idleNanos.add(nanos);
+		}
+		
+		public long getItems() {
+			return items.sum();
+		}
+		
+		public double getMeanDepth() {
+			long samples = depthSamples.sum();
+			return samples == 0 ? 0 : (double)depthSum.sum() / samples;
+		}
+		
+		public int getMaxDepth() {
+			return maxDepth.get();
+		}
+		
+		public long getStalls() {
+			return stalls.sum();
+		}
+		
+		public long getStallNanos() {
+			return stallNanos.sum();
+		}
+		
+		public long getIdleNanos() {
+			return idleNanos.sum();
+		}
+	}
+	
+	/**
+	 * How often waiting threads check whether the stage was closed.
+	 */
+	private static final long POLL_MILLIS = 100;
+	
+	private final String name;
+	private final int capacity;
+	private final ArrayBlockingQueue<T> queue;
+	private final Consumer<T> handler;
+	private final Thread[] workers;
+	private final Stats stats = new Stats();
+	private volatile boolean closed = false;
+	
+	public PipelineStage(String name, int threads, int capacity, Consumer<T> handler) {
+		this.name = name;
+		this.capacity = capacity;
+		this.queue = new ArrayBlockingQueue<>(capacity);
+		this.handler = handler;
+		this.workers = new Thread[threads];
+		for (int i = 0; i < threads; ++i) {
+			workers[i] = new Thread(this::work, "pipeline-"+name+"-"+i);
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	public int getThreads() {
+		return workers.length;
+	}
+	
+	public int getCapacity() {
+		return capacity;
+	}
+	
+	public Stats getStats() {
+		return stats;
+	}
+	
+	/**
+	 * Queue an item, waiting for room if the queue is full.
+	 */
+	public void submit(T item) {
+		stats.addDepth(queue.size());
+		if (queue.offer(item)) {
+			return;
+		}
+		long start = System.nanoTime();
+		try {
+			while (!queue.offer(item, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+				if (closed) {
+					throw new IllegalStateException("pipeline stage "+name+" is closed");
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while waiting for pipeline stage "+name, e);
+		} finally {
+			stats.addStall(System.nanoTime() - start);
+		}
+	}
+	
+	private void work() {
+		while (!closed) {
+			long start = System.nanoTime();
+			T item;
+			try {
+				item = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				return;
+			}
+			stats.addIdle(System.nanoTime() - start);
+			if (item == null) {
+				continue;
+			}
+			handler.accept(item);
+			stats.addItem();
+		}
+	}
+	
+	/**
+	 * Stop the threads; items still in the queue are dropped, and items
+	 * being handled are finished. The threads are not interrupted, as that
+	 * would close the channels of the jar files they read from.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+	}
+}
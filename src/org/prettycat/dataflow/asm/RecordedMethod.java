@@ -0,0 +1,634 @@
+package org.prettycat.dataflow.asm;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Type;
+
+/**
+ * A method result recorded as a compact stream of {@link AnalysisVisitor}
+ * events, which can be replayed any number of times and serialized.
+ *
+ * Recording does not keep any reference to the ASM trees or the analyser
+ * state of the original result.
+ */
+public class RecordedMethod implements MethodResult {
+	private static final int PARAMETERS_START = 1;
+	private static final int PARAMETER = 2;
+	private static final int PARAMETERS_END = 3;
+	private static final int INSTRUCTIONS_START = 4;
+	private static final int INSTRUCTION = 5;
+	private static final int CONSTANT = 6;
+	private static final int FIELD = 7;
+	private static final int INPUTS_START = 8;
+	private static final int VALUE_OF_INSTRUCTION = 9;
+	private static final int VALUE_OF_PARAMETER = 10;
+	private static final int MERGE_START = 11;
+	private static final int MERGE_END = 12;
+	private static final int EXCEPTION = 13;
+	private static final int UNKNOWN = 14;
+	private static final int INPUTS_END = 15;
+	private static final int CALL_TARGET = 16;
+	private static final int EXITS_START = 17;
+	private static final int EXIT = 18;
+	private static final int EXITS_END = 19;
+	private static final int INSTRUCTION_END = 20;
+	private static final int INSTRUCTIONS_END = 21;
+	private static final int METHOD_END = 22;
+	private static final int DEGRADED = 23;
+	
+	private static final int CONSTANT_NULL = 0;
+	private static final int CONSTANT_INTEGER = 1;
+	private static final int CONSTANT_FLOAT = 2;
+	private static final int CONSTANT_LONG = 3;
+	private static final int CONSTANT_DOUBLE = 4;
+	private static final int CONSTANT_STRING = 5;
+	private static final int CONSTANT_TYPE = 6;
+	private static final int CONSTANT_HANDLE = 7;
+	
+	private final String owner;
+	private final String name;
+	private final String desc;
+	private final byte[] events;
+	private final Set<String> referencedMethods;
+	private final List<MethodAnalysis.CallSite> callSites;
+	private final List<String> instantiatedTypes;
+	
+	private RecordedMethod(
+			String owner, 
+			String name, 
+			String desc, 
+			byte[] events,
+			Set<String> referencedMethods,
+			List<MethodAnalysis.CallSite> callSites,
+			List<String> instantiatedTypes)
+	{
+		this.owner = owner;
+		this.name = name;
+		this.desc = desc;
+		this.events = events;
+		this.referencedMethods = referencedMethods;
+		this.callSites = callSites;
+		this.instantiatedTypes = instantiatedTypes;
+	}
+	
+	/**
+	 * Record the given result.
+	 */
+	public static RecordedMethod record(MethodResult result) {
+		if (result instanceof RecordedMethod) {
+			return (RecordedMethod)result;
+		}
+		Recorder recorder = new Recorder();
+		result.accept(recorder);
+		return new RecordedMethod(
+				result.getOwner(), 
+				result.getName(), 
+				result.getDesc(),
+				recorder.toByteArray(),
+				Collections.unmodifiableSet(new LinkedHashSet<String>(result.getReferencedMethods())),
+				Collections.unmodifiableList(new ArrayList<MethodAnalysis.CallSite>(result.getCallSites())),
+				Collections.unmodifiableList(new ArrayList<String>(result.getInstantiatedTypes())));
+	}
+	
+	/**
+	 * @return the same result, reported as a method of another owner.
+	 */
+	public RecordedMethod withOwner(String owner) {
+		return new RecordedMethod(owner, name, desc, events, referencedMethods, callSites, instantiatedTypes);
+	}
+	
+	/**
+	 * @return the same result, reported as the method of another owner and
+	 *    name with the same code, see {@link MethodFingerprint}: references
+	 *    to the owner (and the type of {@code this}) are replaced by the new
+	 *    owner.
+	 * @param hasReceiver false for static methods, whose parameter 0 is not
+	 *    {@code this}.
+	 */
+	public RecordedMethod relabel(String newOwner, String newName, boolean hasReceiver) {
+		final String oldDescriptor = "L" + owner + ";";
+		Recorder recorder = new Recorder() {
+			@Override
+			public void visitParameter(int index, Type type) {
+				super.visitParameter(index, hasReceiver && index == 0 ? Type.getObjectType(newOwner) : type);
+			}
+			
+			@Override
+			public void visitConstant(Object value) {
+				if (value instanceof Type && ((Type)value).getSort() == Type.OBJECT) {
+					value = Type.getObjectType(relabelClass(((Type)value).getInternalName(), newOwner));
+				} else if (value instanceof Handle) {
+					Handle handle = (Handle)value;
+					value = new Handle(handle.getTag(), relabelClass(handle.getOwner(), newOwner), handle.getName(), handle.getDesc(), handle.isInterface());
+				}
+				super.visitConstant(value);
+			}
+			
+			@Override
+			public void visitField(String fieldOwner, String name) {
+				super.visitField(relabelClass(fieldOwner, newOwner), name);
+			}
+			
+			@Override
+			public void visitException(String descriptor) {
+				super.visitException(descriptor.equals(oldDescriptor) ? "L" + newOwner + ";" : descriptor);
+			}
+			
+			@Override
+			public void visitCallTarget(String targetOwner, String name, String desc) {
+				super.visitCallTarget(relabelClass(targetOwner, newOwner), name, desc);
+			}
+		};
+		accept(recorder);
+		
+		LinkedHashSet<String> newReferencedMethods = new LinkedHashSet<String>();
+		for (String method: referencedMethods) {
+			int slash = method.lastIndexOf('/');
+			newReferencedMethods.add(relabelClass(method.substring(0, slash), newOwner) + method.substring(slash));
+		}
+		ArrayList<MethodAnalysis.CallSite> newCallSites = new ArrayList<MethodAnalysis.CallSite>(callSites.size());
+		for (MethodAnalysis.CallSite call: callSites) {
+			newCallSites.add(!call.target.owner.equals(owner) ? call
+					: new MethodAnalysis.CallSite(call.opcode, new MethodRef(newOwner, call.target.name, call.target.desc)));
+		}
+		ArrayList<String> newInstantiatedTypes = new ArrayList<String>(instantiatedTypes.size());
+		for (String type: instantiatedTypes) {
+			newInstantiatedTypes.add(relabelClass(type, newOwner));
+		}
+		return new RecordedMethod(
+				newOwner,
+				newName,
+				desc,
+				recorder.toByteArray(),
+				Collections.unmodifiableSet(newReferencedMethods),
+				Collections.unmodifiableList(newCallSites),
+				Collections.unmodifiableList(newInstantiatedTypes));
+	}
+	
+	private String relabelClass(String class_name, String newOwner) {
+		return class_name.equals(owner) ? newOwner : class_name;
+	}
+	
+	@Override
+	public String getOwner() {
+		return owner;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public String getDesc() {
+		return desc;
+	}
+
+	@Override
+	public Set<String> getReferencedMethods() {
+		return referencedMethods;
+	}
+
+	@Override
+	public List<MethodAnalysis.CallSite> getCallSites() {
+		return callSites;
+	}
+
+	@Override
+	public List<String> getInstantiatedTypes() {
+		return instantiatedTypes;
+	}
+	
+	/**
+	 * @return the degradation of the result, as given by
+	 *    {@link MethodAnalysis#getDegradation()}.
+	 */
+	public String getDegradation() {
+		return readDegraded(0);
+	}
+	
+	public String getDegradationReason() {
+		return readDegraded(1);
+	}
+	
+	private String readDegraded(int field) {
+		if (events.length == 0 || events[0] != DEGRADED) {
+			return null;
+		}
+		try {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(events, 1, events.length - 1));
+			String level = in.readUTF();
+			return field == 0 ? level : in.readUTF();
+		} catch (IOException e) {
+			throw new IllegalStateException("corrupt recording of "+MethodAnalysis.getFullyQualifiedMethodName(owner, name, desc), e);
+		}
+	}
+	
+	/**
+	 * @return the size of the recorded events in bytes.
+	 */
+	public int getRecordedSize() {
+		return events.length;
+	}
+	
+	@Override
+	public void accept(AnalysisVisitor visitor) {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(events));
+		visitor.visitMethod(owner, name, desc);
+		try {
+			int event;
+			while ((event = in.read()) >= 0) {
+				switch (event) {
+				case DEGRADED:
+					visitor.visitDegraded(in.readUTF(), in.readUTF());
+					break;
+				case PARAMETERS_START:
+					visitor.visitParametersStart();
+					break;
+				case PARAMETER:
+					visitor.visitParameter(VarInt.readUnsigned(in), readType(in));
+					break;
+				case PARAMETERS_END:
+					visitor.visitParametersEnd();
+					break;
+				case INSTRUCTIONS_START:
+					visitor.visitInstructionsStart();
+					break;
+				case INSTRUCTION:
+					visitor.visitInstruction(VarInt.readUnsigned(in), VarInt.readSigned(in), VarInt.readSigned(in));
+					break;
+				case CONSTANT:
+					visitor.visitConstant(readConstant(in));
+					break;
+				case FIELD:
+					visitor.visitField(in.readUTF(), in.readUTF());
+					break;
+				case INPUTS_START:
+					visitor.visitInputsStart();
+					break;
+				case VALUE_OF_INSTRUCTION:
+					visitor.visitValueOfInstruction(VarInt.readUnsigned(in));
+					break;
+				case VALUE_OF_PARAMETER:
+					visitor.visitValueOfParameter(VarInt.readUnsigned(in));
+					break;
+				case MERGE_START:
+					visitor.visitMergeStart();
+					break;
+				case MERGE_END:
+					visitor.visitMergeEnd();
+					break;
+				case EXCEPTION:
+					visitor.visitException(in.readUTF());
+					break;
+				case UNKNOWN:
+					visitor.visitUnknown();
+					break;
+				case INPUTS_END:
+					visitor.visitInputsEnd();
+					break;
+				case CALL_TARGET:
+					visitor.visitCallTarget(in.readUTF(), in.readUTF(), in.readUTF());
+					break;
+				case EXITS_START:
+					visitor.visitExitsStart();
+					break;
+				case EXIT:
+					visitor.visitExit(VarInt.readUnsigned(in), in.readBoolean());
+					break;
+				case EXITS_END:
+					visitor.visitExitsEnd();
+					break;
+				case INSTRUCTION_END:
+					visitor.visitInstructionEnd();
+					break;
+				case INSTRUCTIONS_END:
+					visitor.visitInstructionsEnd();
+					break;
+				case METHOD_END:
+					visitor.visitMethodEnd();
+					break;
+				default:
+					throw new IOException("invalid event "+event);
+				}
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("corrupt recording of "+MethodAnalysis.getFullyQualifiedMethodName(owner, name, desc), e);
+		}
+	}
+	
+	public void writeTo(DataOutput out) throws IOException {
+		out.writeUTF(owner);
+		out.writeUTF(name);
+		out.writeUTF(desc);
+		VarInt.writeUnsigned(out, events.length);
+		out.write(events);
+		VarInt.writeUnsigned(out, referencedMethods.size());
+		for (String referenced: referencedMethods) {
+			out.writeUTF(referenced);
+		}
+		VarInt.writeUnsigned(out, callSites.size());
+		for (MethodAnalysis.CallSite call: callSites) {
+			VarInt.writeUnsigned(out, call.opcode);
+			out.writeUTF(call.target.owner);
+			out.writeUTF(call.target.name);
+			out.writeUTF(call.target.desc);
+		}
+		VarInt.writeUnsigned(out, instantiatedTypes.size());
+		for (String type: instantiatedTypes) {
+			out.writeUTF(type);
+		}
+	}
+	
+	public static RecordedMethod readFrom(DataInput in) throws IOException {
+		String owner = in.readUTF();
+		String name = in.readUTF();
+		String desc = in.readUTF();
+		byte[] events = new byte[VarInt.readUnsigned(in)];
+		in.readFully(events);
+		int n = VarInt.readUnsigned(in);
+		LinkedHashSet<String> referencedMethods = new LinkedHashSet<String>();
+		for (int i = 0; i < n; ++i) {
+			referencedMethods.add(in.readUTF());
+		}
+		n = VarInt.readUnsigned(in);
+		ArrayList<MethodAnalysis.CallSite> callSites = new ArrayList<MethodAnalysis.CallSite>(n);
+		for (int i = 0; i < n; ++i) {
+			int opcode = VarInt.readUnsigned(in);
+			callSites.add(new MethodAnalysis.CallSite(opcode, new MethodRef(in.readUTF(), in.readUTF(), in.readUTF())));
+		}
+		n = VarInt.readUnsigned(in);
+		ArrayList<String> instantiatedTypes = new ArrayList<String>(n);
+		for (int i = 0; i < n; ++i) {
+			instantiatedTypes.add(in.readUTF());
+		}
+		return new RecordedMethod(
+				owner, name, desc, events,
+				Collections.unmodifiableSet(referencedMethods),
+				Collections.unmodifiableList(callSites),
+				Collections.unmodifiableList(instantiatedTypes));
+	}
+	
+	private static Type readType(DataInput in) throws IOException {
+		if (!in.readBoolean()) {
+			return null;
+		}
+		return Type.getType(in.readUTF());
+	}
+	
+	private static Object readConstant(DataInput in) throws IOException {
+		int tag = in.readUnsignedByte();
+		switch (tag) {
+		case CONSTANT_NULL:
+			return null;
+		case CONSTANT_INTEGER:
+			return in.readInt();
+		case CONSTANT_FLOAT:
+			return in.readFloat();
+		case CONSTANT_LONG:
+			return in.readLong();
+		case CONSTANT_DOUBLE:
+			return in.readDouble();
+		case CONSTANT_STRING:
+			return in.readUTF();
+		case CONSTANT_TYPE:
+			return Type.getType(in.readUTF());
+		case CONSTANT_HANDLE:
+			return new Handle(in.readUnsignedByte(), in.readUTF(), in.readUTF(), in.readUTF(), in.readBoolean());
+		default:
+			throw new IOException("invalid constant tag "+tag);
+		}
+	}
+	
+	/**
+	 * Serializes the visited events.
+	 */
+	private static class Recorder implements AnalysisVisitor {
+		private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		private final DataOutputStream out = new DataOutputStream(buffer);
+		
+		public byte[] toByteArray() {
+			return buffer.toByteArray();
+		}
+		
+		private void event(int event) {
+			try {
+				out.writeByte(event);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		
+		private void event(int event, int... values) {
+			try {
+				out.writeByte(event);
+				for (int value: values) {
+					VarInt.writeUnsigned(out, value);
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		
+		private void event(int event, String... values) {
+			try {
+				out.writeByte(event);
+				for (String value: values) {
+					out.writeUTF(value);
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		@Override
+		public void visitMethod(String owner, String name, String desc) {
+			// recorded separately
+		}
+
+		@Override
+		public void visitDegraded(String level, String reason) {
+			event(DEGRADED, level, reason);
+		}
+
+		@Override
+		public void visitParametersStart() {
+			event(PARAMETERS_START);
+		}
+
+		@Override
+		public void visitParameter(int index, Type type) {
+			try {
+				out.writeByte(PARAMETER);
+				VarInt.writeUnsigned(out, index);
+				out.writeBoolean(type != null);
+				if (type != null) {
+					out.writeUTF(type.getDescriptor());
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		@Override
+		public void visitParametersEnd() {
+			event(PARAMETERS_END);
+		}
+
+		@Override
+		public void visitInstructionsStart() {
+			event(INSTRUCTIONS_START);
+		}
+
+		@Override
+		public void visitInstruction(int index, int opcode, int lineNumber) {
+			try {
+				out.writeByte(INSTRUCTION);
+				VarInt.writeUnsigned(out, index);
+				VarInt.writeSigned(out, opcode);
+				VarInt.writeSigned(out, lineNumber);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		@Override
+		public void visitConstant(Object value) {
+			try {
+				out.writeByte(CONSTANT);
+				if (value == null) {
+					out.writeByte(CONSTANT_NULL);
+				} else if (value instanceof Integer) {
+					out.writeByte(CONSTANT_INTEGER);
+					out.writeInt((Integer)value);
+				} else if (value instanceof Float) {
+					out.writeByte(CONSTANT_FLOAT);
+					out.writeFloat((Float)value);
+				} else if (value instanceof Long) {
+					out.writeByte(CONSTANT_LONG);
+					out.writeLong((Long)value);
+				} else if (value instanceof Double) {
+					out.writeByte(CONSTANT_DOUBLE);
+					out.writeDouble((Double)value);
+				} else if (value instanceof String) {
+					out.writeByte(CONSTANT_STRING);
+					out.writeUTF((String)value);
+				} else if (value instanceof Type) {
+					out.writeByte(CONSTANT_TYPE);
+					out.writeUTF(((Type)value).getDescriptor());
+				} else if (value instanceof Handle) {
+					Handle handle = (Handle)value;
+					out.writeByte(CONSTANT_HANDLE);
+					out.writeByte(handle.getTag());
+					out.writeUTF(handle.getOwner());
+					out.writeUTF(handle.getName());
+					out.writeUTF(handle.getDesc());
+					out.writeBoolean(handle.isInterface());
+				} else {
+					throw new IllegalArgumentException("cannot record constant "+value);
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		@Override
+		public void visitField(String owner, String name) {
+			event(FIELD, owner, name);
+		}
+
+		@Override
+		public void visitInputsStart() {
+			event(INPUTS_START);
+		}
+
+		@Override
+		public void visitValueOfInstruction(int index) {
+			event(VALUE_OF_INSTRUCTION, index);
+		}
+
+		@Override
+		public void visitValueOfParameter(int index) {
+			event(VALUE_OF_PARAMETER, index);
+		}
+
+		@Override
+		public void visitMergeStart() {
+			event(MERGE_START);
+		}
+
+		@Override
+		public void visitMergeEnd() {
+			event(MERGE_END);
+		}
+
+		@Override
+		public void visitException(String descriptor) {
+			event(EXCEPTION, descriptor);
+		}
+
+		@Override
+		public void visitUnknown() {
+			event(UNKNOWN);
+		}
+
+		@Override
+		public void visitInputsEnd() {
+			event(INPUTS_END);
+		}
+
+		@Override
+		public void visitCallTarget(String owner, String name, String desc) {
+			event(CALL_TARGET, owner, name, desc);
+		}
+
+		@Override
+		public void visitExitsStart() {
+			event(EXITS_START);
+		}
+
+		@Override
+		public void visitExit(int target, boolean exceptional) {
+			try {
+				out.writeByte(EXIT);
+				VarInt.writeUnsigned(out, target);
+				out.writeBoolean(exceptional);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		@Override
+		public void visitExitsEnd() {
+			event(EXITS_END);
+		}
+
+		@Override
+		public void visitInstructionEnd() {
+			event(INSTRUCTION_END);
+		}
+
+		@Override
+		public void visitInstructionsEnd() {
+			event(INSTRUCTIONS_END);
+		}
+
+		@Override
+		public void visitMethodEnd() {
+			event(METHOD_END);
+		}
+	}
+}
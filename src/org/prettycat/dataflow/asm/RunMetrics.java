@@ -0,0 +1,549 @@
+package org.prettycat.dataflow.asm;
+
+import java.io.BufferedWriter;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Time and allocation spent in each phase of a run, and counters of each
+ * analysed method.
+ *
+ * Phases are measured on the thread doing the work, so with several
+ * threads the phase times add up to more than the wall time of the run.
+ * Allocation is only measured if the JVM supports per-thread allocation
+ * counters (HotSpot does), and is -1 otherwise.
+ *
+ * Measurements may be added from any thread. The report is written as JSON
+ * with {@link #save(Path)}.
+ */
+public class RunMetrics {
+	/**
+	 * Finding and reading class files in the {@link ClassPath}.
+	 */
+	public static final String CLASS_LOOKUP = "class-lookup";
+	/**
+	 * Building the tree of a class with the ClassReader.
+	 */
+	public static final String PARSE = "parse";
+	/**
+	 * Running the dataflow analysis of the methods.
+	 */
+	public static final String ANALYSIS = "analysis";
+	/**
+	 * Handing the results to the {@link OutputSink}, which constructs the
+	 * output: the XML text or records of streaming sinks, or the tree of the
+	 * DOM sink. Without the time in {@link #OUTPUT_WRITE}.
+	 */
+	public static final String OUTPUT = "output";
+	/**
+	 * Closing the sink, which serializes the rest of the output (for the DOM
+	 * sink, the whole document). Without the time in {@link #OUTPUT_WRITE}.
+	 */
+	public static final String OUTPUT_CLOSE = "output-close";
+	/**
+	 * Writing the serialized output to the file, for the streams measured
+	 * with {@link #measure(OutputStream)}. Sinks writing on other threads
+	 * (compressed and sharded output) are not measured.
+	 */
+	public static final String OUTPUT_WRITE = "output-write";
+	
+	private static final String[] PHASES = {CLASS_LOOKUP, PARSE, ANALYSIS, OUTPUT, OUTPUT_CLOSE, OUTPUT_WRITE};
+	
+	// the counters kept for each method, in the order of the columns
+	private static final String[] COUNTERS = {"instructions", "edges", "merges", "steps", "nanos", "allocated-bytes"};
+	private static final int INSTRUCTIONS = 0;
+	private static final int EDGES = 1;
+	private static final int MERGES = 2;
+	private static final int STEPS = 3;
+	private static final int NANOS = 4;
+	private static final int ALLOCATED_BYTES = 5;
+	
+	private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+	
+	private static final com.sun.management.ThreadMXBean THREADS = getThreadBean();
+	
+	/**
+	 * A measurement started on the current thread.
+	 */
+	public static class Measurement {
+		final long startNanos;
+		final long startBytes;
+		final long startWriteNanos;
+		
+		Measurement(long startNanos, long startBytes, long startWriteNanos) {
+			this.startNanos = startNanos;
+			this.startBytes = startBytes;
+			this.startWriteNanos = startWriteNanos;
+		}
+	}
+	
+	/**
+	 * The counters of a single method.
+	 */
+	public static class MethodEntry {
+		public final MethodRef method;
+		public final long[] counters;
+		/**
+		 * See {@link MethodAnalysis#getDegradation()}.
+		 */
+		public final String degradation;
+		
+		MethodEntry(MethodRef method, long[] counters, String degradation) {
+			this.method = method;
+			this.counters = counters;
+			this.degradation = degradation;
+		}
+		
+		public long getNanos() {
+			return counters[NANOS];
+		}
+	}
+	
+	/**
+	 * The counters of a pipeline stage.
+	 */
+	private static class StageEntry {
+		final String name;
+		final int threads;
+		final int capacity;
+		final PipelineStage.Stats stats;
+		
+		StageEntry(String name, int threads, int capacity, PipelineStage.Stats stats) {
+			this.name = name;
+			this.threads = threads;
+			this.capacity = capacity;
+			this.stats = stats;
+		}
+	}
+	
+	private final int topCount;
+	private final long start = System.nanoTime();
+	/**
+	 * The time each thread spent in {@link #OUTPUT_WRITE}, to take it out of
+	 * the enclosing phase, see {@link #end}.
+	 */
+	private final ThreadLocal<long[]> writeNanos = ThreadLocal.withInitial(() -> new long[1]);
+	private long wallNanos = -1;
+	
+	private final LongAdder[] phaseCounts = new LongAdder[PHASES.length];
+	private final LongAdder[] phaseNanos = new LongAdder[PHASES.length];
+	private final LongAdder[] phaseBytes = new LongAdder[PHASES.length];
+	
+	private long[][] columns = new long[COUNTERS.length][256];
+	private int methodCount = 0;
+	private int degradedCount = 0;
+	private int duplicateCount = 0;
+	private long duplicateSavedNanos = 0;
+	private final PriorityQueue<MethodEntry> slowestMethods;
+	/**
+	 * The stages of a pipelined run, in pipeline order.
+	 */
+	private final ArrayList<StageEntry> stages = new ArrayList<>();
+	/**
+	 * Time spent on each class in all phases but the output, and the number
+	 * of its methods.
+	 */
+	private final HashMap<String, long[]> classes = new HashMap<>();
+	
+	/**
+	 * @param topCount the number of slowest methods and classes to report.
+	 */
+	public RunMetrics(int topCount) {
+		this.topCount = topCount;
+		this.slowestMethods = new PriorityQueue<>(topCount + 1, (a, b) -> Long.compare(a.getNanos(), b.getNanos()));
+		for (int i = 0; i < PHASES.length; ++i) {
+			phaseCounts[i] = new LongAdder();
+			phaseNanos[i] = new LongAdder();
+			phaseBytes[i] = new LongAdder();
+		}
+	}
+	
+	private static com.sun.management.ThreadMXBean getThreadBean() {
+		try {
+			java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+			if (bean instanceof com.sun.management.ThreadMXBean) {
+				com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)bean;
+				if (threads.isThreadAllocatedMemorySupported()) {
+					threads.setThreadAllocatedMemoryEnabled(true);
+					return threads;
+				}
+			}
+		} catch (LinkageError | UnsupportedOperationException e) {
+			// not a HotSpot JVM
+		}
+		return null;
+	}
+	
+	private static long allocatedBytes() {
+		return THREADS != null ? THREADS.getThreadAllocatedBytes(Thread.currentThread().getId()) : -1;
+	}
+	
+	public Measurement begin() {
+		return new Measurement(System.nanoTime(), allocatedBytes(), writeNanos.get()[0]);
+	}
+	
+	private static int phaseIndex(String phase) {
+		for (int i = 0; i < PHASES.length; ++i) {
+			if (PHASES[i].equals(phase)) {
+				return i;
+			}
+		}
+		throw new IllegalArgumentException("unknown phase: "+phase);
+	}
+	
+	/**
+	 * End a measurement started on the current thread, and add it to phase,
+	 * without the time spent in {@link #OUTPUT_WRITE} meanwhile.
+	 *
+	 * @param owner the class the time is attributed to, or null.
+	 * @return the elapsed time and allocated bytes (-1 if not measured).
+	 */
+	public long[] end(Measurement measurement, String phase, String owner) {
+		long[] elapsed = elapsed(measurement);
+		long written = writeNanos.get()[0] - measurement.startWriteNanos;
+		add(phase, elapsed[0] - written, elapsed[1], owner);
+		return elapsed;
+	}
+	
+	/**
+	 * @return the time and allocated bytes (-1 if not measured) since a
+	 *    measurement was started on the current thread.
+	 */
+	public long[] elapsed(Measurement measurement) {
+		long nanos = System.nanoTime() - measurement.startNanos;
+		long bytes = measurement.startBytes < 0 ? -1 : allocatedBytes() - measurement.startBytes;
+		return new long[] {nanos, bytes};
+	}
+	
+	/**
+	 * Add time and allocated bytes to phase, e.g. the part of a measurement
+	 * which was not spent in a nested phase.
+	 *
+	 * @param owner the class the time is attributed to, or null.
+	 */
+	public void add(String phase, long nanos, long bytes, String owner) {
+		int i = phaseIndex(phase);
+		phaseCounts[i].increment();
+		phaseNanos[i].add(nanos);
+		if (bytes > 0) {
+			phaseBytes[i].add(bytes);
+		}
+		if (owner != null) {
+			addClassTime(owner, nanos, 0);
+		}
+	}
+	
+	private synchronized void addClassTime(String owner, long nanos, int methods) {
+		long[] total = classes.get(owner);
+		if (total == null) {
+			total = new long[2];
+			classes.put(owner, total);
+		}
+		total[0] += nanos;
+		total[1] += methods;
+	}
+	
+	/**
+	 * Add the counters of an analysed method.
+	 *
+	 * @param measurement the result of {@link #end} for the analysis.
+	 */
+	public void addMethod(MethodAnalysis analysis, AnalysisContext context, long[] measurement) {
+		long[] counters = new long[COUNTERS.length];
+		counters[INSTRUCTIONS] = analysis.getEdges().getInstructionCount();
+		counters[EDGES] = analysis.getEdges().getEdgeCount();
+		counters[MERGES] = analysis.getDegradation() != null ? 0 : context.getInterpreter().getMergeCount();
+		counters[STEPS] = context.getSteps();
+		counters[NANOS] = measurement[0];
+		counters[ALLOCATED_BYTES] = measurement[1];
+		MethodEntry entry = new MethodEntry(
+				new MethodRef(analysis.getOwner(), analysis.getName(), analysis.getDesc()),
+				counters,
+				analysis.getDegradation());
+		
+		addClassTime(analysis.getOwner(), measurement[0], 1);
+		synchronized (this) {
+			if (methodCount == columns[0].length) {
+				for (int i = 0; i < columns.length; ++i) {
+					columns[i] = Arrays.copyOf(columns[i], methodCount * 2);
+				}
+			}
+			for (int i = 0; i < columns.length; ++i) {
+				columns[i][methodCount] = counters[i];
+			}
+			methodCount += 1;
+			if (entry.degradation != null) {
+				degradedCount += 1;
+			}
+			slowestMethods.add(entry);
+			if (slowestMethods.size() > topCount) {
+				slowestMethods.poll();
+			}
+		}
+	}
+	
+	/**
+	 * Count a method which shared the analysis of another method with the
+	 * same code.
+	 *
+	 * @param savedNanos the time the shared analysis took.
+	 */
+	public synchronized void addDuplicate(long savedNanos) {
+		duplicateCount += 1;
+		duplicateSavedNanos += savedNanos;
+	}
+	
+	/**
+	 * Add the counters of a stage of a pipelined run.
+	 *
+	 * @param capacity the capacity of the queue in front of the stage.
+	 */
+	public synchronized void addStage(String name, int threads, int capacity, PipelineStage.Stats stats) {
+		stages.add(new StageEntry(name, threads, capacity, stats));
+	}
+	
+	/**
+	 * @return a sink passing everything on to sink, measuring the time of
+	 *    {@link #OUTPUT} and {@link #OUTPUT_CLOSE}.
+	 */
+	public OutputSink measure(final OutputSink sink) {
+		return new OutputSink() {
+			@Override
+			public void write(MethodResult analysis) throws IOException {
+				Measurement measurement = begin();
+				try {
+					sink.write(analysis);
+				} finally {
+					end(measurement, OUTPUT, null);
+				}
+			}
+			
+			@Override
+			public void close() throws IOException {
+				Measurement measurement = begin();
+				try {
+					sink.close();
+				} finally {
+					end(measurement, OUTPUT_CLOSE, null);
+				}
+			}
+		};
+	}
+	
+	/**
+	 * @return a stream passing everything on to out, measuring the time of
+	 *    {@link #OUTPUT_WRITE}.
+	 */
+	public OutputStream measure(final OutputStream out) {
+		return new FilterOutputStream(out) {
+			@Override
+			public void write(int b) throws IOException {
+				long start = System.nanoTime();
+				try {
+					out.write(b);
+				} finally {
+					addWrite(System.nanoTime() - start);
+				}
+			}
+			
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				long start = System.nanoTime();
+				try {
+					out.write(b, off, len);
+				} finally {
+					addWrite(System.nanoTime() - start);
+				}
+			}
+			
+			@Override
+			public void flush() throws IOException {
+				long start = System.nanoTime();
+				try {
+					out.flush();
+				} finally {
+					addWrite(System.nanoTime() - start);
+				}
+			}
+			
+			@Override
+			public void close() throws IOException {
+				long start = System.nanoTime();
+				try {
+					out.close();
+				} finally {
+					addWrite(System.nanoTime() - start);
+				}
+			}
+		};
+	}
+	
+	private void addWrite(long nanos) {
+		writeNanos.get()[0] += nanos;
+		add(OUTPUT_WRITE, nanos, -1, null);
+	}
+	
+	/**
+	 * Mark the end of the run.
+	 */
+	public void finish() {
+		wallNanos = System.nanoTime() - start;
+	}
+	
+	public long getPhaseNanos(String phase) {
+		return phaseNanos[phaseIndex(phase)].sum();
+	}
+	
+	public synchronized int getMethodCount() {
+		return methodCount;
+	}
+	
+	/**
+	 * @return the slowest methods to analyse, slowest first.
+	 */
+	public synchronized List<MethodEntry> getSlowestMethods() {
+		ArrayList<MethodEntry> result = new ArrayList<>(slowestMethods);
+		result.sort((a, b) -> Long.compare(b.getNanos(), a.getNanos()));
+		return result;
+	}
+	
+	/**
+	 * @return the nearest-rank percentile of sorted[0..count).
+	 */
+	private static long percentile(long[] sorted, int count, double p) {
+		int rank = (int)Math.ceil(p / 100. * count);
+		return sorted[Math.max(rank, 1) - 1];
+	}
+	
+	public void save(Path file) throws IOException {
+		try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+			writeJSON(out);
+		}
+	}
+	
+	public synchronized void writeJSON(Writer out) throws IOException {
+		out.write("{\n");
+		out.write("  \"wall-nanos\": "+wallNanos+",\n");
+		out.write("  \"allocation-measured\": "+(THREADS != null)+",\n");
+		
+		out.write("  \"phases\": {");
+		for (int i = 0; i < PHASES.length; ++i) {
+			out.write(i == 0 ? "\n" : ",\n");
+			out.write("    "+quote(PHASES[i])+": {\"count\": "+phaseCounts[i].sum()
+					+", \"nanos\": "+phaseNanos[i].sum()
+					+", \"allocated-bytes\": "+(THREADS != null ? phaseBytes[i].sum() : -1)+"}");
+		}
+		out.write("\n  },\n");
+		
+		out.write("  \"stages\": [");
+		for (int i = 0; i < stages.size(); ++i) {
+			StageEntry stage = stages.get(i);
+			out.write(i == 0 ? "\n" : ",\n");
+			out.write("    {\"stage\": "+quote(stage.name)
+					+", \"threads\": "+stage.threads
+					+", \"capacity\": "+stage.capacity
+					+", \"items\": "+stage.stats.getItems()
+					+", \"mean-depth\": "+String.format(Locale.ROOT, "%.2f", stage.stats.getMeanDepth())
+					+", \"max-depth\": "+stage.stats.getMaxDepth()
+					+", \"stalls\": "+stage.stats.getStalls()
+					+", \"stall-nanos\": "+stage.stats.getStallNanos()
+					+", \"idle-nanos\": "+stage.stats.getIdleNanos()+"}");
+		}
+		out.write("\n  ],\n");
+		
+		out.write("  \"methods\": {\n");
+		out.write("    \"count\": "+methodCount+",\n");
+		out.write("    \"degraded\": "+degradedCount+",\n");
+		out.write("    \"duplicates\": {\"count\": "+duplicateCount+", \"saved-nanos\": "+duplicateSavedNanos+"}");
+		if (methodCount > 0) {
+			for (int i = 0; i < COUNTERS.length; ++i) {
+				long[] sorted = Arrays.copyOf(columns[i], methodCount);
+				Arrays.sort(sorted);
+				long total = 0;
+				for (long value: sorted) {
+					total += value;
+				}
+				out.write(",\n    "+quote(COUNTERS[i])+": {\"total\": "+total);
+				for (double p: PERCENTILES) {
+					out.write(", \"p"+(p == Math.rint(p) ? Long.toString((long)p) : Double.toString(p))+"\": "+percentile(sorted, methodCount, p));
+				}
+				out.write(", \"max\": "+sorted[methodCount - 1]+"}");
+			}
+		}
+		out.write("\n  },\n");
+		
+		out.write("  \"slowest-methods\": [");
+		List<MethodEntry> methods = getSlowestMethods();
+		for (int i = 0; i < methods.size(); ++i) {
+			MethodEntry entry = methods.get(i);
+			out.write(i == 0 ? "\n" : ",\n");
+			out.write("    {\"method\": "+quote(entry.method.toString()));
+			for (int j = 0; j < COUNTERS.length; ++j) {
+				out.write(", "+quote(COUNTERS[j])+": "+entry.counters[j]);
+			}
+			if (entry.degradation != null) {
+				out.write(", \"degradation\": "+quote(entry.degradation));
+			}
+			out.write("}");
+		}
+		out.write("\n  ],\n");
+		
+		out.write("  \"slowest-classes\": [");
+		ArrayList<Map.Entry<String, long[]>> sortedClasses = new ArrayList<>(classes.entrySet());
+		sortedClasses.sort((a, b) -> Long.compare(b.getValue()[0], a.getValue()[0]));
+		for (int i = 0; i < Math.min(topCount, sortedClasses.size()); ++i) {
+			Map.Entry<String, long[]> entry = sortedClasses.get(i);
+			out.write(i == 0 ? "\n" : ",\n");
+			out.write("    {\"class\": "+quote(entry.getKey())
+					+", \"nanos\": "+entry.getValue()[0]
+					+", \"methods\": "+entry.getValue()[1]+"}");
+		}
+		out.write("\n  ]\n");
+		out.write("}\n");
+	}
+	
+	private static String quote(String s) {
+		StringBuilder result = new StringBuilder(s.length() + 2);
+		result.append('"');
+		for (int i = 0; i < s.length(); ++i) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\') {
+				result.append('\\').append(c);
+			} else if (c < 0x20) {
+				result.append(String.format("\\u%04x", (int)c));
+			} else {
+				result.append(c);
+			}
+		}
+		result.append('"');
+		return result.toString();
+	}
+	
+	/**
+	 * Print the time spent in each phase.
+	 */
+	public void printSummary() {
+		System.out.format("run metrics: %.1f ms wall time, %d methods analysed\n", wallNanos / 1e6, getMethodCount());
+		for (int i = 0; i < PHASES.length; ++i) {
+			System.out.format("  %-14s %10.1f ms\n", PHASES[i], phaseNanos[i].sum() / 1e6);
+		}
+		for (StageEntry stage: stages) {
+			System.out.format("  stage %-8s %10.1f ms stalled, %10.1f ms idle\n",
+					stage.name, stage.stats.getStallNanos() / 1e6, stage.stats.getIdleNanos() / 1e6);
+		}
+	}
+}
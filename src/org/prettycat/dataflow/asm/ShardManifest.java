@@ -0,0 +1,89 @@
+package org.prettycat.dataflow.asm;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Lists the methods in the shards written by {@link ShardedOutputSink}.
+ *
+ * The manifest is a text file with a header line and one tab-separated line
+ * per method, in output order:
+ *
+ * <pre>
+ * METHOD-ID  SHARD  OFFSET  LENGTH  SHA-256
+ * </pre>
+ *
+ * METHOD-ID is the id of the {@code <method>} element, SHARD the file name
+ * of the shard within the output directory, OFFSET and LENGTH the byte range
+ * of the element within the shard and SHA-256 the hash of those bytes.
+ */
+public class ShardManifest {
+	public static final String FILE_NAME = "manifest.tsv";
+	private static final String HEADER = "# dataflow-asm shard manifest 1";
+	
+	public static class Entry {
+		public final String methodId;
+		public final String shard;
+		public long offset = -1;
+		public long length = -1;
+		public String hash = null;
+		
+		Entry(String methodId, String shard) {
+			this.methodId = methodId;
+			this.shard = shard;
+		}
+	}
+	
+	private final ArrayList<Entry> entries = new ArrayList<>();
+	
+	Entry add(String methodId, String shard) {
+		Entry entry = new Entry(methodId, shard);
+		entries.add(entry);
+		return entry;
+	}
+	
+	public List<Entry> getEntries() {
+		return entries;
+	}
+	
+	public static ShardManifest load(Path file) throws IOException {
+		ShardManifest result = new ShardManifest();
+		try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			if (!HEADER.equals(in.readLine())) {
+				throw new IOException("not a shard manifest (or unsupported version): "+file);
+			}
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] fields = line.split("\t", -1);
+				if (fields.length != 5) {
+					throw new IOException("malformed manifest line: "+line);
+				}
+				Entry entry = result.add(fields[0], fields[1]);
+				try {
+					entry.offset = Long.parseLong(fields[2]);
+					entry.length = Long.parseLong(fields[3]);
+				} catch (NumberFormatException e) {
+					throw new IOException("malformed manifest line: "+line);
+				}
+				entry.hash = fields[4];
+			}
+		}
+		return result;
+	}
+	
+	public void save(Path file) throws IOException {
+		try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+			out.write(HEADER);
+			out.write('\n');
+			for (Entry entry: entries) {
+				out.write(entry.methodId+"\t"+entry.shard+"\t"+entry.offset+"\t"+entry.length+"\t"+entry.hash+"\n");
+			}
+		}
+	}
+}
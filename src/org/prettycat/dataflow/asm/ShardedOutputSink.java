@@ -0,0 +1,209 @@
+package org.prettycat.dataflow.asm;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * Writes the methods into one XML document per package or per class, in a
+ * directory, together with a {@link ShardManifest}.
+ *
+ * Each shard is a complete {@link XMLProtocol} document, written by a
+ * {@link StreamingXMLOutputSink}. Shards are written on an executor, so
+ * different shards are written in parallel; the methods of a shard are
+ * written in the order they were handed to the sink. Only a limited number
+ * of shards is kept open at a time; the others are closed without ending
+ * the document and appended to when needed.
+ */
+public class ShardedOutputSink implements OutputSink {
+	/**
+	 * How methods are assigned to shards.
+	 */
+	public static enum Granularity {
+		PACKAGE,
+		CLASS;
+	}
+	
+	private final Path directory;
+	private final Granularity granularity;
+	private final Executor executor;
+	private final int maxOpen;
+	private final int maxPending;
+	
+	private final HashMap<String, Shard> shards = new HashMap<>();
+	/**
+	 * The shards which are (or will be) open, least recently used first.
+	 */
+	private final LinkedHashMap<String, Shard> openShards = new LinkedHashMap<>(16, 0.75f, true);
+	private final ArrayDeque<CompletableFuture<Void>> pending = new ArrayDeque<>();
+	private final ShardManifest manifest = new ShardManifest();
+	
+	private class Shard {
+		private final Path path;
+		private StreamingXMLOutputSink sink = null;
+		private DigestOutputStream digest = null;
+		private boolean created = false;
+		/**
+		 * The size of the shard when it was last resumed.
+		 */
+		private long base = 0;
+		/**
+		 * The last task writing to this shard; tasks of a shard run one
+		 * after the other.
+		 */
+		CompletableFuture<Void> tail = CompletableFuture.completedFuture(null);
+		
+		Shard(Path path) {
+			this.path = path;
+		}
+		
+		private void open() throws IOException {
+			digest = new DigestOutputStream(
+					new BufferedOutputStream(created
+							? Files.newOutputStream(path, StandardOpenOption.APPEND)
+							: Files.newOutputStream(path)),
+					AnalysisCache.newDigest());
+			sink = new StreamingXMLOutputSink(digest, created);
+			created = true;
+		}
+		
+		void write(MethodResult analysis, ShardManifest.Entry entry) throws IOException {
+			if (sink == null) {
+				open();
+			}
+			long start = sink.getOffset();
+			MessageDigest md = digest.getMessageDigest();
+			md.reset();
+			sink.write(analysis);
+			long end = sink.getOffset();
+			entry.offset = base + start;
+			entry.length = end - start;
+			entry.hash = AnalysisCache.hex(md.digest());
+		}
+		
+		void suspend() throws IOException {
+			if (sink != null) {
+				base += sink.getOffset();
+				sink.suspend();
+				sink = null;
+			}
+		}
+		
+		void close() throws IOException {
+			if (sink == null) {
+				open();
+			}
+			sink.close();
+			sink = null;
+		}
+	}
+	
+	public ShardedOutputSink(Path directory, Granularity granularity, Executor executor, int maxOpen, int maxPending) throws IOException {
+		this.directory = directory;
+		this.granularity = granularity;
+		this.executor = executor;
+		this.maxOpen = maxOpen;
+		this.maxPending = maxPending;
+		Files.createDirectories(directory);
+	}
+	
+	/**
+	 * @return the file name of the shard holding the methods of the class.
+	 */
+	public String getShardName(String owner) {
+		String name = owner;
+		if (granularity == Granularity.PACKAGE) {
+			int slash = owner.lastIndexOf('/');
+			if (slash < 0) {
+				// "default" is a keyword, so no package has this name
+				return "default.xml";
+			}
+			name = owner.substring(0, slash);
+		}
+		return name.replace('/', '.') + ".xml";
+	}
+	
+	private interface ShardTask {
+		void run(Shard shard) throws IOException;
+	}
+	
+	private void schedule(final Shard shard, final ShardTask task) throws IOException {
+		shard.tail = shard.tail.thenRunAsync(() -> {
+			try {
+				task.run(shard);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}, executor);
+		pending.add(shard.tail);
+		while (pending.size() > maxPending || (!pending.isEmpty() && pending.peek().isDone())) {
+			join(pending.poll());
+		}
+	}
+	
+	private static void join(CompletableFuture<Void> future) throws IOException {
+		try {
+			future.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof UncheckedIOException) {
+				throw ((UncheckedIOException)e.getCause()).getCause();
+			}
+			throw e;
+		}
+	}
+	
+	@Override
+	public void write(final MethodResult analysis) throws IOException {
+		String name = getShardName(analysis.getOwner());
+		Shard shard = shards.get(name);
+		if (shard == null) {
+			shard = new Shard(directory.resolve(name));
+			shards.put(name, shard);
+		}
+		if (openShards.put(name, shard) == null && openShards.size() > maxOpen) {
+			Iterator<Shard> eldest = openShards.values().iterator();
+			Shard evicted = eldest.next();
+			eldest.remove();
+			schedule(evicted, Shard::suspend);
+		}
+		
+		final ShardManifest.Entry entry = manifest.add(
+				MethodAnalysis.getFullyQualifiedMethodName(analysis.getOwner(), analysis.getName(), analysis.getDesc()),
+				name);
+		schedule(shard, s -> s.write(analysis, entry));
+	}
+	
+	@Override
+	public void close() throws IOException {
+		ArrayList<CompletableFuture<Void>> closing = new ArrayList<>();
+		for (Shard shard: shards.values()) {
+			schedule(shard, Shard::close);
+			closing.add(shard.tail);
+		}
+		IOException error = null;
+		for (CompletableFuture<Void> future: closing) {
+			try {
+				join(future);
+			} catch (IOException e) {
+				error = e;
+			}
+		}
+		if (error != null) {
+			throw error;
+		}
+		manifest.save(directory.resolve(ShardManifest.FILE_NAME));
+	}
+}
@@ -4,7 +4,9 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 import org.objectweb.asm.Handle;
@@ -12,6 +14,7 @@ import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.AbstractInsnNode;
 import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.InsnList;
 import org.objectweb.asm.tree.IntInsnNode;
 import org.objectweb.asm.tree.InvokeDynamicInsnNode;
 import org.objectweb.asm.tree.LdcInsnNode;
@@ -24,11 +27,90 @@ import org.objectweb.asm.tree.analysis.Value;
 
 public class SimpleFlowInterpreter extends Interpreter<SimpleFlowValue> implements Opcodes {
 	
-	private HashMap<AbstractInsnNode, SimpleFlowValue> values;
+	private InsnList instructions;
+	/**
+	 * The value produced by each instruction, indexed by instruction.
+	 */
+	private SimpleFlowValue[] values;
+	private int nextId = 0;
+	/**
+	 * Canonical merge values by their set of inputs.
+	 */
+	private final HashMap<Set<SimpleFlowValue>, SimpleFlowValue> merges = new HashMap<>();
+	private long mergeInputs = 0;
+	private long maxMergeInputs = 0;
 
+    /**
+     * Create an interpreter which does not remember the values produced by
+     * instructions.
+     */
     public SimpleFlowInterpreter() {
         super(ASM5);
-        values = new HashMap<AbstractInsnNode, SimpleFlowValue>();
+        instructions = null;
+        values = null;
+    }
+
+    /**
+     * @param instructions the instructions of the analysed method; the
+     *    value produced by each of them is available through
+     *    {@link #getValue(int)}.
+     */
+    public SimpleFlowInterpreter(final InsnList instructions) {
+        super(ASM5);
+        reset(instructions);
+    }
+
+    /**
+     * Prepare the interpreter for the analysis of another method, dropping
+     * all state of the previous one. The value table returned by
+     * {@link #getValues()} before is left untouched.
+     */
+    public void reset(final InsnList instructions) {
+        this.instructions = instructions;
+        values = new SimpleFlowValue[instructions.size()];
+        nextId = 0;
+        merges.clear();
+        mergeInputs = 0;
+    }
+
+    /**
+     * Limit the total number of inputs of the merge values created for a
+     * method; zero means unlimited. Exceeding the limit throws a
+     * {@link BudgetExceededException}.
+     */
+    public void setMaxMergeInputs(long maxMergeInputs) {
+    	this.maxMergeInputs = maxMergeInputs;
+    }
+
+    /**
+     * @return the number of distinct merge values created for the method.
+     */
+    public int getMergeCount() {
+    	return merges.size();
+    }
+
+    /**
+     * Allocate the id for a new value of this analysis.
+     */
+    public int nextValueId() {
+    	return nextId++;
+    }
+
+    /**
+     * Return the merge value over inputs, creating it only if no merge of
+     * the same inputs exists in this analysis yet.
+     */
+    public SimpleFlowValue internMerge(final Type type, final LinkedHashSet<SimpleFlowValue> inputs) {
+    	SimpleFlowValue result = merges.get(inputs);
+    	if (result == null) {
+    		mergeInputs += inputs.size();
+    		if (maxMergeInputs > 0 && mergeInputs > maxMergeInputs) {
+    			throw new BudgetExceededException(BudgetExceededException.MERGE_INPUTS, maxMergeInputs);
+    		}
+    		result = new SimpleFlowValue(nextValueId(), type, null, inputs, true);
+    		merges.put(result.inputs, result);
+    	}
+    	return result;
     }
 
     @Override
@@ -44,13 +126,13 @@ public class SimpleFlowInterpreter extends Interpreter<SimpleFlowValue> implemen
     	if (type != null && type.equals(Type.VOID_TYPE) && origin == null && (inputs == null || inputs.isEmpty())) {
     		return null;
     	}
-    	SimpleFlowValue result = new SimpleFlowValue(type, origin, inputs, false);
+    	SimpleFlowValue result = new SimpleFlowValue(nextValueId(), type, origin, inputs, false);
     	if (type == null && origin == null) {
     		System.err.println("creating null-null value");
     		Thread.dumpStack();
     	}
-    	if (origin != null) {
-    		values.put(origin, result);
+    	if (origin != null && values != null) {
+    		values[instructions.indexOf(origin)] = result;
     	}
     	return result;
     }
@@ -123,7 +205,7 @@ public class SimpleFlowInterpreter extends Interpreter<SimpleFlowValue> implemen
                         + cst);
             }
         case JSR:
-            return SimpleFlowValue.newReturnAddressValue();
+            return SimpleFlowValue.newReturnAddressValue(nextValueId());
         case GETSTATIC:
             return newValue(Type.getType(((FieldInsnNode) insn).desc), insn);
         case NEW:
@@ -398,13 +480,26 @@ public class SimpleFlowInterpreter extends Interpreter<SimpleFlowValue> implemen
     	
         // return new SimpleFlowValue(type, null, Arrays.asList(new SimpleFlowValue[]{sv, sw}), true);
     	
-    	return sv.mergeWith(sw);
+    	return sv.mergeWith(sw, this);
     }
     
     public SimpleFlowValue getValue(AbstractInsnNode node) {
-    	if (values.containsKey(node)) {
-    		return values.get(node);
-    	}
-    	return null;
+    	return getValue(instructions.indexOf(node));
+    }
+
+    /**
+     * @return the value produced by the instruction at {@code index}, or
+     *    null if it did not produce one.
+     */
+    public SimpleFlowValue getValue(int index) {
+    	return values[index];
+    }
+
+    /**
+     * @return the values produced by the instructions, indexed by
+     *    instruction.
+     */
+    public SimpleFlowValue[] getValues() {
+    	return values;
     }
 }
@@ -1,7 +1,6 @@
 package org.prettycat.dataflow.asm;
 
 import java.util.Collection;
-import java.util.HashSet;
 import java.util.LinkedHashSet;
 
 import org.objectweb.asm.Type;
@@ -11,25 +10,27 @@ import org.objectweb.asm.tree.analysis.Value;
 public class SimpleFlowValue implements Value {
 	@Override
 	public int hashCode() {
-		if (origin != null) {
-			return origin.hashCode();
-		} else if (isMerge) {
-			return inputs.hashCode();
-		} else {
-			return id;
-		}
+		return hash;
 	}
 
 	public final Type type;
 	public final AbstractInsnNode origin;
 	public final LinkedHashSet<SimpleFlowValue> inputs;
+	/**
+	 * Merge values are interned by their {@link SimpleFlowInterpreter}, so
+	 * two merges of the same analysis are equal only if they are the same
+	 * instance. Use {@link #mergeWith} to create them.
+	 */
 	public final boolean isMerge;
+	/**
+	 * Unique within one analysis; allocated by the {@link SimpleFlowInterpreter}
+	 * in creation order, so it is the same for every run over the same method.
+	 */
 	public final int id;
-	
-	private static int uniqueId = 0;
+	private final int hash;
 
-    public SimpleFlowValue(final Type type, final AbstractInsnNode origin, Collection<SimpleFlowValue> inputs, boolean isMerge) {
-    	this.id = uniqueId++;
+    public SimpleFlowValue(final int id, final Type type, final AbstractInsnNode origin, Collection<SimpleFlowValue> inputs, boolean isMerge) {
+    	this.id = id;
         this.type = type;
         this.origin = origin;
         this.inputs = new LinkedHashSet<SimpleFlowValue>();
@@ -37,6 +38,13 @@ public class SimpleFlowValue implements Value {
         	this.inputs.addAll(inputs);
         }
         this.isMerge = isMerge;
+        if (origin != null) {
+        	this.hash = origin.hashCode();
+        } else if (isMerge) {
+        	this.hash = this.inputs.hashCode();
+        } else {
+        	this.hash = id;
+        }
     }
 
     public Type getType() {
@@ -52,28 +60,26 @@ public class SimpleFlowValue implements Value {
                 && (type.getSort() == Type.OBJECT || type.getSort() == Type.ARRAY);
     }
     
-    public static SimpleFlowValue newReturnAddressValue() {
-    	return new SimpleFlowValue(Type.VOID_TYPE, null, null, false);
+    public static SimpleFlowValue newReturnAddressValue(final int id) {
+    	return new SimpleFlowValue(id, Type.VOID_TYPE, null, null, false);
     }
 	@Override
 	public boolean equals(Object obj) {
+		if (obj == this) {
+			return true;
+		}
 		if (obj instanceof SimpleFlowValue) {
 			SimpleFlowValue other = (SimpleFlowValue)obj;
 			if (origin != null) {
 				return origin == other.origin;
 			}
 			if (isMerge) {
-				if (!other.isMerge) {
-					return false;
-				}
-				return inputs.equals(other.inputs);
+				// interned, see isMerge
+				return false;
 			}
-			/* if (type == null && other.type == null) {
-				return true;
-			} */
 			return id == other.id;
 		}
-		return super.equals(obj);
+		return false;
 	}
     
     @Override
@@ -102,12 +108,27 @@ public class SimpleFlowValue implements Value {
     	return b.toString();
     }
     
-    public SimpleFlowValue mergeWith(final SimpleFlowValue other) {
-    	// trivial case
+    /**
+     * @param interpreter the interpreter of the running analysis, which
+     *    interns the resulting merge value.
+     */
+    public SimpleFlowValue mergeWith(final SimpleFlowValue other, final SimpleFlowInterpreter interpreter) {
+    	// trivial cases: one side already covers the other, so the result
+    	// would be interned to that side anyway
     	
     	if (other.equals(this)) {
     		return this;
     	}
+    	if (isMerge) {
+    		if (other.isMerge ? inputs.containsAll(other.inputs) : inputs.contains(other)) {
+    			return this;
+    		}
+    	}
+    	if (other.isMerge) {
+    		if (isMerge ? other.inputs.containsAll(inputs) : other.inputs.contains(this)) {
+    			return other;
+    		}
+    	}
 
     	// System.err.println("merging "+this+" with "+other);
     	
@@ -117,7 +138,8 @@ public class SimpleFlowValue implements Value {
     		new_type = null;
     	}
 
-    	HashSet<SimpleFlowValue> new_inputs = new HashSet<>();
+    	// insertion order keeps the merge inputs (and thus the output) stable
+    	LinkedHashSet<SimpleFlowValue> new_inputs = new LinkedHashSet<>();
     	if (isMerge) {
     		new_inputs.addAll(inputs);
     	} else {
@@ -130,6 +152,6 @@ public class SimpleFlowValue implements Value {
     		new_inputs.add(other);
     	}
     	
-    	return new SimpleFlowValue(new_type, null, new_inputs, true);
+    	return interpreter.internMerge(new_type, new_inputs);
     }
 }
\ No newline at end of file
@@ -0,0 +1,303 @@
+package org.prettycat.dataflow.asm;
+
+import java.io.BufferedWriter;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.objectweb.asm.Type;
+
+/**
+ * Writes each method to the output as soon as it is handed to the sink.
+ *
+ * The output follows the same {@link XMLProtocol} schema as
+ * {@link DOMOutputSink}, but the sink only holds the method currently being
+ * written. (The session still hands over the methods a class at a time, and
+ * keeps a bounded number of finished classes waiting for the output.) Elements and attributes are written directly with an
+ * {@link XMLElementWriter}; attributes are emitted in the same (alphabetical)
+ * order the DOM serializer uses.
+ */
+public class StreamingXMLOutputSink implements OutputSink, AnalysisVisitor {
+	private final Writer out;
+	private final CountingOutputStream counter;
+	private final XMLElementWriter xml;
+	
+	private String instructionPrefix = null;
+	private String parameterPrefix = null;
+	
+	public StreamingXMLOutputSink(Writer out) throws IOException {
+		this(out, null, false);
+	}
+	
+	/**
+	 * Create a sink which tracks its position in the output, see
+	 * {@link #getOffset()}.
+	 */
+	public StreamingXMLOutputSink(OutputStream out) throws IOException {
+		this(out, false);
+	}
+	
+	/**
+	 * @param resume continue a document which was left open by
+	 *    {@link #suspend()}, instead of starting a new one; the offsets
+	 *    start at zero again.
+	 */
+	StreamingXMLOutputSink(OutputStream out, boolean resume) throws IOException {
+		this(new CountingOutputStream(out), resume);
+	}
+	
+	private StreamingXMLOutputSink(CountingOutputStream counter, boolean resume) throws IOException {
+		this(new BufferedWriter(new OutputStreamWriter(counter, Charset.forName("UTF-8"))), counter, resume);
+	}
+	
+	private StreamingXMLOutputSink(Writer out, CountingOutputStream counter, boolean resume) throws IOException {
+		this.out = out;
+		this.counter = counter;
+		this.xml = new XMLElementWriter(out);
+		if (resume) {
+			xml.resumeElement("asm");
+			return;
+		}
+		out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+		startElement("asm");
+		attribute("xmlns", XMLProtocol.NAMESPACE);
+	}
+	
+	public static StreamingXMLOutputSink open(Path output) throws IOException {
+		return new StreamingXMLOutputSink(Files.newOutputStream(output));
+	}
+	
+	/**
+	 * @return the number of bytes written so far. Only supported by sinks
+	 *    created for an {@link OutputStream}; any pending start tag is
+	 *    completed first, so the offset is always between two methods.
+	 */
+	public long getOffset() throws IOException {
+		if (counter == null) {
+			throw new UnsupportedOperationException("sink does not track its position");
+		}
+		xml.completeStartTag();
+		out.flush();
+		return counter.count;
+	}
+	
+	/**
+	 * Copy a range of an earlier output verbatim, e.g. the methods of a
+	 * class which did not change since.
+	 */
+	public void copyFrom(FileChannel source, long offset, long length) throws IOException {
+		getOffset();
+		ByteBuffer buffer = ByteBuffer.allocate((int)Math.min(length, 65536));
+		long position = offset;
+		long end = offset + length;
+		while (position < end) {
+			buffer.clear();
+			buffer.limit((int)Math.min(buffer.capacity(), end - position));
+			int n = source.read(buffer, position);
+			if (n < 0) {
+				throw new EOFException("previous output ends before offset "+end);
+			}
+			counter.write(buffer.array(), 0, n);
+			position += n;
+		}
+	}
+	
+	@Override
+	public void write(MethodResult analysis) throws IOException {
+		try {
+			analysis.accept(this);
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * Close the output without ending the document, so that it can be
+	 * continued later. Only possible between methods.
+	 */
+	void suspend() throws IOException {
+		xml.completeStartTag();
+		out.close();
+	}
+	
+	@Override
+	public void close() throws IOException {
+		try {
+			while (xml.hasOpenElements()) {
+				endElement();
+			}
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		} finally {
+			out.close();
+		}
+	}
+	
+	private void startElement(String name) {
+		xml.startElement(name);
+	}
+	
+	private void attribute(String name, String value) {
+		xml.attribute(name, value);
+	}
+	
+	private void endElement() {
+		xml.endElement();
+	}
+
+	@Override
+	public void visitMethod(String owner, String name, String desc) {
+		String fqmn = MethodAnalysis.getFullyQualifiedMethodName(owner, name, desc);
+		instructionPrefix = MethodAnalysis.getInstructionNamePrefix(fqmn);
+		parameterPrefix = MethodAnalysis.getParameterNamePrefix(fqmn);
+		startElement("method");
+		attribute("id", fqmn);
+	}
+
+	@Override
+	public void visitDegraded(String level, String reason) {
+		startElement("degraded");
+		attribute("level", level);
+		attribute("reason", reason);
+		endElement();
+	}
+
+	@Override
+	public void visitParametersStart() {
+		startElement("parameters");
+	}
+
+	@Override
+	public void visitParameter(int index, Type type) {
+		startElement("parameter");
+		attribute("id", parameterPrefix + index);
+		attribute("type", MethodAnalysis.getFullyQualifiedTypeName(type));
+		endElement();
+	}
+
+	@Override
+	public void visitParametersEnd() {
+		endElement();
+	}
+
+	@Override
+	public void visitInstructionsStart() {
+		startElement("insns");
+	}
+
+	@Override
+	public void visitInstruction(int index, int opcode, int lineNumber) {
+		startElement("insn");
+		attribute("id", instructionPrefix + index);
+		attribute("line", Integer.toString(lineNumber));
+		attribute("opcode", Integer.toString(opcode));
+	}
+
+	@Override
+	public void visitConstant(Object value) {
+		attribute("value", XMLProtocol.marshallValue(value));
+	}
+
+	@Override
+	public void visitField(String owner, String name) {
+		startElement("field");
+		attribute("name", name);
+		attribute("owner", owner);
+		endElement();
+	}
+
+	@Override
+	public void visitInputsStart() {
+		startElement("inputs");
+	}
+
+	@Override
+	public void visitValueOfInstruction(int index) {
+		startElement("value-of");
+		attribute("from", instructionPrefix + index);
+		endElement();
+	}
+
+	@Override
+	public void visitValueOfParameter(int index) {
+		startElement("value-of");
+		attribute("from", parameterPrefix + index);
+		endElement();
+	}
+
+	@Override
+	public void visitMergeStart() {
+		startElement("merge");
+	}
+
+	@Override
+	public void visitMergeEnd() {
+		endElement();
+	}
+
+	@Override
+	public void visitException(String descriptor) {
+		startElement("exception");
+		attribute("type", descriptor);
+		endElement();
+	}
+
+	@Override
+	public void visitUnknown() {
+		startElement("unknown");
+		endElement();
+	}
+
+	@Override
+	public void visitInputsEnd() {
+		endElement();
+	}
+
+	@Override
+	public void visitCallTarget(String owner, String name, String desc) {
+		startElement("call-target");
+		attribute("target", MethodAnalysis.getFullyQualifiedMethodName(owner, name, desc));
+		endElement();
+	}
+
+	@Override
+	public void visitExitsStart() {
+		startElement("exits");
+	}
+
+	@Override
+	public void visitExit(int target, boolean exceptional) {
+		startElement("exit");
+		attribute("exceptional", Boolean.toString(exceptional));
+		attribute("to", instructionPrefix + target);
+		endElement();
+	}
+
+	@Override
+	public void visitExitsEnd() {
+		endElement();
+	}
+
+	@Override
+	public void visitInstructionEnd() {
+		endElement();
+	}
+
+	@Override
+	public void visitInstructionsEnd() {
+		endElement();
+	}
+
+	@Override
+	public void visitMethodEnd() {
+		endElement();
+	}
+}
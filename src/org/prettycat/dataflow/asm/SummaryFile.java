@@ -0,0 +1,213 @@
+package org.prettycat.dataflow.asm;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * The {@link MethodSummary}s of all methods of a library jar, kept in a side
+ * file next to the jar ({@code JAR.summaries}).
+ *
+ * The file is a text file with a header line and tab-separated lines:
+ *
+ * <pre>
+ * jar     LENGTH  LAST-MODIFIED  ANALYSER-VERSION
+ * class   OWNER
+ * method  OWNER  NAME  DESC  DEGRADED  RETURNED  THROWN
+ * field   OWNER  NAME  TARGET  VALUE
+ * call    OWNER  NAME  DESC
+ * </pre>
+ *
+ * There is one class line for every class of the jar; the field and call
+ * lines belong to the method line before them. Parameter sets are written
+ * as comma-separated indices, or {@code -} if empty. The jar line records
+ * the jar the summaries were computed from, so summaries of a changed jar,
+ * or from another version of the analysis, are not used.
+ */
+public class SummaryFile {
+	public static final String SUFFIX = ".summaries";
+	private static final String HEADER = "# dataflow-asm summaries 1";
+	
+	private long jarLength = -1;
+	private long jarLastModified = -1;
+	private String version = AnalysisCache.ANALYSER_VERSION;
+	private final HashSet<String> classes = new HashSet<>();
+	private final LinkedHashMap<MethodRef, MethodSummary> summaries = new LinkedHashMap<>();
+	
+	/**
+	 * @param jar the jar the summaries are computed from.
+	 */
+	public SummaryFile(File jar) {
+		this.jarLength = jar.length();
+		this.jarLastModified = jar.lastModified();
+	}
+	
+	private SummaryFile() {
+	}
+	
+	public static Path getPath(File jar) {
+		return new File(jar.getPath() + SUFFIX).toPath();
+	}
+	
+	/**
+	 * @return the summaries saved next to the jar, or null if there are
+	 *    none, or they do not match the jar or the analysis any more.
+	 */
+	public static SummaryFile forJar(File jar) throws IOException {
+		Path file = getPath(jar);
+		if (!Files.exists(file)) {
+			return null;
+		}
+		SummaryFile result = load(file);
+		if (result.jarLength != jar.length() || result.jarLastModified != jar.lastModified()
+				|| !result.version.equals(AnalysisCache.ANALYSER_VERSION)) {
+			return null;
+		}
+		return result;
+	}
+	
+	public void addClasses(Collection<String> class_names) {
+		classes.addAll(class_names);
+	}
+	
+	public void add(MethodSummary summary) {
+		classes.add(summary.method.owner);
+		summaries.put(summary.method, summary);
+	}
+	
+	public boolean containsClass(String class_name) {
+		return classes.contains(class_name);
+	}
+	
+	public Collection<MethodSummary> getSummaries() {
+		return summaries.values();
+	}
+	
+	public static SummaryFile load(Path file) throws IOException {
+		SummaryFile result = new SummaryFile();
+		try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			if (!HEADER.equals(in.readLine())) {
+				throw new IOException("not a summary file (or unsupported version): "+file);
+			}
+			MethodRef method = null;
+			boolean degraded = false;
+			BitSet returned = null;
+			BitSet thrown = null;
+			ArrayList<MethodSummary.FieldWrite> fieldWrites = null;
+			ArrayList<MethodRef> calls = null;
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] fields = line.split("\t", -1);
+				try {
+					if (fields[0].equals("jar") && fields.length == 4) {
+						result.jarLength = Long.parseLong(fields[1]);
+						result.jarLastModified = Long.parseLong(fields[2]);
+						result.version = fields[3];
+					} else if (fields[0].equals("class") && fields.length == 2) {
+						result.classes.add(fields[1]);
+					} else if (fields[0].equals("method") && fields.length == 7) {
+						if (method != null) {
+							result.add(new MethodSummary(method, degraded, returned, thrown, fieldWrites, calls));
+						}
+						method = new MethodRef(fields[1], fields[2], fields[3]);
+						degraded = fields[4].equals("1");
+						returned = parseParameters(fields[5]);
+						thrown = parseParameters(fields[6]);
+						fieldWrites = new ArrayList<>();
+						calls = new ArrayList<>();
+					} else if (fields[0].equals("field") && fields.length == 5 && method != null) {
+						fieldWrites.add(new MethodSummary.FieldWrite(fields[1], fields[2], parseParameters(fields[3]), parseParameters(fields[4])));
+					} else if (fields[0].equals("call") && fields.length == 4 && method != null) {
+						calls.add(new MethodRef(fields[1], fields[2], fields[3]));
+					} else {
+						throw new IOException("malformed summary line: "+line);
+					}
+				} catch (NumberFormatException e) {
+					throw new IOException("malformed summary line: "+line);
+				}
+			}
+			if (method != null) {
+				result.add(new MethodSummary(method, degraded, returned, thrown, fieldWrites, calls));
+			}
+		}
+		return result;
+	}
+	
+	public void save(Path file) throws IOException {
+		ArrayList<String> sorted = new ArrayList<>(classes);
+		sorted.sort(null);
+		try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+			out.write(HEADER);
+			out.write('\n');
+			out.write("jar\t"+jarLength+"\t"+jarLastModified+"\t"+version+"\n");
+			for (String class_name: sorted) {
+				out.write("class\t"+class_name+"\n");
+			}
+			for (MethodSummary summary: summaries.values()) {
+				MethodRef method = summary.method;
+				out.write("method\t"+method.owner+"\t"+method.name+"\t"+method.desc+"\t"+(summary.degraded ? "1" : "0")
+						+"\t"+formatParameters(summary.returned)+"\t"+formatParameters(summary.thrown)+"\n");
+				for (MethodSummary.FieldWrite write: summary.fieldWrites) {
+					out.write("field\t"+write.owner+"\t"+write.name+"\t"+formatParameters(write.target)+"\t"+formatParameters(write.value)+"\n");
+				}
+				for (MethodRef call: summary.calls) {
+					out.write("call\t"+call.owner+"\t"+call.name+"\t"+call.desc+"\n");
+				}
+			}
+		}
+	}
+	
+	private static String formatParameters(BitSet parameters) {
+		if (parameters.isEmpty()) {
+			return "-";
+		}
+		StringBuilder result = new StringBuilder();
+		for (int i = parameters.nextSetBit(0); i >= 0; i = parameters.nextSetBit(i + 1)) {
+			if (result.length() > 0) {
+				result.append(',');
+			}
+			result.append(i);
+		}
+		return result.toString();
+	}
+	
+	private static BitSet parseParameters(String parameters) {
+		BitSet result = new BitSet();
+		if (parameters.equals("-")) {
+			return result;
+		}
+		for (String index: parameters.split(",")) {
+			result.set(Integer.parseInt(index));
+		}
+		return result;
+	}
+	
+	/**
+	 * @return the up to date summaries of the given jar files; jars without
+	 *    them are left out.
+	 */
+	static List<SummaryFile> forJars(Collection<File> jars) {
+		ArrayList<SummaryFile> result = new ArrayList<>();
+		for (File jar: jars) {
+			try {
+				SummaryFile summaries = forJar(jar);
+				if (summaries != null) {
+					result.add(summaries);
+				}
+			} catch (IOException e) {
+				System.err.println("ignoring summaries of "+jar+": "+e.getMessage());
+			}
+		}
+		return result;
+	}
+}
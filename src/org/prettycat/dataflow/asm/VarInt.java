@@ -0,0 +1,40 @@
+package org.prettycat.dataflow.asm;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * LEB128-style variable length encoding of integers; signed values are
+ * zig-zag encoded so that small negative numbers stay small.
+ */
+public class VarInt {
+	public static void writeUnsigned(DataOutput out, int value) throws IOException {
+		while ((value & ~0x7f) != 0) {
+			out.writeByte((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+	
+	public static void writeSigned(DataOutput out, int value) throws IOException {
+		writeUnsigned(out, (value << 1) ^ (value >> 31));
+	}
+	
+	public static int readUnsigned(DataInput in) throws IOException {
+		int result = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			int b = in.readUnsignedByte();
+			result |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return result;
+			}
+		}
+		throw new IOException("malformed varint");
+	}
+	
+	public static int readSigned(DataInput in) throws IOException {
+		int value = readUnsigned(in);
+		return (value >>> 1) ^ -(value & 1);
+	}
+}
@@ -0,0 +1,130 @@
+package org.prettycat.dataflow.asm;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+
+/**
+ * Writes elements and escaped attributes directly to a {@link Writer}.
+ *
+ * Elements without content are written as empty-element tags, like the DOM
+ * serializer does. I/O errors are rethrown as {@link UncheckedIOException}
+ * so the writer can be driven from {@link AnalysisVisitor} callbacks.
+ */
+class XMLElementWriter {
+	private final Writer out;
+	private final ArrayDeque<String> openElements;
+	private boolean tagOpen = false;
+	
+	XMLElementWriter(Writer out) {
+		this.out = out;
+		this.openElements = new ArrayDeque<String>();
+	}
+	
+	boolean hasOpenElements() {
+		return !openElements.isEmpty();
+	}
+	
+	void startElement(String name) {
+		try {
+			if (tagOpen) {
+				out.write('>');
+			}
+			out.write('<');
+			out.write(name);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		openElements.push(name);
+		tagOpen = true;
+	}
+	
+	/**
+	 * Continue inside an element whose start tag has been written
+	 * earlier, e.g. to another writer.
+	 */
+	void resumeElement(String name) {
+		openElements.push(name);
+	}
+	
+	void attribute(String name, String value) {
+		try {
+			out.write(' ');
+			out.write(name);
+			out.write("=\"");
+			writeEscaped(out, value);
+			out.write('"');
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	void attribute(String name, int value) {
+		attribute(name, Integer.toString(value));
+	}
+	
+	void endElement() {
+		String name = openElements.pop();
+		try {
+			if (tagOpen) {
+				out.write("/>");
+				tagOpen = false;
+			} else {
+				out.write("</");
+				out.write(name);
+				out.write('>');
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	/**
+	 * Complete a pending start tag, so that no further attributes can be
+	 * added to it.
+	 */
+	void completeStartTag() throws IOException {
+		if (tagOpen) {
+			out.write('>');
+			tagOpen = false;
+		}
+	}
+	
+	static void writeEscaped(Writer out, String value) throws IOException {
+		int start = 0;
+		final int length = value.length();
+		for (int i = 0; i < length; ++i) {
+			String replacement;
+			switch (value.charAt(i)) {
+			case '<':
+				replacement = "&lt;";
+				break;
+			case '>':
+				replacement = "&gt;";
+				break;
+			case '&':
+				replacement = "&amp;";
+				break;
+			case '"':
+				replacement = "&quot;";
+				break;
+			case '\n':
+				replacement = "&#10;";
+				break;
+			case '\r':
+				replacement = "&#13;";
+				break;
+			case '\t':
+				replacement = "&#9;";
+				break;
+			default:
+				continue;
+			}
+			out.write(value, start, i - start);
+			out.write(replacement);
+			start = i + 1;
+		}
+		out.write(value, start, length - start);
+	}
+}
@@ -8,6 +8,11 @@ import org.w3c.dom.Element;
 
 public class XMLProtocol {
 	public static final String NAMESPACE = "https://xmlns.zombofant.net/prettycat/1.0/asm";
+	/**
+	 * Version 2, with method-relative ids and a symbol table, see
+	 * {@link CompactXMLOutputSink}.
+	 */
+	public static final String NAMESPACE_V2 = "https://xmlns.zombofant.net/prettycat/2.0/asm";
 	
 	public static Element createASMElement(
 			Document doc)
@@ -25,6 +30,17 @@ public class XMLProtocol {
 		return result;
 	}
 	
+	public static Element createDegradedElement(
+			Document doc,
+			String level,
+			String reason)
+	{
+		Element result = doc.createElementNS(NAMESPACE, "degraded");
+		result.setAttribute("level", level);
+		result.setAttribute("reason", reason);
+		return result;
+	}
+	
 	public static Element createParametersElement(
 			Document doc)
 	{
@@ -135,4 +151,20 @@ public class XMLProtocol {
 		result.setAttribute("type", fqtn);
 		return result;
 	}
+	
+	public static String marshallValue(Object value) {
+		String value_s;
+		if (value instanceof String) {
+			try {
+				value_s = "b64+utf8:" + Base64.getEncoder().encodeToString(((String) value).getBytes("utf-8"));
+			} catch (UnsupportedEncodingException e) {
+				// TODO Auto-generated catch block
+				e.printStackTrace();
+				return null;
+			}
+		} else {
+			value_s = "raw:" + String.valueOf(value);
+		}
+		return value_s;
+	}
 }
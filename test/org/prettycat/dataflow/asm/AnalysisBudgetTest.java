@@ -0,0 +1,103 @@
+package org.prettycat.dataflow.asm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AnalysisBudgetTest {
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+	
+	private static List<MethodResult> results;
+	
+	@BeforeClass
+	public static void analyse() throws IOException {
+		results = TestAnalyses.analyse();
+	}
+	
+	private static List<MethodResult> analyse(AnalysisBudget budget, List<AnalysisReport.Entry> entries) throws IOException {
+		try (AnalysisSession session = TestAnalyses.newSession()) {
+			session.setBudget(budget);
+			List<MethodResult> degraded = TestAnalyses.analyse(session, TestAnalyses.CLASSES);
+			entries.addAll(session.getLastReport().getEntries());
+			return degraded;
+		}
+	}
+	
+	/**
+	 * Check that the methods listed in the report, and only those, were
+	 * degraded to level, and that all other methods are unchanged.
+	 */
+	private static void assertDegradedTo(String level, List<MethodResult> degraded, List<AnalysisReport.Entry> entries) throws IOException {
+		assertFalse(entries.isEmpty());
+		HashMap<MethodRef, AnalysisReport.Entry> byMethod = new HashMap<>();
+		for (AnalysisReport.Entry entry: entries) {
+			assertEquals(level, entry.outcome);
+			byMethod.put(entry.method, entry);
+		}
+		
+		assertEquals(results.size(), degraded.size());
+		for (int i = 0; i < results.size(); ++i) {
+			RecordedMethod result = (RecordedMethod)degraded.get(i);
+			AnalysisReport.Entry entry = byMethod.remove(new MethodRef(result.getOwner(), result.getName(), result.getDesc()));
+			if (entry == null) {
+				assertNull(result.getDegradation());
+				assertEquals(TestAnalyses.methodXML(results.get(i)), TestAnalyses.methodXML(result));
+				continue;
+			}
+			assertEquals(level, result.getDegradation());
+			assertEquals(entry.reason, result.getDegradationReason());
+			assertTrue(TestAnalyses.methodXML(result).contains("<degraded level=\""+level+"\""));
+		}
+		assertTrue(byMethod.isEmpty());
+	}
+	
+	@Test
+	public void largeMethodsAreDegradedToCallsOnly() throws IOException {
+		ArrayList<AnalysisReport.Entry> entries = new ArrayList<>();
+		List<MethodResult> degraded = analyse(new AnalysisBudget(20, 0, 0, 0), entries);
+		assertDegradedTo(MethodAnalysis.CALLS_ONLY, degraded, entries);
+	}
+	
+	@Test
+	public void methodsExceedingTheStepsAreDegradedToCFGOnly() throws IOException {
+		ArrayList<AnalysisReport.Entry> entries = new ArrayList<>();
+		List<MethodResult> degraded = analyse(new AnalysisBudget(0, 20, 0, 0), entries);
+		assertDegradedTo(MethodAnalysis.CFG_ONLY, degraded, entries);
+	}
+	
+	@Test
+	public void unlimitedBudgetDegradesNothing() throws IOException {
+		ArrayList<AnalysisReport.Entry> entries = new ArrayList<>();
+		List<MethodResult> unlimited = analyse(AnalysisBudget.UNLIMITED, entries);
+		assertTrue(entries.isEmpty());
+		assertEquals(TestAnalyses.toXML(results), TestAnalyses.toXML(unlimited));
+		assertFalse(TestAnalyses.toXML(unlimited).contains("<degraded"));
+	}
+	
+	@Test
+	public void sessionWritesDegradedElements() throws IOException {
+		Path file = tmp.newFile().toPath();
+		try (AnalysisSession session = TestAnalyses.newSession()) {
+			session.setBudget(new AnalysisBudget(0, 20, 0, 0));
+			session.run(file, TestAnalyses.CLASSES, new ArrayList<MethodRef>());
+			assertFalse(session.getLastReport().isEmpty());
+		}
+		String xml = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+		assertTrue(xml.contains("<degraded level=\""+MethodAnalysis.CFG_ONLY+"\""));
+	}
+}
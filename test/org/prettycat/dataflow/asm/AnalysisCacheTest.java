@@ -0,0 +1,104 @@
+package org.prettycat.dataflow.asm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AnalysisCacheTest {
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+	
+	private static List<RecordedMethod> methods;
+	
+	@BeforeClass
+	public static void analyse() throws IOException {
+		methods = new ArrayList<>();
+		for (MethodResult result: TestAnalyses.analyse()) {
+			methods.add(RecordedMethod.record(result));
+		}
+	}
+	
+	@Test
+	public void storedEntriesAreLoadedByAnotherInstance() throws IOException {
+		Path root = tmp.newFolder("cache").toPath();
+		new AnalysisCache(root).store("0123abcd", methods);
+		
+		AnalysisCache cache = new AnalysisCache(root);
+		List<RecordedMethod> loaded = cache.load("0123abcd");
+		assertNotNull(loaded);
+		assertEquals(TestAnalyses.toXML(methods), TestAnalyses.toXML(loaded));
+		assertEquals(1, cache.getHits());
+		assertEquals(0, cache.getMisses());
+	}
+	
+	@Test
+	public void missingAndBrokenEntriesAreMisses() throws IOException {
+		Path root = tmp.newFolder("cache").toPath();
+		AnalysisCache cache = new AnalysisCache(root);
+		assertNull(cache.load("0123abcd"));
+		
+		Path entry = root.resolve("45").resolve("67abcd");
+		Files.createDirectories(entry.getParent());
+		Files.write(entry, new byte[] {1, 2, 3});
+		assertNull(cache.load("4567abcd"));
+		assertEquals(0, cache.getHits());
+		assertEquals(2, cache.getMisses());
+	}
+	
+	@Test
+	public void memoryOnlyCacheDropsLeastRecentlyUsedEntries() throws IOException {
+		AnalysisCache cache = new AnalysisCache(null, 2);
+		List<RecordedMethod> one = methods.subList(0, 1);
+		cache.store("a", one);
+		cache.store("b", one);
+		assertNotNull(cache.load("a"));
+		cache.store("c", one);
+		
+		assertNotNull(cache.load("a"));
+		assertNull(cache.load("b"));
+		assertNotNull(cache.load("c"));
+	}
+	
+	@Test
+	public void keysDependOnClassBytesAndParsingOptions() {
+		byte[] bytes = {1, 2, 3};
+		assertEquals(AnalysisCache.classKey(bytes), AnalysisCache.classKey(bytes.clone()));
+		assertNotEquals(AnalysisCache.classKey(bytes), AnalysisCache.classKey(new byte[] {1, 2, 4}));
+		assertNotEquals(AnalysisCache.classKey(bytes), AnalysisCache.classKey(bytes, 4));
+		String key = AnalysisCache.classKey(bytes);
+		assertNotEquals(AnalysisCache.methodKey(key, "a", "()V"), AnalysisCache.methodKey(key, "a", "(I)V"));
+	}
+	
+	@Test
+	public void cachedRunsWriteTheSameOutput() throws IOException {
+		AnalysisCache cache = new AnalysisCache(tmp.newFolder("cache").toPath());
+		String first;
+		String second;
+		try (AnalysisSession session = TestAnalyses.newSession()) {
+			session.setCache(cache);
+			first = TestAnalyses.toXML(TestAnalyses.analyse(session, TestAnalyses.CLASSES));
+		}
+		int misses = cache.getMisses();
+		try (AnalysisSession session = TestAnalyses.newSession()) {
+			session.setCache(cache);
+			second = TestAnalyses.toXML(TestAnalyses.analyse(session, TestAnalyses.CLASSES));
+		}
+		assertEquals(first, second);
+		assertEquals(TestAnalyses.toXML(methods), second);
+		assertEquals(misses, cache.getMisses());
+		assertTrue(cache.getHits() > 0);
+	}
+}
@@ -0,0 +1,122 @@
+package org.prettycat.dataflow.asm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BinaryFormatTest {
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+	
+	private static List<MethodResult> results;
+	
+	@BeforeClass
+	public static void analyse() throws IOException {
+		results = TestAnalyses.analyse();
+	}
+	
+	private Path write(List<MethodResult> methods) throws IOException {
+		Path file = tmp.newFile().toPath();
+		try (BinaryOutputSink sink = BinaryOutputSink.open(file)) {
+			for (MethodResult method: methods) {
+				sink.write(method);
+			}
+		}
+		return file;
+	}
+	
+	private static String toXML(BinaryReader reader, List<Integer> methods) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (StreamingXMLOutputSink sink = new StreamingXMLOutputSink(out)) {
+			for (int method: methods) {
+				reader.accept(method, sink);
+			}
+		}
+		return new String(out.toByteArray(), StandardCharsets.UTF_8);
+	}
+	
+	private static List<Integer> range(int count) {
+		ArrayList<Integer> result = new ArrayList<>();
+		for (int i = 0; i < count; ++i) {
+			result.add(i);
+		}
+		return result;
+	}
+	
+	@Test
+	public void readerReplaysTheWrittenMethods() throws IOException {
+		try (BinaryReader reader = BinaryReader.open(write(results))) {
+			assertEquals(results.size(), reader.getMethodCount());
+			for (int i = 0; i < results.size(); ++i) {
+				assertEquals(results.get(i).getOwner(), reader.getOwner(i));
+				assertEquals(results.get(i).getName(), reader.getName(i));
+				assertEquals(results.get(i).getDesc(), reader.getDesc(i));
+			}
+			assertEquals(TestAnalyses.toXML(results), toXML(reader, range(results.size())));
+		}
+	}
+	
+	@Test
+	public void methodsCanBeReadInAnyOrder() throws IOException {
+		try (BinaryReader reader = BinaryReader.open(write(results))) {
+			for (int i = results.size() - 1; i >= 0; --i) {
+				assertEquals(
+						TestAnalyses.toXML(Arrays.asList(results.get(i))),
+						toXML(reader, Arrays.asList(i)));
+			}
+		}
+	}
+	
+	@Test
+	public void findMethodsMatchesOverloads() throws IOException {
+		try (BinaryReader reader = BinaryReader.open(write(results))) {
+			List<Integer> all = reader.findMethods(MethodRef.parse("org.objectweb.asm.Type#getType"));
+			assertEquals(5, all.size());
+			for (int method: all) {
+				assertEquals("org/objectweb/asm/Type", reader.getOwner(method));
+				assertEquals("getType", reader.getName(method));
+			}
+			List<Integer> one = reader.findMethods(MethodRef.parse("org.objectweb.asm.Type#getType(Ljava/lang/String;)Lorg/objectweb/asm/Type;"));
+			assertEquals(1, one.size());
+			assertEquals("(Ljava/lang/String;)Lorg/objectweb/asm/Type;", reader.getDesc(one.get(0)));
+			assertEquals(0, reader.findMethods(MethodRef.parse("org.objectweb.asm.Type#missing")).size());
+		}
+	}
+	
+	@Test
+	public void truncatedFilesAreRejected() throws IOException {
+		Path file = write(results);
+		byte[] bytes = Files.readAllBytes(file);
+		Files.write(file, Arrays.copyOf(bytes, bytes.length - 1));
+		try (BinaryReader reader = BinaryReader.open(file)) {
+			fail("opened a truncated file");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+	
+	@Test
+	public void sessionWritesTheSameMethodsAsXML() throws IOException {
+		Path file = tmp.newFile().toPath();
+		try (AnalysisSession session = TestAnalyses.newSession()) {
+			session.setFormat(OutputFormat.BINARY);
+			session.run(file, TestAnalyses.CLASSES, new ArrayList<MethodRef>());
+		}
+		try (BinaryReader reader = BinaryReader.open(file)) {
+			assertEquals(TestAnalyses.toXML(results), toXML(reader, range(reader.getMethodCount())));
+		}
+	}
+}
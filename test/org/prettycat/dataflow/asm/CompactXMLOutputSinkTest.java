@@ -0,0 +1,187 @@
+package org.prettycat.dataflow.asm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Checks the version 2 output against version 1, by expanding the symbols
+ * and indices of version 2 the way its documentation describes.
+ */
+public class CompactXMLOutputSinkTest {
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+	
+	private static List<MethodResult> results;
+	
+	@BeforeClass
+	public static void analyse() throws IOException {
+		results = TestAnalyses.analyse();
+	}
+	
+	private static Element parse(byte[] document) throws Exception {
+		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+		factory.setNamespaceAware(true);
+		return factory.newDocumentBuilder().parse(new ByteArrayInputStream(document)).getDocumentElement();
+	}
+	
+	private static byte[] writeV2(List<MethodResult> methods) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (CompactXMLOutputSink sink = new CompactXMLOutputSink(out)) {
+			for (MethodResult method: methods) {
+				sink.write(method);
+			}
+		}
+		return out.toByteArray();
+	}
+	
+	private static List<Element> children(Element element) {
+		ArrayList<Element> result = new ArrayList<>();
+		for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+			if (child instanceof Element) {
+				result.add((Element)child);
+			}
+		}
+		return result;
+	}
+	
+	private static HashMap<String, String> attributes(Element element) {
+		HashMap<String, String> result = new HashMap<>();
+		NamedNodeMap attributes = element.getAttributes();
+		for (int i = 0; i < attributes.getLength(); ++i) {
+			result.put(attributes.item(i).getNodeName(), attributes.item(i).getNodeValue());
+		}
+		return result;
+	}
+	
+	/**
+	 * Compare the documents; every symbol has to be declared before its
+	 * first use.
+	 */
+	private static void assertExpandsTo(Element v1, Element v2) {
+		assertEquals(XMLProtocol.NAMESPACE, v1.getNamespaceURI());
+		assertEquals(XMLProtocol.NAMESPACE_V2, v2.getNamespaceURI());
+		ArrayList<String> symbols = new ArrayList<>();
+		List<Element> methods = children(v1);
+		int nextMethod = 0;
+		for (Element child: children(v2)) {
+			if (child.getLocalName().equals("symbol")) {
+				assertEquals(Integer.toString(symbols.size()), child.getAttribute("id"));
+				symbols.add(child.getAttribute("value"));
+				continue;
+			}
+			assertElementExpandsTo(methods.get(nextMethod++), child, symbols, null);
+		}
+		assertEquals(methods.size(), nextMethod);
+	}
+	
+	private static void assertElementExpandsTo(Element v1, Element v2, List<String> symbols, String method) {
+		String name = v2.getLocalName();
+		assertEquals(v1.getLocalName(), name);
+		HashMap<String, String> expected = attributes(v2);
+		switch (name) {
+		case "method":
+			method = symbol(symbols, expected.remove("symbol"));
+			expected.put("id", method);
+			break;
+		case "parameter":
+			expected.put("id", MethodAnalysis.getFullyQualifiedParameterName(method, Integer.parseInt(expected.get("id"))));
+			expected.put("type", symbol(symbols, expected.get("type")));
+			break;
+		case "insn":
+			expected.put("id", MethodAnalysis.getFullyQualifiedInstructionName(method, Integer.parseInt(expected.get("id"))));
+			break;
+		case "field":
+			expected.put("owner", symbol(symbols, expected.get("owner")));
+			break;
+		case "value-of":
+			if (expected.containsKey("insn")) {
+				expected.put("from", MethodAnalysis.getFullyQualifiedInstructionName(method, Integer.parseInt(expected.remove("insn"))));
+			} else {
+				expected.put("from", MethodAnalysis.getFullyQualifiedParameterName(method, Integer.parseInt(expected.remove("param"))));
+			}
+			break;
+		case "exception":
+			expected.put("type", symbol(symbols, expected.get("type")));
+			break;
+		case "call-target":
+			expected.put("target", symbol(symbols, expected.get("target")));
+			break;
+		case "exit":
+			expected.putIfAbsent("exceptional", "false");
+			expected.put("to", MethodAnalysis.getFullyQualifiedInstructionName(method, Integer.parseInt(expected.get("to"))));
+			break;
+		}
+		assertEquals(attributes(v1), expected);
+		
+		List<Element> v1Children = children(v1);
+		List<Element> v2Children = children(v2);
+		assertEquals(v1Children.size(), v2Children.size());
+		for (int i = 0; i < v1Children.size(); ++i) {
+			assertElementExpandsTo(v1Children.get(i), v2Children.get(i), symbols, method);
+		}
+	}
+	
+	private static String symbol(List<String> symbols, String id) {
+		int index = Integer.parseInt(id);
+		assertTrue("symbol "+id+" used before it is declared", index < symbols.size());
+		return symbols.get(index);
+	}
+	
+	@Test
+	public void expandsToTheVersion1Output() throws Exception {
+		Element v1 = parse(TestAnalyses.toXML(results).getBytes(StandardCharsets.UTF_8));
+		Element v2 = parse(writeV2(results));
+		assertExpandsTo(v1, v2);
+	}
+	
+	@Test
+	public void symbolsAreDeclaredOnce() throws Exception {
+		Element v2 = parse(writeV2(results));
+		HashMap<String, String> values = new HashMap<>();
+		for (Element child: children(v2)) {
+			if (child.getLocalName().equals("symbol")) {
+				String previous = values.put(child.getAttribute("value"), child.getAttribute("id"));
+				assertEquals("symbol declared twice: "+child.getAttribute("value"), null, previous);
+			}
+		}
+		assertTrue(values.containsKey("java:I"));
+	}
+	
+	@Test
+	public void emptyOutputIsADocument() throws Exception {
+		Element v2 = parse(writeV2(new ArrayList<MethodResult>()));
+		assertEquals("asm", v2.getLocalName());
+		assertTrue(children(v2).isEmpty());
+	}
+	
+	@Test
+	public void sessionWritesVersion2() throws Exception {
+		Path file = tmp.newFile().toPath();
+		try (AnalysisSession session = TestAnalyses.newSession()) {
+			session.setFormat(OutputFormat.XML2);
+			session.run(file, TestAnalyses.CLASSES, new ArrayList<MethodRef>());
+		}
+		Element v1 = parse(TestAnalyses.toXML(results).getBytes(StandardCharsets.UTF_8));
+		assertExpandsTo(v1, parse(Files.readAllBytes(file)));
+	}
+}
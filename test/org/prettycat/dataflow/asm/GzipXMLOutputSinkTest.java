@@ -0,0 +1,117 @@
+package org.prettycat.dataflow.asm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class GzipXMLOutputSinkTest {
+	/**
+	 * Small enough that methods span several members.
+	 */
+	private static final int BLOCK_SIZE = 4096;
+	
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+	
+	private static List<MethodResult> results;
+	private static ExecutorService executor;
+	
+	@BeforeClass
+	public static void analyse() throws IOException {
+		results = TestAnalyses.analyse();
+		executor = Executors.newFixedThreadPool(4);
+	}
+	
+	@AfterClass
+	public static void shutdown() {
+		executor.shutdown();
+	}
+	
+	private Path write(List<MethodResult> methods) throws IOException {
+		Path file = tmp.getRoot().toPath().resolve("out.xml.gz");
+		try (GzipXMLOutputSink sink = new GzipXMLOutputSink(file, executor, BLOCK_SIZE, 4)) {
+			for (MethodResult method: methods) {
+				sink.write(method);
+			}
+		}
+		return file;
+	}
+	
+	private static String decompress(Path file) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (InputStream in = new GZIPInputStream(Files.newInputStream(file))) {
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = in.read(buffer)) >= 0) {
+				out.write(buffer, 0, n);
+			}
+		}
+		return new String(out.toByteArray(), StandardCharsets.UTF_8);
+	}
+	
+	@Test
+	public void outputDecompressesToTheStreamedXML() throws IOException {
+		assertEquals(TestAnalyses.toXML(results), decompress(write(results)));
+	}
+	
+	@Test
+	public void indexLocatesEveryMethod() throws IOException {
+		Path file = write(results);
+		GzipOutputIndex index = GzipOutputIndex.load(GzipOutputIndex.getIndexFile(file));
+		List<GzipOutputIndex.Entry> entries = index.getEntries();
+		assertEquals(results.size(), entries.size());
+		boolean spansMembers = false;
+		try (FileChannel compressed = FileChannel.open(file, StandardOpenOption.READ)) {
+			for (int i = 0; i < entries.size(); ++i) {
+				GzipOutputIndex.Entry entry = entries.get(i);
+				MethodResult result = results.get(i);
+				assertEquals(new MethodRef(result.getOwner(), result.getName(), result.getDesc()), entry.method);
+				String xml = new String(GzipOutputIndex.read(compressed, entry), StandardCharsets.UTF_8);
+				assertEquals(TestAnalyses.methodXML(result), xml);
+				spansMembers |= entry.offset + entry.length > BLOCK_SIZE;
+			}
+		}
+		assertTrue(spansMembers);
+	}
+	
+	@Test
+	public void findMethodsMatchesOverloads() throws IOException {
+		GzipOutputIndex index = GzipOutputIndex.load(GzipOutputIndex.getIndexFile(write(results)));
+		List<GzipOutputIndex.Entry> found = index.findMethods(MethodRef.parse("org.objectweb.asm.Type#getType"));
+		assertEquals(5, found.size());
+		for (GzipOutputIndex.Entry entry: found) {
+			assertEquals("getType", entry.method.name);
+		}
+		assertEquals(1, index.findMethods(MethodRef.parse("org.objectweb.asm.Type#getSort()I")).size());
+	}
+	
+	@Test
+	public void sessionWritesCompressedOutputAndIndex() throws IOException {
+		Path file = tmp.getRoot().toPath().resolve("session.xml.gz");
+		try (AnalysisSession session = TestAnalyses.newSession()) {
+			session.setCompressed(true);
+			session.run(file, TestAnalyses.CLASSES, new ArrayList<MethodRef>());
+		}
+		assertEquals(TestAnalyses.toXML(results), decompress(file));
+		assertEquals(results.size(), GzipOutputIndex.load(GzipOutputIndex.getIndexFile(file)).getEntries().size());
+	}
+}
@@ -0,0 +1,140 @@
+package org.prettycat.dataflow.asm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+public class IncrementalStateTest {
+	private static final List<String> CLASSES = Arrays.asList(
+			"org/prettycat/examples/test/TestClass",
+			"org/prettycat/examples/test/AnotherTestClass");
+	
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+	
+	@Test
+	public void savedStateIsLoadedForTheSameOutput() throws IOException {
+		Path output = tmp.newFile("out.xml").toPath();
+		Files.write(output, "<asm/>".getBytes(StandardCharsets.UTF_8));
+		Path file = tmp.getRoot().toPath().resolve("state");
+		
+		IncrementalState state = new IncrementalState();
+		state.add("a/A", "1234", 10, 20, Arrays.asList("a/B", "java/lang/Object"));
+		state.add("a/B", "5678", 30, 0, new ArrayList<String>());
+		state.save(file, output);
+		
+		IncrementalState loaded = IncrementalState.load(file, output);
+		assertNotNull(loaded);
+		IncrementalState.ClassRecord record = loaded.getUnchanged("a/A", "1234");
+		assertNotNull(record);
+		assertEquals(10, record.offset);
+		assertEquals(20, record.length);
+		assertEquals(Arrays.asList("a/B", "java/lang/Object"), record.referencedClasses);
+		assertTrue(loaded.getUnchanged("a/B", "5678").referencedClasses.isEmpty());
+		assertNull(loaded.getUnchanged("a/A", "5678"));
+		assertNull(loaded.getUnchanged("a/C", "1234"));
+	}
+	
+	@Test
+	public void stateOfAModifiedOrMissingOutputIsIgnored() throws IOException {
+		Path output = tmp.newFile("out.xml").toPath();
+		Files.write(output, "<asm/>".getBytes(StandardCharsets.UTF_8));
+		Path file = tmp.getRoot().toPath().resolve("state");
+		new IncrementalState().save(file, output);
+		
+		assertNull(IncrementalState.load(tmp.getRoot().toPath().resolve("missing"), output));
+		Files.write(output, "\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+		assertNull(IncrementalState.load(file, output));
+		Files.delete(output);
+		assertNull(IncrementalState.load(file, output));
+	}
+	
+	@Test
+	public void incrementalRunsMatchFullRuns() throws IOException {
+		Path classes = tmp.newFolder("classes").toPath();
+		for (String class_name: CLASSES) {
+			Path target = classes.resolve(class_name + ".class");
+			Files.createDirectories(target.getParent());
+			Files.copy(TestAnalyses.getClassesDirectory().resolve(class_name + ".class"), target);
+		}
+		Path output = tmp.getRoot().toPath().resolve("out.xml");
+		Path state = tmp.getRoot().toPath().resolve("out.state");
+		
+		byte[] first = runIncrementally(classes, output, state);
+		assertArrayEquals(first, runFully(classes));
+		assertTrue(Files.exists(state));
+		
+		byte[] second = runIncrementally(classes, output, state);
+		assertArrayEquals(first, second);
+		
+		// a changed class is analysed again, the other one is copied
+		Path changed = classes.resolve("org/prettycat/examples/test/AnotherTestClass.class");
+		Files.write(changed, addMethod(Files.readAllBytes(changed), "addedMethod"));
+		byte[] third = runIncrementally(classes, output, state);
+		assertArrayEquals(runFully(classes), third);
+		assertTrue(new String(third, StandardCharsets.UTF_8).contains("addedMethod"));
+		assertFalse(Files.exists(output.resolveSibling("out.xml.tmp")));
+	}
+	
+	private static byte[] runIncrementally(Path classes, Path output, Path state) throws IOException {
+		try (AnalysisSession session = newSession(classes)) {
+			session.setIncrementalStateFile(state);
+			session.run(output, CLASSES, new ArrayList<MethodRef>());
+		}
+		return Files.readAllBytes(output);
+	}
+	
+	private byte[] runFully(Path classes) throws IOException {
+		Path output = tmp.newFile().toPath();
+		try (AnalysisSession session = newSession(classes)) {
+			session.run(output, CLASSES, new ArrayList<MethodRef>());
+		}
+		return Files.readAllBytes(output);
+	}
+	
+	private static AnalysisSession newSession(Path classes) throws IOException {
+		ClassPath cp = new ClassPath();
+		cp.addPath(classes);
+		return new AnalysisSession(cp);
+	}
+	
+	/**
+	 * @return the class with an additional empty static method.
+	 */
+	private static byte[] addMethod(byte[] classBytes, String name) {
+		ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		new ClassReader(classBytes).accept(new ClassVisitor(Opcodes.ASM5, writer) {
+			@Override
+			public void visitEnd() {
+				MethodVisitor method = super.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, name, "()V", null, null);
+				method.visitCode();
+				method.visitInsn(Opcodes.RETURN);
+				method.visitMaxs(0, 0);
+				method.visitEnd();
+				super.visitEnd();
+			}
+		}, 0);
+		return writer.toByteArray();
+	}
+}
@@ -0,0 +1,97 @@
+package org.prettycat.dataflow.asm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+public class PackageFilterTest {
+	@Test
+	public void everythingIsInScopeWithoutIncludes() {
+		PackageFilter filter = new PackageFilter();
+		assertTrue(filter.matches("java/lang/Object"));
+		assertTrue(filter.matches("Main"));
+		
+		filter.exclude("java.lang");
+		assertFalse(filter.matches("java/lang/Object"));
+		assertFalse(filter.matches("java/lang/invoke/MethodHandle"));
+		assertTrue(filter.matches("java/util/List"));
+		assertTrue(filter.matches("Main"));
+	}
+	
+	@Test
+	public void includesMatchPackagesAndSubpackages() {
+		PackageFilter filter = new PackageFilter();
+		filter.include("com.example");
+		assertTrue(filter.matches("com/example/A"));
+		assertTrue(filter.matches("com/example/sub/B"));
+		assertTrue(filter.matches("com/example"));
+		assertFalse(filter.matches("com/examples/A"));
+		assertFalse(filter.matches("com/A"));
+		assertFalse(filter.matches("java/lang/Object"));
+	}
+	
+	@Test
+	public void wildcardsAndSlashesAreEquivalent() {
+		for (String pattern: Arrays.asList("com.example", "com.example.*", "com.example.**", "com/example", "com/example/*", "com/example/**")) {
+			PackageFilter filter = new PackageFilter();
+			filter.include(pattern);
+			assertTrue(pattern, filter.matches("com/example/A"));
+			assertTrue(pattern, filter.matches("com/example/sub/B"));
+			assertFalse(pattern, filter.matches("com/examples/A"));
+		}
+	}
+	
+	@Test
+	public void longestPatternWins() {
+		PackageFilter filter = new PackageFilter();
+		filter.exclude("com.example.generated.keep");
+		filter.include("com.example");
+		filter.exclude("com.example.generated");
+		assertTrue(filter.matches("com/example/A"));
+		assertFalse(filter.matches("com/example/generated/A"));
+		assertTrue(filter.matches("com/example/generatedSources/A"));
+		assertFalse(filter.matches("com/example/generated/keep/A"));
+		
+		filter.include("com.example.generated.keep.Kept");
+		assertTrue(filter.matches("com/example/generated/keep/Kept"));
+		assertFalse(filter.matches("com/example/generated/keep/Kept2"));
+	}
+	
+	@Test
+	public void invalidPatternsAreRejected() {
+		for (String pattern: Arrays.asList("", ".com", ".*", "com.", "com..*")) {
+			try {
+				new PackageFilter().include(pattern);
+				fail("accepted "+pattern);
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+	}
+	
+	@Test
+	public void sessionOnlyFollowsReferencesInScope() throws IOException {
+		PackageFilter scope = new PackageFilter();
+		scope.include("org.prettycat.examples");
+		TreeSet<String> owners = new TreeSet<>();
+		try (AnalysisSession session = TestAnalyses.newSession()) {
+			session.setMaxDepth(-1);
+			session.setScope(scope);
+			List<MethodResult> results = TestAnalyses.analyse(session, Arrays.asList("org/prettycat/examples/test/TestClass"));
+			for (MethodResult result: results) {
+				owners.add(result.getOwner());
+			}
+		}
+		assertEquals(new TreeSet<>(Arrays.asList(
+				"org/prettycat/examples/test/AnotherTestClass",
+				"org/prettycat/examples/test/TestClass")), owners);
+	}
+}
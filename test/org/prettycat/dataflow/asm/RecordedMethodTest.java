@@ -0,0 +1,268 @@
+package org.prettycat.dataflow.asm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+public class RecordedMethodTest {
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+	
+	private static final String NEW_OWNER = "org/example/Relabelled";
+	
+	private static List<RecordedMethod> results;
+	/**
+	 * The static methods of the analysed classes, as owner/name+desc.
+	 */
+	private static Set<String> staticMethods;
+	
+	@BeforeClass
+	public static void analyse() throws IOException {
+		results = new ArrayList<>();
+		for (MethodResult result: TestAnalyses.analyse()) {
+			results.add((RecordedMethod)result);
+		}
+		staticMethods = new HashSet<>();
+		for (String class_name: TestAnalyses.CLASSES) {
+			new ClassReader(class_name).accept(new ClassVisitor(Opcodes.ASM5) {
+				@Override
+				public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+					if ((access & Opcodes.ACC_STATIC) != 0) {
+						staticMethods.add(class_name + "/" + name + desc);
+					}
+					return null;
+				}
+			}, ClassReader.SKIP_CODE);
+		}
+	}
+	
+	/**
+	 * @return the events of the result, each as the name of the visitor
+	 *    method followed by its arguments.
+	 */
+	private static List<List<Object>> events(MethodResult result) {
+		ArrayList<List<Object>> events = new ArrayList<>();
+		result.accept((AnalysisVisitor)Proxy.newProxyInstance(
+				AnalysisVisitor.class.getClassLoader(),
+				new Class<?>[] { AnalysisVisitor.class },
+				(proxy, method, args) -> {
+					ArrayList<Object> event = new ArrayList<>();
+					event.add(method.getName());
+					if (args != null) {
+						event.addAll(Arrays.asList(args));
+					}
+					events.add(event);
+					return null;
+				}));
+		return events;
+	}
+	
+	private static byte[] serialize(List<RecordedMethod> methods) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		for (RecordedMethod method: methods) {
+			method.writeTo(out);
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+	
+	private static boolean isStatic(RecordedMethod method) {
+		return staticMethods.contains(method.getOwner() + "/" + method.getName() + method.getDesc());
+	}
+	
+	private static void assertSameCallSites(List<MethodAnalysis.CallSite> expected, List<MethodAnalysis.CallSite> actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); ++i) {
+			assertEquals(expected.get(i).opcode, actual.get(i).opcode);
+			assertEquals(expected.get(i).target, actual.get(i).target);
+		}
+	}
+	
+	@Test
+	public void recordingARecordedMethodKeepsIt() {
+		RecordedMethod method = results.get(0);
+		assertSame(method, RecordedMethod.record(method));
+	}
+	
+	@Test
+	public void serializedMethodsReadBackEqual() throws IOException {
+		byte[] bytes = serialize(results);
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+		ArrayList<RecordedMethod> read = new ArrayList<>();
+		for (int i = 0; i < results.size(); ++i) {
+			RecordedMethod method = RecordedMethod.readFrom(in);
+			RecordedMethod expected = results.get(i);
+			assertEquals(expected.getOwner(), method.getOwner());
+			assertEquals(expected.getName(), method.getName());
+			assertEquals(expected.getDesc(), method.getDesc());
+			assertEquals(expected.getReferencedMethods(), method.getReferencedMethods());
+			assertSameCallSites(expected.getCallSites(), method.getCallSites());
+			assertEquals(expected.getInstantiatedTypes(), method.getInstantiatedTypes());
+			assertEquals(events(expected), events(method));
+			read.add(method);
+		}
+		assertEquals(0, in.available());
+		assertArrayEquals(bytes, serialize(read));
+		assertEquals(TestAnalyses.toXML(results), TestAnalyses.toXML(read));
+	}
+	
+	@Test
+	public void withOwnerOnlyChangesTheOwner() {
+		for (RecordedMethod method: results) {
+			RecordedMethod moved = method.withOwner(NEW_OWNER);
+			assertEquals(NEW_OWNER, moved.getOwner());
+			assertEquals(method.getName(), moved.getName());
+			assertEquals(method.getReferencedMethods(), moved.getReferencedMethods());
+			assertSameCallSites(method.getCallSites(), moved.getCallSites());
+			assertEquals(method.getInstantiatedTypes(), moved.getInstantiatedTypes());
+			
+			List<List<Object>> expected = events(method);
+			expected.set(0, Arrays.<Object>asList("visitMethod", NEW_OWNER, method.getName(), method.getDesc()));
+			assertEquals(expected, events(moved));
+		}
+	}
+	
+	@Test
+	public void relabelReplacesReferencesToTheOwner() {
+		// the kinds of events which were changed, to check they are covered
+		TreeSet<String> relabelled = new TreeSet<>();
+		for (RecordedMethod method: results) {
+			String owner = method.getOwner();
+			boolean hasReceiver = !isStatic(method);
+			RecordedMethod copy = method.relabel(NEW_OWNER, "copy", hasReceiver);
+			assertEquals(NEW_OWNER, copy.getOwner());
+			assertEquals("copy", copy.getName());
+			assertEquals(method.getDesc(), copy.getDesc());
+			
+			List<List<Object>> expected = events(method);
+			expected.set(0, Arrays.<Object>asList("visitMethod", NEW_OWNER, "copy", method.getDesc()));
+			for (List<Object> event: expected) {
+				List<Object> original = new ArrayList<>(event);
+				switch ((String)event.get(0)) {
+				case "visitParameter":
+					if (hasReceiver && (Integer)event.get(1) == 0) {
+						event.set(2, Type.getObjectType(NEW_OWNER));
+					}
+					break;
+				case "visitConstant":
+					Object value = event.get(1);
+					if (value instanceof Type && ((Type)value).getSort() == Type.OBJECT && ((Type)value).getInternalName().equals(owner)) {
+						event.set(1, Type.getObjectType(NEW_OWNER));
+					} else if (value instanceof Handle && ((Handle)value).getOwner().equals(owner)) {
+						Handle handle = (Handle)value;
+						event.set(1, new Handle(handle.getTag(), NEW_OWNER, handle.getName(), handle.getDesc(), handle.isInterface()));
+					}
+					break;
+				case "visitField":
+				case "visitCallTarget":
+					if (event.get(1).equals(owner)) {
+						event.set(1, NEW_OWNER);
+					}
+					break;
+				case "visitException":
+					if (event.get(1).equals("L" + owner + ";")) {
+						event.set(1, "L" + NEW_OWNER + ";");
+					}
+					break;
+				}
+				if (!event.equals(original)) {
+					relabelled.add((String)event.get(0));
+				}
+			}
+			assertEquals(expected, events(copy));
+			
+			LinkedHashSet<String> referencedMethods = new LinkedHashSet<>();
+			for (String referenced: method.getReferencedMethods()) {
+				referencedMethods.add(referenced.startsWith(owner + "/") && referenced.lastIndexOf('/') == owner.length()
+						? NEW_OWNER + referenced.substring(owner.length()) : referenced);
+			}
+			assertEquals(referencedMethods, copy.getReferencedMethods());
+			ArrayList<MethodAnalysis.CallSite> callSites = new ArrayList<>();
+			for (MethodAnalysis.CallSite call: method.getCallSites()) {
+				callSites.add(!call.target.owner.equals(owner) ? call
+						: new MethodAnalysis.CallSite(call.opcode, new MethodRef(NEW_OWNER, call.target.name, call.target.desc)));
+			}
+			assertSameCallSites(callSites, copy.getCallSites());
+			ArrayList<String> instantiatedTypes = new ArrayList<>();
+			for (String type: method.getInstantiatedTypes()) {
+				instantiatedTypes.add(type.equals(owner) ? NEW_OWNER : type);
+			}
+			assertEquals(instantiatedTypes, copy.getInstantiatedTypes());
+		}
+		assertTrue(relabelled.toString(), relabelled.containsAll(Arrays.asList(
+				"visitCallTarget", "visitField", "visitParameter")));
+	}
+	
+	@Test
+	public void relabelReplacesClassConstantsOfTheOwner() throws IOException {
+		String owner = "org/example/Constants";
+		ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		writer.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, owner, null, "java/lang/Object", null);
+		MethodVisitor method = writer.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "self", "()Ljava/lang/Class;", null, null);
+		method.visitCode();
+		method.visitLdcInsn(Type.getObjectType(owner));
+		method.visitInsn(Opcodes.ARETURN);
+		method.visitMaxs(0, 0);
+		method.visitEnd();
+		writer.visitEnd();
+		Path classes = tmp.newFolder().toPath();
+		Files.createDirectories(classes.resolve("org/example"));
+		Files.write(classes.resolve(owner + ".class"), writer.toByteArray());
+		
+		ClassPath cp = new ClassPath();
+		cp.addPath(classes);
+		List<MethodResult> analysed;
+		try (AnalysisSession session = new AnalysisSession(cp)) {
+			analysed = TestAnalyses.analyse(session, Arrays.asList(owner));
+		}
+		assertEquals(1, analysed.size());
+		RecordedMethod copy = ((RecordedMethod)analysed.get(0)).relabel(NEW_OWNER, "self", false);
+		ArrayList<Object> constants = new ArrayList<>();
+		for (List<Object> event: events(copy)) {
+			if (event.get(0).equals("visitConstant")) {
+				constants.add(event.get(1));
+			}
+		}
+		assertEquals(Arrays.<Object>asList(Type.getObjectType(NEW_OWNER)), constants);
+	}
+	
+	@Test
+	public void relabellingBackRestoresTheMethod() throws IOException {
+		for (RecordedMethod method: results) {
+			boolean hasReceiver = !isStatic(method);
+			RecordedMethod back = method.relabel(NEW_OWNER, "copy", hasReceiver)
+					.relabel(method.getOwner(), method.getName(), hasReceiver);
+			assertArrayEquals(serialize(Arrays.asList(method)), serialize(Arrays.asList(back)));
+		}
+	}
+}
@@ -0,0 +1,131 @@
+package org.prettycat.dataflow.asm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ShardedOutputSinkTest {
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+	
+	private static List<MethodResult> results;
+	/**
+	 * The results with the classes interleaved, so that shards are
+	 * suspended and resumed.
+	 */
+	private static List<MethodResult> interleaved;
+	private static ExecutorService executor;
+	
+	@BeforeClass
+	public static void analyse() throws IOException {
+		results = TestAnalyses.analyse();
+		LinkedHashMap<String, ArrayList<MethodResult>> byClass = new LinkedHashMap<>();
+		for (MethodResult result: results) {
+			byClass.computeIfAbsent(result.getOwner(), k -> new ArrayList<MethodResult>()).add(result);
+		}
+		interleaved = new ArrayList<>();
+		for (int i = 0; interleaved.size() < results.size(); ++i) {
+			for (List<MethodResult> methods: byClass.values()) {
+				if (i < methods.size()) {
+					interleaved.add(methods.get(i));
+				}
+			}
+		}
+		executor = Executors.newFixedThreadPool(4);
+	}
+	
+	@AfterClass
+	public static void shutdown() {
+		executor.shutdown();
+	}
+	
+	private Path write(ShardedOutputSink.Granularity granularity, int maxOpen) throws IOException {
+		Path directory = tmp.newFolder().toPath();
+		try (ShardedOutputSink sink = new ShardedOutputSink(directory, granularity, executor, maxOpen, 8)) {
+			for (MethodResult method: interleaved) {
+				sink.write(method);
+			}
+		}
+		return directory;
+	}
+	
+	private void assertShardsHoldTheMethods(ShardedOutputSink.Granularity granularity, int maxOpen) throws IOException {
+		Path directory = write(granularity, maxOpen);
+		ShardedOutputSink names = new ShardedOutputSink(tmp.newFolder().toPath(), granularity, executor, 1, 1);
+		List<ShardManifest.Entry> entries = ShardManifest.load(directory.resolve(ShardManifest.FILE_NAME)).getEntries();
+		assertEquals(interleaved.size(), entries.size());
+		
+		LinkedHashMap<String, ArrayList<MethodResult>> byShard = new LinkedHashMap<>();
+		for (int i = 0; i < entries.size(); ++i) {
+			MethodResult result = interleaved.get(i);
+			ShardManifest.Entry entry = entries.get(i);
+			assertEquals(MethodAnalysis.getFullyQualifiedMethodName(result.getOwner(), result.getName(), result.getDesc()), entry.methodId);
+			assertEquals(names.getShardName(result.getOwner()), entry.shard);
+			byShard.computeIfAbsent(entry.shard, k -> new ArrayList<MethodResult>()).add(result);
+			
+			byte[] shard = Files.readAllBytes(directory.resolve(entry.shard));
+			byte[] method = Arrays.copyOfRange(shard, (int)entry.offset, (int)(entry.offset + entry.length));
+			assertEquals(TestAnalyses.methodXML(result), new String(method, StandardCharsets.UTF_8));
+			assertEquals(AnalysisCache.hex(AnalysisCache.newDigest().digest(method)), entry.hash);
+		}
+		for (String shard: byShard.keySet()) {
+			assertEquals(TestAnalyses.toXML(byShard.get(shard)), new String(Files.readAllBytes(directory.resolve(shard)), StandardCharsets.UTF_8));
+		}
+	}
+	
+	@Test
+	public void classShardsHoldTheirMethods() throws IOException {
+		assertShardsHoldTheMethods(ShardedOutputSink.Granularity.CLASS, 16);
+	}
+	
+	@Test
+	public void resumedShardsHoldTheirMethods() throws IOException {
+		assertShardsHoldTheMethods(ShardedOutputSink.Granularity.CLASS, 1);
+		assertShardsHoldTheMethods(ShardedOutputSink.Granularity.PACKAGE, 1);
+	}
+	
+	@Test
+	public void shardNames() throws IOException {
+		Path directory = tmp.newFolder().toPath();
+		ShardedOutputSink packages = new ShardedOutputSink(directory, ShardedOutputSink.Granularity.PACKAGE, executor, 1, 1);
+		assertEquals("org.objectweb.asm.xml", packages.getShardName("org/objectweb/asm/Type"));
+		assertEquals("default.xml", packages.getShardName("Main"));
+		ShardedOutputSink classes = new ShardedOutputSink(directory, ShardedOutputSink.Granularity.CLASS, executor, 1, 1);
+		assertEquals("org.objectweb.asm.Type.xml", classes.getShardName("org/objectweb/asm/Type"));
+		assertEquals("Main.xml", classes.getShardName("Main"));
+	}
+	
+	@Test
+	public void sessionWritesShardsAndManifest() throws IOException {
+		Path directory = tmp.getRoot().toPath().resolve("shards");
+		try (AnalysisSession session = TestAnalyses.newSession()) {
+			session.setSharding(ShardedOutputSink.Granularity.PACKAGE);
+			session.run(directory, TestAnalyses.CLASSES, new ArrayList<MethodRef>());
+		}
+		List<ShardManifest.Entry> entries = ShardManifest.load(directory.resolve(ShardManifest.FILE_NAME)).getEntries();
+		assertEquals(results.size(), entries.size());
+		for (int i = 0; i < entries.size(); ++i) {
+			ShardManifest.Entry entry = entries.get(i);
+			byte[] shard = Files.readAllBytes(directory.resolve(entry.shard));
+			assertArrayEquals(
+					TestAnalyses.methodXML(results.get(i)).getBytes(StandardCharsets.UTF_8),
+					Arrays.copyOfRange(shard, (int)entry.offset, (int)(entry.offset + entry.length)));
+		}
+	}
+}
@@ -0,0 +1,112 @@
+package org.prettycat.dataflow.asm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import org.prettycat.examples.test.TestClass;
+
+/**
+ * Analyses shared by the tests: the example classes, a class of this
+ * project using lambdas and a few classes of ASM, with constants, fields,
+ * switches and exception handlers.
+ */
+final class TestAnalyses {
+	static final List<String> CLASSES = Arrays.asList(
+			"org/prettycat/examples/test/TestClass",
+			"org/prettycat/examples/test/AnotherTestClass",
+			"org/prettycat/dataflow/asm/PipelineStage",
+			"org/objectweb/asm/Handle",
+			"org/objectweb/asm/Type");
+	
+	private TestAnalyses() {
+	}
+	
+	/**
+	 * @return the directory holding the compiled classes of the project.
+	 */
+	static Path getClassesDirectory() {
+		try {
+			return Paths.get(TestClass.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+		} catch (URISyntaxException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * @return a class path with the classes of the project and ASM.
+	 */
+	static ClassPath newClassPath() throws IOException {
+		ClassPath cp = new ClassPath();
+		cp.addPath(getClassesDirectory());
+		cp.addJarFile(new File("libs/asm-6.0.jar"));
+		return cp;
+	}
+	
+	/**
+	 * @return a session which only analyses the classes asked for.
+	 */
+	static AnalysisSession newSession() throws IOException {
+		AnalysisSession session = new AnalysisSession(newClassPath());
+		session.setMaxDepth(0);
+		return session;
+	}
+	
+	/**
+	 * @return the results of all methods of the classes, in output order.
+	 */
+	static List<MethodResult> analyse(AnalysisSession session, Collection<String> classes) throws IOException {
+		ArrayList<MethodResult> result = new ArrayList<>();
+		session.run(new OutputSink() {
+			@Override
+			public void write(MethodResult analysis) {
+				result.add(RecordedMethod.record(analysis));
+			}
+			
+			@Override
+			public void close() {
+			}
+		}, classes, new ArrayList<MethodRef>());
+		return result;
+	}
+	
+	static List<MethodResult> analyse() throws IOException {
+		try (AnalysisSession session = newSession()) {
+			return analyse(session, CLASSES);
+		}
+	}
+	
+	/**
+	 * @return the streamed XML document of the results.
+	 */
+	static String toXML(Collection<? extends MethodResult> results) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (StreamingXMLOutputSink sink = new StreamingXMLOutputSink(out)) {
+			for (MethodResult result: results) {
+				sink.write(result);
+			}
+		}
+		return new String(out.toByteArray(), StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * @return the {@code <method>} element of the result.
+	 */
+	static String methodXML(MethodResult result) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		StreamingXMLOutputSink sink = new StreamingXMLOutputSink(out);
+		long start = sink.getOffset();
+		sink.write(result);
+		long end = sink.getOffset();
+		byte[] bytes = out.toByteArray();
+		return new String(bytes, (int)start, (int)(end - start), StandardCharsets.UTF_8);
+	}
+}